@@ -9,6 +9,10 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import java.util.zip.Deflater;
 
 /**
@@ -24,6 +28,11 @@ public class PngEncoder {
      */
     public static int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
 
+    /**
+     * The highest effort for {@link #withOptimizationEffort(int)}.
+     */
+    public static final int MAX_OPTIMIZATION_EFFORT = 3;
+
     private final BufferedImage bufferedImage;
     private final int compressionLevel;
     private final boolean multiThreadedCompressionEnabled;
@@ -32,10 +41,28 @@ public class PngEncoder {
 
     private final boolean usePredictorEncoding;
     private final boolean tryIndexedEncoding;
+    private final boolean dictionaryChainingEnabled;
+    private final ExecutorService executorService;
+    private final int fairShareSchedulingWeight;
+    private final Consumer<PngEncoderStatistics> statisticsListener;
+    private final boolean threadLocalScratchEnabled;
+    private final PngEncoderCompressor compressor;
+    private final PngEncoderDeflateStrategy deflateStrategy;
+    private final int optimizationEffort;
+    private final int parallelism;
+    private final Duration deadline;
+    private final boolean deterministicSegmentationEnabled;
+    private final PngEncoderFilterStrategy filterStrategy;
+    private final PngEncoderFilterStrategy indexedFilterStrategy;
 
     private PngEncoder(BufferedImage bufferedImage, int compressionLevel, boolean multiThreadedCompressionEnabled,
             PngEncoderSrgbRenderingIntent srgbRenderingIntent,
-            PngEncoderPhysicalPixelDimensions physicalPixelDimensions, boolean usePredictorEncoding, boolean tryIndexedEncoding) {
+            PngEncoderPhysicalPixelDimensions physicalPixelDimensions, boolean usePredictorEncoding, boolean tryIndexedEncoding,
+            boolean dictionaryChainingEnabled, ExecutorService executorService, int fairShareSchedulingWeight,
+            Consumer<PngEncoderStatistics> statisticsListener, boolean threadLocalScratchEnabled,
+            PngEncoderCompressor compressor, PngEncoderDeflateStrategy deflateStrategy, int optimizationEffort,
+            int parallelism, Duration deadline, boolean deterministicSegmentationEnabled,
+            PngEncoderFilterStrategy filterStrategy, PngEncoderFilterStrategy indexedFilterStrategy) {
         this.bufferedImage = bufferedImage;
         this.compressionLevel = PngEncoderVerificationUtil.verifyCompressionLevel(compressionLevel);
         this.multiThreadedCompressionEnabled = multiThreadedCompressionEnabled;
@@ -43,13 +70,26 @@ public class PngEncoder {
         this.physicalPixelDimensions = physicalPixelDimensions;
         this.usePredictorEncoding = usePredictorEncoding;
         this.tryIndexedEncoding = tryIndexedEncoding;
+        this.dictionaryChainingEnabled = dictionaryChainingEnabled;
+        this.executorService = executorService;
+        this.fairShareSchedulingWeight = PngEncoderVerificationUtil.verifyFairShareSchedulingWeight(fairShareSchedulingWeight);
+        this.statisticsListener = statisticsListener;
+        this.threadLocalScratchEnabled = threadLocalScratchEnabled;
+        this.compressor = Objects.requireNonNull(compressor, "compressor");
+        this.deflateStrategy = Objects.requireNonNull(deflateStrategy, "deflateStrategy");
+        this.optimizationEffort = PngEncoderVerificationUtil.verifyOptimizationEffort(optimizationEffort);
+        this.parallelism = PngEncoderVerificationUtil.verifyParallelism(parallelism);
+        this.deadline = PngEncoderVerificationUtil.verifyDeadline(deadline);
+        this.deterministicSegmentationEnabled = deterministicSegmentationEnabled;
+        this.filterStrategy = Objects.requireNonNull(filterStrategy, "filterStrategy");
+        this.indexedFilterStrategy = Objects.requireNonNull(indexedFilterStrategy, "indexedFilterStrategy");
     }
 
     /**
      * Constructs an empty PngEncoder. Usually combined with methods named with*.
      */
     public PngEncoder() {
-        this(null, DEFAULT_COMPRESSION_LEVEL, true, null, null, false, false);
+        this(null, DEFAULT_COMPRESSION_LEVEL, true, null, null, false, false, false, null, 0, null, false, PngEncoderCompressor.deflater(), PngEncoderDeflateStrategy.DEFAULT, 0, 0, null, false, PngEncoderFilterStrategy.MIN_SUM, PngEncoderFilterStrategy.NONE);
     }
 
     /**
@@ -61,7 +101,10 @@ public class PngEncoder {
      */
     public PngEncoder withBufferedImage(BufferedImage bufferedImage) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     /**
@@ -73,7 +116,10 @@ public class PngEncoder {
      */
     public PngEncoder withCompressionLevel(int compressionLevel) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     /**
@@ -85,7 +131,10 @@ public class PngEncoder {
      */
     public PngEncoder withTryIndexedEncoding(boolean tryIndexedEncoding) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     /**
@@ -97,7 +146,10 @@ public class PngEncoder {
      */
     public PngEncoder withMultiThreadedCompressionEnabled(boolean multiThreadedCompressionEnabled) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     /**
@@ -109,12 +161,18 @@ public class PngEncoder {
      */
     public PngEncoder withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent srgbRenderingIntent) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     public PngEncoder withPhysicalPixelDimensions(PngEncoderPhysicalPixelDimensions physicalPixelDimensions) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     /**
@@ -126,8 +184,287 @@ public class PngEncoder {
      */
     public PngEncoder withPredictorEncoding(boolean usePredictorEncoding) {
         return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions,
-                usePredictorEncoding, tryIndexedEncoding);
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code dictionaryChainingEnabled}.
+     * The new PngEncoder will use the provided {@code dictionaryChainingEnabled}.
+     * <p>
+     * Multithreaded compression splits the image data into segments that are compressed independently. By default
+     * every segment starts with an empty dictionary, which costs a few percent in file size. With dictionary chaining
+     * every segment is primed with the last 32 KB of the previous segment, which makes the output about as small as
+     * single threaded compression. This in turn allows for smaller segments, so mid-sized images are spread across
+     * more threads. Has no effect when multithreaded compression is disabled.
+     *
+     * @param dictionaryChainingEnabled when {@code true}, segments are primed with the data of the previous segment
+     * @return a new PngEncoder
+     */
+    public PngEncoder withDictionaryChainingEnabled(boolean dictionaryChainingEnabled) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code executorService}.
+     * The new PngEncoder will run multithreaded compression on the provided {@code executorService}.
+     * <p>
+     * The executor service is not shut down by the encoder. Use this to run the compression on bounded pools that
+     * respect your CPU quotas, or to separate pools per tenant or priority class.
+     *
+     * @param executorService the executor service to compress segments on, or null for the default one
+     * @return a new PngEncoder
+     * @see #setDefaultExecutorService(ExecutorService)
+     */
+    public PngEncoder withExecutorService(ExecutorService executorService) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code fairShareSchedulingWeight}.
+     * The new PngEncoder will use the provided {@code fairShareSchedulingWeight}.
+     * <p>
+     * With a weight of 1 or more the segments of multithreaded compression pass a JVM-wide scheduler, which caps the
+     * number of segments in flight across all encodes and admits segments of the waiting encodes round-robin. An
+     * encode with weight n gets up to n segments admitted per turn. This keeps a small image from waiting behind the
+     * segments of huge ones. With a weight of 0, which is the default, segments are submitted directly.
+     *
+     * @param fairShareSchedulingWeight 0 to disable fair share scheduling, otherwise the weight of the encode
+     * @return a new PngEncoder
+     * @see #setFairShareMaxInFlightSegments(int)
+     */
+    public PngEncoder withFairShareSchedulingWeight(int fairShareSchedulingWeight) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code statisticsListener}.
+     * The new PngEncoder will pass the statistics of every encode to the provided {@code statisticsListener}.
+     *
+     * @param statisticsListener called in the encoding thread after every encode, or null for none
+     * @return a new PngEncoder
+     */
+    public PngEncoder withStatisticsListener(Consumer<PngEncoderStatistics> statisticsListener) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code threadLocalScratchEnabled}.
+     * When enabled, the row buffers, the deflater and the segment tasks of an encode are kept per thread and reused by
+     * the next encode on the same thread. Repeated encodes of images with the same width then allocate close to
+     * nothing, which takes load off the garbage collector. Each thread that has encoded an image keeps that state
+     * though, so this pays off for a limited number of encoding threads. The default is false.
+     *
+     * @param threadLocalScratchEnabled true to reuse the temporary state of an encode per thread
+     * @return a new PngEncoder
+     */
+    public PngEncoder withThreadLocalScratchEnabled(boolean threadLocalScratchEnabled) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code compressor}.
+     * The new PngEncoder will compress the image data with the provided {@code compressor}.
+     * <p>
+     * The default is {@link PngEncoderCompressor#deflater()}. {@link PngEncoderCompressor#fast()} is a pure Java
+     * alternative between compression level 0 and 1, for encodes where latency matters more than size.
+     *
+     * @param compressor the compressor to use
+     * @return a new PngEncoder
+     */
+    public PngEncoder withCompressor(PngEncoderCompressor compressor) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code deflateStrategy}.
+     * The new PngEncoder will use the provided {@code deflateStrategy} with the default compressor.
+     * <p>
+     * {@link PngEncoderDeflateStrategy#FILTERED} often compresses predictor encoded photographs a little better, and
+     * {@link PngEncoderDeflateStrategy#HUFFMAN_ONLY} is much faster for noisy images at about the same size. Both
+     * compress flat and repetitive images clearly worse though. {@link PngEncoderDeflateStrategy#AUTO} samples every
+     * segment and chooses per segment. Run {@code PngEncoderBenchmarkCompressionSpeedVsSize} for the numbers. The
+     * default is {@link PngEncoderDeflateStrategy#DEFAULT}. Has no effect with other compressors or compression
+     * level 0.
+     *
+     * @param deflateStrategy the strategy of the deflater
+     * @return a new PngEncoder
+     */
+    public PngEncoder withDeflateStrategy(PngEncoderDeflateStrategy deflateStrategy) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code optimizationEffort}.
+     * The new PngEncoder will try several configurations and keep the smallest result, like optipng does.
+     * <p>
+     * The candidates are encoded at the same time on the executor service of the multithreaded compression, each in
+     * a single thread. They combine filter strategies, deflate strategies, compression levels and indexed encoding on
+     * and off, the more the higher the effort:
+     * <ul>
+     * <li>1: the NONE, SAMPLED and MIN_SUM filter strategies and the DEFAULT and FILTERED deflate strategies at level
+     * 9, 6 candidates</li>
+     * <li>2: additionally the ENTROPY, UP, PAETH and TRIAL_DEFLATE filter strategies, HUFFMAN_ONLY and indexed
+     * encoding, up to 24 candidates</li>
+     * <li>3: additionally the levels 6 to 8, up to 72 candidates</li>
+     * </ul>
+     * Candidates that would encode the same bytes as another one are left out. Indexed images are only tried with the
+     * indexed filter strategy, and HUFFMAN_ONLY only at level 9.
+     * Every candidate keeps its encoded image in memory until all are done. The candidate that won is reported by
+     * {@link PngEncoderStatistics#getOptimizationWinner()}. Meant for images that are encoded once and downloaded
+     * many times. The default is 0, which encodes with this configuration only.
+     *
+     * @param optimizationEffort 0 to disable, up to {@link #MAX_OPTIMIZATION_EFFORT} for the most candidates
+     * @return a new PngEncoder
+     */
+    public PngEncoder withOptimizationEffort(int optimizationEffort) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code parallelism}.
+     * The new PngEncoder will plan the segments of multithreaded compression for the provided {@code parallelism}.
+     * <p>
+     * By default the segments are planned per encode from the idle threads of the executor service and from how fast
+     * earlier segments of the same compressor, compression level and predictor setting were compressed. Each worker
+     * gets a few segments so that fast and slow segments even out, and no segment is so short that the overhead of
+     * handing it over dominates. Set the parallelism when the executor service cannot tell, e.g. when it is shared
+     * with other work or limited by a CPU quota. The segments then depend on the image size and the settings only.
+     * A parallelism of 1 compresses on the calling thread.
+     *
+     * @param parallelism 0 to plan from the executor service, otherwise the number of threads to plan for
+     * @return a new PngEncoder
+     */
+    public PngEncoder withParallelism(int parallelism) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code deadline}.
+     * The new PngEncoder will try to finish every encode within the provided {@code deadline}.
+     * <p>
+     * The image data is compressed in segments, each of them an independent run of the compressor. Before a segment
+     * is started, the time it and the remaining segments would take at the current compression level is estimated
+     * from how fast segments were compressed before. If that would miss the deadline, the rest of the image is
+     * compressed with the highest level that still makes it, or level 1 if none does. The level is never raised
+     * again within an encode. The levels of all segments are reported by
+     * {@link PngEncoderStatistics#getSegmentCompressionLevels()}.
+     * <p>
+     * This is best effort: the deadline is not enforced, and a segment that has been started is never interrupted.
+     * Only the default compressor gets faster at lower levels. Images are always compressed in segments with a
+     * deadline, even single threaded. The default is null, which compresses all segments at the same level.
+     *
+     * @param deadline the time an encode should take at most, or null for none
+     * @return a new PngEncoder
+     */
+    public PngEncoder withDeadline(Duration deadline) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except
+     * {@code deterministicSegmentationEnabled}. When enabled, the segments the image data is compressed in depend on
+     * the image size and the settings only, and are compressed alike whether multithreaded or not. The same image
+     * then encodes to the same bytes on every machine, whatever the number of processors, the executor service, the
+     * load or the {@link #withParallelism(int) parallelism}. The threads only change how fast it is. Use it when the
+     * encoded images are cached or deduplicated by content.
+     * <p>
+     * The segments are planned for a fixed number of threads, so machines with many processors may get less out of
+     * their cores. A {@link #withDeadline(Duration) deadline} still changes the bytes, as it depends on time. The
+     * Deflater itself is assumed to give the same result on all machines, which holds for the same zlib. The default
+     * is false.
+     *
+     * @param deterministicSegmentationEnabled true to make the output independent of the threads
+     * @return a new PngEncoder
+     */
+    public PngEncoder withDeterministicSegmentationEnabled(boolean deterministicSegmentationEnabled) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline, deterministicSegmentationEnabled,
+                filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code filterStrategy}, and with
+     * predictor encoding enabled.
+     * <p>
+     * The strategy trades speed for size. A fixed filter such as {@link PngEncoderFilterStrategy#UP} or
+     * {@link PngEncoderFilterStrategy#PAETH} only computes that filter and is about four times as fast as the default
+     * {@link PngEncoderFilterStrategy#MIN_SUM}. {@link PngEncoderFilterStrategy#ENTROPY} and
+     * {@link PngEncoderFilterStrategy#TRIAL_DEFLATE} choose the filter of every row more carefully, at a higher cost.
+     * {@link PngEncoderFilterStrategy#NONE} gives the same output as no predictor encoding.
+     *
+     * @param filterStrategy how the filter of every row is chosen
+     * @return a new PngEncoder
+     */
+    public PngEncoder withFilterStrategy(PngEncoderFilterStrategy filterStrategy) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, true, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline, deterministicSegmentationEnabled,
+                filterStrategy, indexedFilterStrategy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code indexedFilterStrategy}.
+     * <p>
+     * The rows of an indexed image hold palette indices, which are usually not related the way neighbouring color
+     * values are. So the PNG specification recommends {@link PngEncoderFilterStrategy#NONE} for them, the default.
+     * Palettes sorted by color, like the gray levels or the ramps of a heat map, can still come out smaller with a
+     * filter.
+     *
+     * @param indexedFilterStrategy how the filter of every row of an indexed image is chosen
+     * @return a new PngEncoder
+     */
+    public PngEncoder withIndexedFilterStrategy(PngEncoderFilterStrategy indexedFilterStrategy) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
+                physicalPixelDimensions, usePredictorEncoding, tryIndexedEncoding, dictionaryChainingEnabled,
+                executorService, fairShareSchedulingWeight, statisticsListener, threadLocalScratchEnabled,
+                compressor, deflateStrategy, optimizationEffort, parallelism, deadline,
+                deterministicSegmentationEnabled, filterStrategy, indexedFilterStrategy);
     }
 
     public BufferedImage getBufferedImage() {
@@ -153,6 +490,131 @@ public class PngEncoder {
         return srgbRenderingIntent;
     }
 
+    public PngEncoderPhysicalPixelDimensions getPhysicalPixelDimensions() {
+        return physicalPixelDimensions;
+    }
+
+    public boolean isTryIndexedEncodingEnabled() {
+        return tryIndexedEncoding;
+    }
+
+    public boolean isDictionaryChainingEnabled() {
+        return dictionaryChainingEnabled;
+    }
+
+    /**
+     * @return the executor service set with {@link #withExecutorService(ExecutorService)}, or null if the default one is used.
+     */
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public int getFairShareSchedulingWeight() {
+        return fairShareSchedulingWeight;
+    }
+
+    public Consumer<PngEncoderStatistics> getStatisticsListener() {
+        return statisticsListener;
+    }
+
+    public boolean isThreadLocalScratchEnabled() {
+        return threadLocalScratchEnabled;
+    }
+
+    public PngEncoderCompressor getCompressor() {
+        return compressor;
+    }
+
+    public PngEncoderDeflateStrategy getDeflateStrategy() {
+        return deflateStrategy;
+    }
+
+    public int getOptimizationEffort() {
+        return optimizationEffort;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public Duration getDeadline() {
+        return deadline;
+    }
+
+    public boolean isDeterministicSegmentationEnabled() {
+        return deterministicSegmentationEnabled;
+    }
+
+    /**
+     * @return how the filter of every row is chosen when predictor encoding is enabled
+     */
+    public PngEncoderFilterStrategy getFilterStrategy() {
+        return filterStrategy;
+    }
+
+    /**
+     * @return how the filter of every row of an indexed image is chosen
+     */
+    public PngEncoderFilterStrategy getIndexedFilterStrategy() {
+        return indexedFilterStrategy;
+    }
+
+    /**
+     * Sets how many segments, over all encodes with fair share scheduling, may be compressed at the same time.
+     * The default is twice the number of available processors.
+     *
+     * @param maxInFlightSegments the maximum number of admitted segments (must be 1 or greater)
+     */
+    public static void setFairShareMaxInFlightSegments(int maxInFlightSegments) {
+        PngEncoderDeflaterScheduler.getInstance().setMaxInFlightSegments(maxInFlightSegments);
+    }
+
+    /**
+     * Sets the executor service used for multithreaded compression by all encoders that have no executor service of
+     * their own. By default a JVM-wide fixed pool with one daemon thread per available processor is used.
+     *
+     * @param executorService the new default executor service, or null to restore the built-in pool
+     */
+    public static void setDefaultExecutorService(ExecutorService executorService) {
+        PngEncoderDeflaterExecutorService.setDefault(executorService);
+    }
+
+    /**
+     * Sets how many bytes the JVM-wide pool of segment buffers may hold. Multithreaded encodes borrow their buffers
+     * from this pool and give them back when done, so that the buffers can be reused by later encodes. The default
+     * is a sixteenth of the maximum heap size, but no more than 256 MB.
+     *
+     * @param maxBytes the maximum number of pooled bytes (0 disables pooling)
+     */
+    public static void setBufferPoolMaxBytes(long maxBytes) {
+        PngEncoderDeflaterBufferCache.getInstance().setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Sets how long a buffer may stay unused in the JVM-wide pool of segment buffers before it is evicted. Eviction
+     * happens when buffers are given back to the pool, there is no background thread. The default is 60 seconds.
+     *
+     * @param idleTimeout the idle timeout (must be positive)
+     */
+    public static void setBufferPoolIdleTimeout(Duration idleTimeout) {
+        PngEncoderVerificationUtil.verifyBufferPoolIdleTimeout(idleTimeout);
+        PngEncoderDeflaterBufferCache.getInstance().setIdleTimeoutNanos(idleTimeout.toNanos());
+    }
+
+    /**
+     * Removes all buffers from the JVM-wide pool of segment buffers.
+     */
+    public static void clearBufferPool() {
+        PngEncoderDeflaterBufferCache.getInstance().clear();
+    }
+
+    /**
+     * @return a snapshot of the counters of the JVM-wide pool of segment buffers.
+     */
+    public static PngEncoderBufferPoolStatistics getBufferPoolStatistics() {
+        return new PngEncoderBufferPoolStatistics(PngEncoderDeflaterBufferCache.getInstance());
+    }
+
     /**
      * Encodes the image to outputStream.
      *
@@ -162,9 +624,12 @@ public class PngEncoder {
      */
     public int toStream(OutputStream outputStream) {
         try {
-            return PngEncoderLogic.encode(bufferedImage, outputStream, compressionLevel,
-                    multiThreadedCompressionEnabled, srgbRenderingIntent, physicalPixelDimensions,
-                    isPredictorEncodingEnabled(), tryIndexedEncoding);
+            PngEncoderStatistics statistics = new PngEncoderStatistics();
+            int count = PngEncoderLogic.encode(this, outputStream, statistics);
+            if (statisticsListener != null) {
+                statisticsListener.accept(statistics);
+            }
+            return count;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -0,0 +1,66 @@
+package com.pngencoder;
+
+/**
+ * A snapshot of the counters of the JVM-wide segment buffer pool shared by all multithreaded encodes.
+ * <p>
+ * Get it with {@link PngEncoder#getBufferPoolStatistics()}. All counters start at JVM start.
+ */
+public class PngEncoderBufferPoolStatistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long discardCount;
+    private final long cachedBytes;
+    private final long maxBytes;
+
+    PngEncoderBufferPoolStatistics(PngEncoderDeflaterBufferCache cache) {
+        this.hitCount = cache.getHitCount();
+        this.missCount = cache.getMissCount();
+        this.evictionCount = cache.getEvictionCount();
+        this.discardCount = cache.getDiscardCount();
+        this.cachedBytes = cache.getCachedBytes();
+        this.maxBytes = cache.getMaxBytes();
+    }
+
+    /**
+     * @return the number of buffers that were reused from the pool.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of buffers that had to be allocated because the pool had none of the right size.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of buffers removed from the pool because they were idle for longer than the idle timeout.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the number of buffers not taken into the pool because it was full.
+     */
+    public long getDiscardCount() {
+        return discardCount;
+    }
+
+    /**
+     * @return the number of bytes currently held by the pool.
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * @return the maximum number of bytes the pool may hold.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
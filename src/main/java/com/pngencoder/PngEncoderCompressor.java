@@ -0,0 +1,101 @@
+package com.pngencoder;
+
+/**
+ * Compresses the image data of a PNG into raw deflate blocks. Selected per encoder with
+ * {@link PngEncoder#withCompressor(PngEncoderCompressor)}.
+ * <p>
+ * The image data is compressed in segments, which are possibly compressed in parallel and concatenated in order.
+ * The zlib header and the Adler-32 checksum are taken care of by the encoder.
+ * <p>
+ * This is a class and not an interface as it is called for every segment, see
+ * {@link PngEncoderScanlineUtil.AbstractPNGLineConsumer}. Implementations must be thread safe.
+ */
+public abstract class PngEncoderCompressor {
+    // How fast segments have been compressed, to plan the segments of later encodes.
+    final PngEncoderSegmentPlanner.ThroughputModel throughputModel = new PngEncoderSegmentPlanner.ThroughputModel();
+
+    /**
+     * @return the compressor using {@link java.util.zip.Deflater}, which is the default. Compression level 0 is
+     * written as stored blocks without a Deflater.
+     */
+    public static PngEncoderCompressor deflater() {
+        return PngEncoderDeflaterCompressor.INSTANCE;
+    }
+
+    /**
+     * A pure Java greedy LZ77 with fixed Huffman codes, which checks for runs first as they are common in filtered
+     * image data. Faster than the Deflater at level 1, in exchange for larger files. Compression levels other than 0,
+     * which writes stored blocks, make no difference.
+     *
+     * @return the fast compressor
+     */
+    public static PngEncoderCompressor fast() {
+        return PngEncoderFastCompressor.INSTANCE;
+    }
+
+    /**
+     * @return the optimal parsing compressor with {@value PngEncoderOptimalCompressor#DEFAULT_ITERATION_COUNT}
+     * iterations, see {@link #optimal(int)}
+     */
+    public static PngEncoderCompressor optimal() {
+        return OptimalHolder.INSTANCE;
+    }
+
+    /**
+     * A pure Java deflate with optimal parsing and block splitting, in the spirit of Zopfli. Every segment is parsed
+     * again and again, each time with the Huffman codes the previous parse would get, and split into blocks with
+     * their own codes. The files are a few percent smaller than with the Deflater at level 9, but encoding takes in
+     * the order of a hundred times longer. Meant for build time asset pipelines, where multithreaded compression
+     * spreads the cost over all cores. Compression levels other than 0, which writes stored blocks, make no
+     * difference.
+     *
+     * @param iterationCount the number of times each block is parsed, more gives smaller files up to a point
+     * @return an optimal parsing compressor
+     */
+    public static PngEncoderCompressor optimal(int iterationCount) {
+        return new PngEncoderOptimalCompressor(PngEncoderVerificationUtil.verifyIterationCount(iterationCount));
+    }
+
+    private static class OptimalHolder {
+        static final PngEncoderCompressor INSTANCE = new PngEncoderOptimalCompressor(PngEncoderOptimalCompressor.DEFAULT_ITERATION_COUNT);
+    }
+
+    /**
+     * Compresses one segment.
+     * <p>
+     * Unless it is the last segment, the output must end on a byte boundary without a final block, like
+     * {@link java.util.zip.Deflater#SYNC_FLUSH} does. The last segment must end with a final block.
+     *
+     * @param input            the bytes to compress
+     * @param inputOffset      the offset of the segment in input
+     * @param inputLength      the length of the segment
+     * @param dictionary       the bytes preceding the segment starting at index 0, or null. Only the last 32 KB may be
+     *                         referred to. Compressors are free to ignore it.
+     * @param dictionaryLength the number of bytes in dictionary
+     * @param output           the array to write the deflate blocks to. Has room for at least
+     *                         {@link #getMaxCompressedLength(int)} bytes.
+     * @param outputOffset     the offset in output to start writing at
+     * @param compressionLevel the compression level of the encoder
+     * @param lastSegment      true if this is the last segment
+     * @return the number of bytes written to output
+     */
+    public abstract int compress(byte[] input, int inputOffset, int inputLength, byte[] dictionary, int dictionaryLength,
+            byte[] output, int outputOffset, int compressionLevel, boolean lastSegment);
+
+    /**
+     * @param inputLength the length of a segment
+     * @return the number of bytes the compressed segment takes at most, which is the size of stored blocks
+     */
+    public static int getMaxCompressedLength(int inputLength) {
+        return PngEncoderStoredBlocks.getMaxLength(inputLength);
+    }
+
+    /**
+     * Writes the segment as stored blocks, e.g. for compression level 0 or when the compressed data would be larger.
+     *
+     * @return the number of bytes written to output
+     */
+    protected static int compressStored(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset, boolean lastSegment) {
+        return PngEncoderStoredBlocks.write(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+    }
+}
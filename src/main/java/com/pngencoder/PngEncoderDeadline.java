@@ -0,0 +1,123 @@
+package com.pngencoder;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Chooses the compression level of every segment of an encode with a deadline, see
+ * {@link PngEncoder#withDeadline(Duration)}.
+ * <p>
+ * Before a segment is submitted, the time the unfinished segments and the rest of the image take is estimated from
+ * the {@link PngEncoderSegmentPlanner.ThroughputModel} of the compressor. If the current level would miss the
+ * deadline, the highest cheaper level that makes it is used for the rest of the image. Only used by the thread
+ * writing the stream.
+ */
+final class PngEncoderDeadline {
+    // The time per byte of the Deflater on image data relative to level 1, roughly. Levels that have not been
+    // measured yet are estimated from a measured one with these ratios.
+    private static final double[] RELATIVE_NANOS_PER_BYTE = {0.2, 1, 1.1, 1.3, 1.6, 2.2, 3, 3.6, 4.5, 5};
+
+    // Keeps the arithmetic on System.nanoTime() from overflowing with absurdly long deadlines.
+    private static final long MAX_DEADLINE_NANOS = Long.MAX_VALUE / 4;
+
+    private final long deadlineNanos;
+    private final int parallelism;
+    private final PngEncoderSegmentPlanner.ThroughputModel throughputModel;
+    private final boolean usePredictorEncoding;
+    private int compressionLevel;
+    private long remainingBytes;
+    private long unfinishedBytes;
+    private int[] segmentCompressionLevels;
+    private int segmentCount;
+
+    /**
+     * @param startNanos     the {@link System#nanoTime()} the encode started at
+     * @param remainingBytes the estimated length of the image data
+     * @param parallelism    the number of threads compressing the segments
+     */
+    PngEncoderDeadline(long startNanos, Duration deadline, int compressionLevel, long remainingBytes, int parallelism,
+            PngEncoderSegmentPlanner.ThroughputModel throughputModel, boolean usePredictorEncoding) {
+        this.deadlineNanos = startNanos + toNanosSaturated(deadline);
+        this.parallelism = parallelism;
+        this.throughputModel = throughputModel;
+        this.usePredictorEncoding = usePredictorEncoding;
+        // The Deflater takes the default level as 6.
+        this.compressionLevel = compressionLevel == -1 ? 6 : compressionLevel;
+        this.remainingBytes = remainingBytes;
+        this.unfinishedBytes = 0;
+        this.segmentCompressionLevels = new int[16];
+        this.segmentCount = 0;
+    }
+
+    private static long toNanosSaturated(Duration duration) {
+        if (duration.getSeconds() >= MAX_DEADLINE_NANOS / 1_000_000_000L) {
+            return MAX_DEADLINE_NANOS;
+        }
+        return duration.toNanos();
+    }
+
+    /**
+     * @param segmentLength the length of the segment about to be submitted
+     * @return the compression level for the segment
+     */
+    int nextSegment(int segmentLength) {
+        if (compressionLevel > 1) {
+            compressionLevel = chooseCompressionLevel(deadlineNanos - System.nanoTime());
+        }
+        remainingBytes = Math.max(0, remainingBytes - segmentLength);
+        unfinishedBytes += segmentLength;
+        if (segmentCount == segmentCompressionLevels.length) {
+            segmentCompressionLevels = Arrays.copyOf(segmentCompressionLevels, segmentCount * 2);
+        }
+        segmentCompressionLevels[segmentCount++] = compressionLevel;
+        return compressionLevel;
+    }
+
+    /**
+     * @param segmentLength the length of a segment that has been compressed and written
+     */
+    void onSegmentFinished(int segmentLength) {
+        unfinishedBytes -= segmentLength;
+    }
+
+    private int chooseCompressionLevel(long remainingNanos) {
+        final double currentNanosPerByte = getNanosPerByte(compressionLevel);
+        if (currentNanosPerByte == 0) {
+            // Nothing measured yet, so there is no telling.
+            return compressionLevel;
+        }
+        for (int level = compressionLevel; level > 1; level--) {
+            final double nanos = (unfinishedBytes * currentNanosPerByte + remainingBytes * getNanosPerByte(level)) / parallelism;
+            if (nanos <= remainingNanos) {
+                return level;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the measured time per byte of the level, estimated from another level if needed, or 0 if no level has
+     * been measured yet
+     */
+    double getNanosPerByte(int level) {
+        final double measured = getThroughput(level).getNanosPerByte();
+        if (measured > 0) {
+            return measured;
+        }
+        for (int other = 9; other >= 0; other--) {
+            final double otherMeasured = getThroughput(other).getNanosPerByte();
+            if (otherMeasured > 0) {
+                return otherMeasured * RELATIVE_NANOS_PER_BYTE[level] / RELATIVE_NANOS_PER_BYTE[other];
+            }
+        }
+        return 0;
+    }
+
+    PngEncoderSegmentPlanner.Throughput getThroughput(int level) {
+        return throughputModel.get(level, usePredictorEncoding);
+    }
+
+    int[] getSegmentCompressionLevels() {
+        return Arrays.copyOf(segmentCompressionLevels, segmentCount);
+    }
+}
@@ -0,0 +1,621 @@
+package com.pngencoder;
+
+import java.util.Arrays;
+
+/**
+ * Writes deflate blocks for compressors that do their own LZ77 parsing, see {@link PngEncoderOptimalCompressor}.
+ * <p>
+ * A block is given as {@link Symbols}: literals, and matches of a length and a distance. The writer counts them and
+ * writes the block with Huffman codes fitted to the counts, with the fixed codes or stored, whichever is the
+ * smallest. The same counts give the size of a block without writing it, which is what block splitting needs.
+ * <p>
+ * Every thread needs its own instance, as it keeps the counts and codes of the current block.
+ * <p>
+ * https://www.rfc-editor.org/rfc/rfc1951#section-3.2.7
+ */
+final class PngEncoderDeflateBlockWriter {
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 258;
+    static final int END_OF_BLOCK = 256;
+
+    // 286 codes are used, the fixed codes define 288.
+    static final int LITERAL_LENGTH_CODE_COUNT = 288;
+    static final int DISTANCE_CODE_COUNT = 30;
+    private static final int CODE_LENGTH_CODE_COUNT = 19;
+
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int MAX_CODE_LENGTH_CODE_LENGTH = 7;
+
+    private static final int BLOCK_TYPE_STORED = 0;
+    private static final int BLOCK_TYPE_FIXED = 1;
+    private static final int BLOCK_TYPE_DYNAMIC = 2;
+
+    // The order in which the code lengths of the code length code are written.
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA_BITS = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+    // The length code index per match length.
+    private static final byte[] LENGTH_INDEX = new byte[MAX_MATCH + 1];
+    // The distance code of distance - 1, for distances up to 256 and in steps of 128 above, just like zlib.
+    private static final byte[] DISTANCE_CODES_SMALL = new byte[256];
+    private static final byte[] DISTANCE_CODES_LARGE = new byte[256];
+
+    private static final int[] FIXED_LITERAL_LENGTH_LENGTHS = new int[LITERAL_LENGTH_CODE_COUNT];
+    private static final int[] FIXED_DISTANCE_LENGTHS = new int[DISTANCE_CODE_COUNT];
+
+    static {
+        for (int index = 0; index < LENGTH_BASE.length; index++) {
+            final int end = index + 1 < LENGTH_BASE.length ? LENGTH_BASE[index + 1] : MAX_MATCH + 1;
+            for (int length = LENGTH_BASE[index]; length < end; length++) {
+                LENGTH_INDEX[length] = (byte) index;
+            }
+        }
+        for (int code = 0; code < DISTANCE_BASE.length; code++) {
+            final int first = DISTANCE_BASE[code] - 1;
+            final int end = first + (1 << DISTANCE_EXTRA_BITS[code]);
+            for (int distanceMinusOne = first; distanceMinusOne < end; distanceMinusOne++) {
+                if (distanceMinusOne < 256) {
+                    DISTANCE_CODES_SMALL[distanceMinusOne] = (byte) code;
+                } else {
+                    DISTANCE_CODES_LARGE[distanceMinusOne >> 7] = (byte) code;
+                }
+            }
+        }
+        for (int symbol = 0; symbol < LITERAL_LENGTH_CODE_COUNT; symbol++) {
+            FIXED_LITERAL_LENGTH_LENGTHS[symbol] = symbol < 144 ? 8 : symbol < 256 ? 9 : symbol < 280 ? 7 : 8;
+        }
+        Arrays.fill(FIXED_DISTANCE_LENGTHS, 5);
+    }
+
+    static int getLengthSymbol(int length) {
+        return 257 + LENGTH_INDEX[length];
+    }
+
+    static int getLengthExtraBits(int length) {
+        return LENGTH_EXTRA_BITS[LENGTH_INDEX[length]];
+    }
+
+    static int getDistanceSymbol(int distance) {
+        final int distanceMinusOne = distance - 1;
+        return distanceMinusOne < 256 ? DISTANCE_CODES_SMALL[distanceMinusOne] : DISTANCE_CODES_LARGE[distanceMinusOne >> 7];
+    }
+
+    static int getDistanceExtraBits(int distance) {
+        return DISTANCE_EXTRA_BITS[getDistanceSymbol(distance)];
+    }
+
+    /**
+     * The symbols of an LZ77 parse: a literal has distance 0 and the byte as length.
+     */
+    static class Symbols {
+        private int[] lengths = new int[1024];
+        private int[] distances = new int[1024];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        int getLength(int index) {
+            return lengths[index];
+        }
+
+        int getDistance(int index) {
+            return distances[index];
+        }
+
+        /**
+         * @return the number of bytes the symbol stands for
+         */
+        int getByteLength(int index) {
+            return distances[index] == 0 ? 1 : lengths[index];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void copyFrom(Symbols symbols, int from, int to) {
+            clear();
+            for (int index = from; index < to; index++) {
+                add(symbols.lengths[index], symbols.distances[index]);
+            }
+        }
+
+        void addLiteral(int literal) {
+            add(literal, 0);
+        }
+
+        void addMatch(int length, int distance) {
+            add(length, distance);
+        }
+
+        private void add(int length, int distance) {
+            if (size == lengths.length) {
+                lengths = Arrays.copyOf(lengths, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            lengths[size] = length;
+            distances[size] = distance;
+            size++;
+        }
+
+        /**
+         * Counts the symbols from inclusive to exclusive, plus the end of block.
+         */
+        void count(int from, int to, int[] literalLengthCounts, int[] distanceCounts) {
+            Arrays.fill(literalLengthCounts, 0);
+            Arrays.fill(distanceCounts, 0);
+            for (int index = from; index < to; index++) {
+                final int distance = distances[index];
+                if (distance == 0) {
+                    literalLengthCounts[lengths[index]]++;
+                } else {
+                    literalLengthCounts[getLengthSymbol(lengths[index])]++;
+                    distanceCounts[getDistanceSymbol(distance)]++;
+                }
+            }
+            literalLengthCounts[END_OF_BLOCK] = 1;
+        }
+    }
+
+    private final BitWriter bitWriter = new BitWriter();
+    private final int[] literalLengthCounts = new int[LITERAL_LENGTH_CODE_COUNT];
+    private final int[] distanceCounts = new int[DISTANCE_CODE_COUNT];
+    private final int[] literalLengthLengths = new int[LITERAL_LENGTH_CODE_COUNT];
+    private final int[] distanceLengths = new int[DISTANCE_CODE_COUNT];
+    private final int[] literalLengthCodes = new int[LITERAL_LENGTH_CODE_COUNT];
+    private final int[] distanceCodes = new int[DISTANCE_CODE_COUNT];
+    private final int[] codeLengthCounts = new int[CODE_LENGTH_CODE_COUNT];
+    private final int[] codeLengthLengths = new int[CODE_LENGTH_CODE_COUNT];
+    private final int[] codeLengthCodes = new int[CODE_LENGTH_CODE_COUNT];
+    private final int[] allLengths = new int[LITERAL_LENGTH_CODE_COUNT + DISTANCE_CODE_COUNT];
+    private final int[] runLengthSymbols = new int[LITERAL_LENGTH_CODE_COUNT + DISTANCE_CODE_COUNT];
+    private final int[] runLengthExtras = new int[LITERAL_LENGTH_CODE_COUNT + DISTANCE_CODE_COUNT];
+    private final HuffmanScratch huffmanScratch = new HuffmanScratch();
+
+    /**
+     * Starts a new stream of blocks.
+     */
+    void reset() {
+        bitWriter.reset();
+    }
+
+    /**
+     * @return the number of bits the symbols take as a block with Huffman codes fitted to them, or with the fixed
+     * codes if that is smaller
+     */
+    long getBlockBits(Symbols symbols, int from, int to) {
+        symbols.count(from, to, literalLengthCounts, distanceCounts);
+        return Math.min(getDynamicBlockBits(), getFixedBlockBits());
+    }
+
+    /**
+     * Writes the symbols as one block, or as stored blocks if that is smaller.
+     *
+     * @param window    the bytes the symbols were parsed from
+     * @param byteStart the position in window of the first byte of the block
+     * @param lastBlock whether to set BFINAL
+     */
+    void writeBlock(Symbols symbols, int from, int to, byte[] window, int byteStart, boolean lastBlock) {
+        symbols.count(from, to, literalLengthCounts, distanceCounts);
+        int byteLength = 0;
+        for (int index = from; index < to; index++) {
+            byteLength += symbols.getByteLength(index);
+        }
+
+        final long dynamicBits = getDynamicBlockBits();
+        final long fixedBits = getFixedBlockBits();
+        final long storedBits = getStoredBlockBits(byteLength);
+        if (storedBits < dynamicBits && storedBits < fixedBits) {
+            writeStoredBlocks(window, byteStart, byteLength, lastBlock);
+            return;
+        }
+
+        final int blockType;
+        if (dynamicBits < fixedBits) {
+            blockType = BLOCK_TYPE_DYNAMIC;
+            // getDynamicBlockBits left the code lengths of this block behind.
+        } else {
+            blockType = BLOCK_TYPE_FIXED;
+            System.arraycopy(FIXED_LITERAL_LENGTH_LENGTHS, 0, literalLengthLengths, 0, LITERAL_LENGTH_CODE_COUNT);
+            System.arraycopy(FIXED_DISTANCE_LENGTHS, 0, distanceLengths, 0, DISTANCE_CODE_COUNT);
+        }
+        bitWriter.writeBits(lastBlock ? 1 : 0, 1);
+        bitWriter.writeBits(blockType, 2);
+        if (blockType == BLOCK_TYPE_DYNAMIC) {
+            writeOrMeasureTrees(true);
+        }
+        buildCodes(literalLengthLengths, LITERAL_LENGTH_CODE_COUNT, literalLengthCodes);
+        buildCodes(distanceLengths, DISTANCE_CODE_COUNT, distanceCodes);
+
+        for (int index = from; index < to; index++) {
+            final int length = symbols.getLength(index);
+            final int distance = symbols.getDistance(index);
+            if (distance == 0) {
+                bitWriter.writeBits(literalLengthCodes[length], literalLengthLengths[length]);
+            } else {
+                final int lengthIndex = LENGTH_INDEX[length];
+                final int lengthSymbol = 257 + lengthIndex;
+                bitWriter.writeBits(literalLengthCodes[lengthSymbol], literalLengthLengths[lengthSymbol]);
+                bitWriter.writeBits(length - LENGTH_BASE[lengthIndex], LENGTH_EXTRA_BITS[lengthIndex]);
+                final int distanceSymbol = getDistanceSymbol(distance);
+                bitWriter.writeBits(distanceCodes[distanceSymbol], distanceLengths[distanceSymbol]);
+                bitWriter.writeBits(distance - DISTANCE_BASE[distanceSymbol], DISTANCE_EXTRA_BITS[distanceSymbol]);
+            }
+        }
+        bitWriter.writeBits(literalLengthCodes[END_OF_BLOCK], literalLengthLengths[END_OF_BLOCK]);
+    }
+
+    /**
+     * Ends a segment that is not the last one on a byte boundary with an empty stored block, just like a sync flush.
+     */
+    void writeSyncFlush() {
+        bitWriter.writeBits(0, 3);
+        bitWriter.alignToByte();
+        bitWriter.writeBytes(new byte[]{0, 0, -1, -1}, 0, 4);
+    }
+
+    /**
+     * @return the number of bytes written so far, with the last byte padded
+     */
+    int finish() {
+        bitWriter.alignToByte();
+        return bitWriter.size();
+    }
+
+    byte[] getBytes() {
+        return bitWriter.bytes;
+    }
+
+    private void writeStoredBlocks(byte[] window, int byteStart, int byteLength, boolean lastBlock) {
+        int position = byteStart;
+        final int end = byteStart + byteLength;
+        do {
+            final int blockLength = Math.min(PngEncoderStoredBlocks.BLOCK_MAX_LENGTH, end - position);
+            bitWriter.writeBits(lastBlock && position + blockLength == end ? 1 : 0, 1);
+            bitWriter.writeBits(BLOCK_TYPE_STORED, 2);
+            bitWriter.alignToByte();
+            bitWriter.writeBits(blockLength, 16);
+            bitWriter.writeBits(~blockLength & 0xFFFF, 16);
+            bitWriter.writeBytes(window, position, blockLength);
+            position += blockLength;
+        } while (position < end);
+    }
+
+    private long getDynamicBlockBits() {
+        buildCodeLengths(literalLengthCounts, LITERAL_LENGTH_CODE_COUNT - 2, MAX_CODE_LENGTH, literalLengthLengths, huffmanScratch);
+        buildCodeLengths(distanceCounts, DISTANCE_CODE_COUNT, MAX_CODE_LENGTH, distanceLengths, huffmanScratch);
+        return 3 + writeOrMeasureTrees(false) + getDataBits(literalLengthLengths, distanceLengths);
+    }
+
+    private long getFixedBlockBits() {
+        return 3 + getDataBits(FIXED_LITERAL_LENGTH_LENGTHS, FIXED_DISTANCE_LENGTHS);
+    }
+
+    private static long getStoredBlockBits(int byteLength) {
+        // Up to seven bits of padding before the first header.
+        return 7 + (long) PngEncoderStoredBlocks.getMaxLength(byteLength) * 8;
+    }
+
+    private long getDataBits(int[] literalLengthLengths, int[] distanceLengths) {
+        long bits = 0;
+        for (int symbol = 0; symbol < END_OF_BLOCK + 1; symbol++) {
+            bits += (long) literalLengthCounts[symbol] * literalLengthLengths[symbol];
+        }
+        for (int index = 0; index < LENGTH_BASE.length; index++) {
+            bits += (long) literalLengthCounts[257 + index] * (literalLengthLengths[257 + index] + LENGTH_EXTRA_BITS[index]);
+        }
+        for (int symbol = 0; symbol < DISTANCE_CODE_COUNT; symbol++) {
+            bits += (long) distanceCounts[symbol] * (distanceLengths[symbol] + DISTANCE_EXTRA_BITS[symbol]);
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the code lengths of a dynamic block, run length encoded with the code length code.
+     *
+     * @param write false to only measure
+     * @return the number of bits of the code lengths
+     */
+    private int writeOrMeasureTrees(boolean write) {
+        int literalLengthCount = 286;
+        while (literalLengthCount > 257 && literalLengthLengths[literalLengthCount - 1] == 0) {
+            literalLengthCount--;
+        }
+        int distanceCount = DISTANCE_CODE_COUNT;
+        while (distanceCount > 1 && distanceLengths[distanceCount - 1] == 0) {
+            distanceCount--;
+        }
+        final int lengthCount = literalLengthCount + distanceCount;
+        System.arraycopy(literalLengthLengths, 0, allLengths, 0, literalLengthCount);
+        System.arraycopy(distanceLengths, 0, allLengths, literalLengthCount, distanceCount);
+
+        // 16 repeats the previous length 3 to 6 times, 17 and 18 repeat zero 3 to 10 and 11 to 138 times.
+        int runLengthCount = 0;
+        int index = 0;
+        while (index < lengthCount) {
+            final int length = allLengths[index];
+            int run = 1;
+            while (index + run < lengthCount && allLengths[index + run] == length) {
+                run++;
+            }
+            index += run;
+            if (length == 0) {
+                while (run >= 11) {
+                    final int repeat = Math.min(run, 138);
+                    runLengthSymbols[runLengthCount] = 18;
+                    runLengthExtras[runLengthCount++] = repeat - 11;
+                    run -= repeat;
+                }
+                if (run >= 3) {
+                    runLengthSymbols[runLengthCount] = 17;
+                    runLengthExtras[runLengthCount++] = run - 3;
+                    run = 0;
+                }
+            } else {
+                runLengthSymbols[runLengthCount] = length;
+                runLengthExtras[runLengthCount++] = 0;
+                run--;
+                while (run >= 3) {
+                    final int repeat = Math.min(run, 6);
+                    runLengthSymbols[runLengthCount] = 16;
+                    runLengthExtras[runLengthCount++] = repeat - 3;
+                    run -= repeat;
+                }
+            }
+            while (run > 0) {
+                runLengthSymbols[runLengthCount] = length;
+                runLengthExtras[runLengthCount++] = 0;
+                run--;
+            }
+        }
+
+        Arrays.fill(codeLengthCounts, 0);
+        for (int i = 0; i < runLengthCount; i++) {
+            codeLengthCounts[runLengthSymbols[i]]++;
+        }
+        buildCodeLengths(codeLengthCounts, CODE_LENGTH_CODE_COUNT, MAX_CODE_LENGTH_CODE_LENGTH, codeLengthLengths, huffmanScratch);
+        int codeLengthCount = CODE_LENGTH_CODE_COUNT;
+        while (codeLengthCount > 4 && codeLengthLengths[CODE_LENGTH_ORDER[codeLengthCount - 1]] == 0) {
+            codeLengthCount--;
+        }
+
+        int bits = 5 + 5 + 4 + 3 * codeLengthCount;
+        for (int i = 0; i < runLengthCount; i++) {
+            final int symbol = runLengthSymbols[i];
+            bits += codeLengthLengths[symbol] + getCodeLengthExtraBits(symbol);
+        }
+        if (write) {
+            bitWriter.writeBits(literalLengthCount - 257, 5);
+            bitWriter.writeBits(distanceCount - 1, 5);
+            bitWriter.writeBits(codeLengthCount - 4, 4);
+            for (int i = 0; i < codeLengthCount; i++) {
+                bitWriter.writeBits(codeLengthLengths[CODE_LENGTH_ORDER[i]], 3);
+            }
+            buildCodes(codeLengthLengths, CODE_LENGTH_CODE_COUNT, codeLengthCodes);
+            for (int i = 0; i < runLengthCount; i++) {
+                final int symbol = runLengthSymbols[i];
+                bitWriter.writeBits(codeLengthCodes[symbol], codeLengthLengths[symbol]);
+                bitWriter.writeBits(runLengthExtras[i], getCodeLengthExtraBits(symbol));
+            }
+        }
+        return bits;
+    }
+
+    private static int getCodeLengthExtraBits(int symbol) {
+        return symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0;
+    }
+
+    private static class HuffmanScratch {
+        final long[] leaves = new long[LITERAL_LENGTH_CODE_COUNT];
+        final int[] weights = new int[2 * LITERAL_LENGTH_CODE_COUNT];
+        final int[] parents = new int[2 * LITERAL_LENGTH_CODE_COUNT];
+        final int[] depths = new int[2 * LITERAL_LENGTH_CODE_COUNT];
+    }
+
+    /**
+     * Builds the lengths of a Huffman code for the counts, none longer than maxLength.
+     * <p>
+     * Inflaters reject incomplete codes, so at least two symbols get a length, even when they are not used. When the
+     * Huffman code is too deep, the deepest symbols are cut to maxLength and the code is made to fit again by
+     * lengthening the rarest symbols that can take it, which is close enough to optimal for the few codes it happens to.
+     */
+    static void buildCodeLengths(int[] counts, int symbolCount, int maxLength, int[] lengths) {
+        buildCodeLengths(counts, symbolCount, maxLength, lengths, new HuffmanScratch());
+    }
+
+    private static void buildCodeLengths(int[] counts, int symbolCount, int maxLength, int[] lengths, HuffmanScratch scratch) {
+        Arrays.fill(lengths, 0);
+        final long[] leaves = scratch.leaves;
+        int leafCount = 0;
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            if (counts[symbol] != 0) {
+                leaves[leafCount++] = (long) counts[symbol] << 16 | symbol;
+            }
+        }
+        if (leafCount < 2) {
+            final int used = leafCount == 1 ? (int) (leaves[0] & 0xFFFF) : 0;
+            lengths[used] = 1;
+            lengths[used == 0 ? 1 : 0] = 1;
+            return;
+        }
+        Arrays.sort(leaves, 0, leafCount);
+
+        // Two queues: the sorted leaves and the internal nodes, which are created in order of weight.
+        final int[] weights = scratch.weights;
+        final int[] parents = scratch.parents;
+        final int[] depths = scratch.depths;
+        for (int i = 0; i < leafCount; i++) {
+            weights[i] = (int) (leaves[i] >>> 16);
+        }
+        int nextLeaf = 0;
+        int nextNode = leafCount;
+        final int nodeCount = 2 * leafCount - 1;
+        for (int node = leafCount; node < nodeCount; node++) {
+            int weight = 0;
+            for (int pick = 0; pick < 2; pick++) {
+                final int child;
+                if (nextLeaf < leafCount && (nextNode >= node || weights[nextLeaf] <= weights[nextNode])) {
+                    child = nextLeaf++;
+                } else {
+                    child = nextNode++;
+                }
+                parents[child] = node;
+                weight += weights[child];
+            }
+            weights[node] = weight;
+        }
+        depths[nodeCount - 1] = 0;
+        boolean tooDeep = false;
+        for (int node = nodeCount - 2; node >= 0; node--) {
+            depths[node] = depths[parents[node]] + 1;
+            tooDeep |= node < leafCount && depths[node] > maxLength;
+        }
+        for (int i = 0; i < leafCount; i++) {
+            lengths[(int) (leaves[i] & 0xFFFF)] = Math.min(depths[i], maxLength);
+        }
+        if (tooDeep) {
+            limitCodeLengths(leaves, leafCount, maxLength, lengths);
+        }
+    }
+
+    private static void limitCodeLengths(long[] leaves, int leafCount, int maxLength, int[] lengths) {
+        final long capacity = 1L << maxLength;
+        long used = 0;
+        for (int i = 0; i < leafCount; i++) {
+            used += 1L << (maxLength - lengths[(int) (leaves[i] & 0xFFFF)]);
+        }
+        // Too many short codes: lengthen the rarest symbol of the longest length that can still grow.
+        while (used > capacity) {
+            for (int length = maxLength - 1; length > 0; length--) {
+                final int i = findLeaf(leaves, leafCount, lengths, length, true);
+                if (i >= 0) {
+                    lengths[(int) (leaves[i] & 0xFFFF)]++;
+                    used -= 1L << (maxLength - length - 1);
+                    break;
+                }
+            }
+        }
+        // Room left: shorten the most frequent symbol of the longest length that fits.
+        while (used < capacity) {
+            boolean shortened = false;
+            for (int length = maxLength; length > 1 && !shortened; length--) {
+                if ((1L << (maxLength - length)) <= capacity - used) {
+                    final int i = findLeaf(leaves, leafCount, lengths, length, false);
+                    if (i >= 0) {
+                        lengths[(int) (leaves[i] & 0xFFFF)]--;
+                        used += 1L << (maxLength - length);
+                        shortened = true;
+                    }
+                }
+            }
+            if (!shortened) {
+                break;
+            }
+        }
+    }
+
+    private static int findLeaf(long[] leaves, int leafCount, int[] lengths, int length, boolean rarest) {
+        for (int n = 0; n < leafCount; n++) {
+            final int i = rarest ? n : leafCount - 1 - n;
+            if (lengths[(int) (leaves[i] & 0xFFFF)] == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds the canonical codes for the lengths, bit reversed as deflate writes Huffman codes starting with the most
+     * significant bit.
+     */
+    static void buildCodes(int[] lengths, int symbolCount, int[] codes) {
+        final int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            lengthCounts[lengths[symbol]]++;
+        }
+        lengthCounts[0] = 0;
+        final int[] nextCodes = new int[MAX_CODE_LENGTH + 1];
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCounts[length - 1]) << 1;
+            nextCodes[length] = code;
+        }
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            final int length = lengths[symbol];
+            codes[symbol] = length == 0 ? 0 : Integer.reverse(nextCodes[length]++) >>> (32 - length);
+        }
+    }
+
+    /**
+     * Collects bits starting with the least significant one, as deflate packs them.
+     */
+    private static class BitWriter {
+        private byte[] bytes = new byte[64 * 1024];
+        private int size;
+        private long bits;
+        private int bitCount;
+
+        void reset() {
+            size = 0;
+            bits = 0;
+            bitCount = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeBits(int value, int count) {
+            bits |= (long) value << bitCount;
+            bitCount += count;
+            if (bitCount >= 32) {
+                ensureCapacity(4);
+                bytes[size] = (byte) bits;
+                bytes[size + 1] = (byte) (bits >>> 8);
+                bytes[size + 2] = (byte) (bits >>> 16);
+                bytes[size + 3] = (byte) (bits >>> 24);
+                size += 4;
+                bits >>>= 32;
+                bitCount -= 32;
+            }
+        }
+
+        void alignToByte() {
+            ensureCapacity(4);
+            while (bitCount > 0) {
+                bytes[size++] = (byte) bits;
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+            bits = 0;
+            bitCount = 0;
+        }
+
+        /**
+         * Must be byte aligned.
+         */
+        void writeBytes(byte[] source, int offset, int length) {
+            alignToByte();
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.pngencoder;
+
+import java.util.zip.Deflater;
+
+/**
+ * The strategy of the {@link Deflater}, see {@link PngEncoder#withDeflateStrategy(PngEncoderDeflateStrategy)}.
+ */
+public enum PngEncoderDeflateStrategy {
+    /**
+     * {@link Deflater#DEFAULT_STRATEGY}, the best for images with flat areas and repeated content.
+     */
+    DEFAULT(Deflater.DEFAULT_STRATEGY),
+
+    /**
+     * {@link Deflater#FILTERED}, which prefers Huffman coding over short matches. Meant for data made of small
+     * values with a somewhat random distribution, like predictor encoded photographs.
+     */
+    FILTERED(Deflater.FILTERED),
+
+    /**
+     * {@link Deflater#HUFFMAN_ONLY}, which does not look for matches at all. The fastest, and about as small as the
+     * others for noisy data where matches are rare.
+     */
+    HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY),
+
+    /**
+     * Chooses one of the others per segment, from statistics of a sample of its bytes.
+     */
+    AUTO(-1);
+
+    private final int value;
+
+    PngEncoderDeflateStrategy(int value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the strategy constant of {@link Deflater}, or -1 for {@link #AUTO}
+     */
+    public int getValue() {
+        return value;
+    }
+}
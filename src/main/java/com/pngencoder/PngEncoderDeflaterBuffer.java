@@ -6,9 +6,11 @@ import java.util.Objects;
 import java.util.zip.Adler32;
 
 class PngEncoderDeflaterBuffer {
-    final PngEncoderDeflaterBufferPool pool;
+    // Reassigned when the buffer is handed from the cache to another pool.
+    PngEncoderDeflaterBufferPool pool;
     final byte[] bytes;
     int length;
+    long idleSinceNanos;
 
     PngEncoderDeflaterBuffer(PngEncoderDeflaterBufferPool pool, int maxLength) {
         this.pool = Objects.requireNonNull(pool, "pool");
@@ -0,0 +1,195 @@
+package com.pngencoder;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * JVM-wide cache of segment buffers, shared by all {@link PngEncoderDeflaterBufferPool}s.
+ * <p>
+ * Every multithreaded encode needs a few dozen buffers of some hundred kilobytes. Without the cache they all become
+ * garbage after the encode, and in G1 most of them are humongous allocations. The buffers are grouped in size classes,
+ * eight per power of two, so images of slightly different sizes share the same buffers at the cost of at most 12.5%
+ * unused space.
+ * <p>
+ * The cache never holds more than maxBytes. Buffers that have been idle for longer than the idle timeout are evicted
+ * the next time the cache is used.
+ */
+class PngEncoderDeflaterBufferCache {
+    // Smaller buffers are all put in the smallest size class.
+    static final int SIZE_CLASS_MIN_LENGTH = 1024;
+    private static final int SIZE_CLASS_MIN_SHIFT = 10;
+
+    // Eight size classes per power of two.
+    private static final int SIZE_CLASS_STEPS_SHIFT = 3;
+    private static final int SIZE_CLASS_STEPS = 1 << SIZE_CLASS_STEPS_SHIFT;
+    private static final int SIZE_CLASS_COUNT = (30 - SIZE_CLASS_MIN_SHIFT + 1) * SIZE_CLASS_STEPS + 1;
+
+    // A sixteenth of the heap, but no more than 256 MB.
+    static final long DEFAULT_MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 16, 256L * 1024 * 1024);
+
+    static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static class Holder {
+        private static final PngEncoderDeflaterBufferCache INSTANCE = new PngEncoderDeflaterBufferCache(DEFAULT_MAX_BYTES, DEFAULT_IDLE_TIMEOUT_NANOS);
+    }
+
+    static PngEncoderDeflaterBufferCache getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    static int getSizeClassIndex(int length) {
+        if (length <= SIZE_CLASS_MIN_LENGTH) {
+            return 0;
+        }
+        final int shift = 31 - Integer.numberOfLeadingZeros(length - 1);
+        final int step = (length - 1 - (1 << shift)) >> (shift - SIZE_CLASS_STEPS_SHIFT);
+        return (shift - SIZE_CLASS_MIN_SHIFT) * SIZE_CLASS_STEPS + step + 1;
+    }
+
+    static int getSizeClassLength(int length) {
+        final int sizeClassIndex = getSizeClassIndex(length);
+        if (sizeClassIndex == 0) {
+            return SIZE_CLASS_MIN_LENGTH;
+        }
+        final int shift = SIZE_CLASS_MIN_SHIFT + (sizeClassIndex - 1) / SIZE_CLASS_STEPS;
+        final int step = (sizeClassIndex - 1) % SIZE_CLASS_STEPS;
+        return (1 << shift) + ((step + 1) << (shift - SIZE_CLASS_STEPS_SHIFT));
+    }
+
+    // Each size class is a stack, so the most recently used buffers, which are likely still in the CPU cache, are
+    // reused first and the idle ones sink to the bottom.
+    private final AtomicReferenceArray<ArrayDeque<PngEncoderDeflaterBuffer>> sizeClasses;
+    private final AtomicLong cachedBytes;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+    private final AtomicLong evictionCount;
+    private final AtomicLong discardCount;
+    private final AtomicLong nextEvictionNanos;
+    private volatile long maxBytes;
+    private volatile long idleTimeoutNanos;
+
+    PngEncoderDeflaterBufferCache(long maxBytes, long idleTimeoutNanos) {
+        this.sizeClasses = new AtomicReferenceArray<>(SIZE_CLASS_COUNT);
+        this.cachedBytes = new AtomicLong();
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+        this.evictionCount = new AtomicLong();
+        this.discardCount = new AtomicLong();
+        this.nextEvictionNanos = new AtomicLong(System.nanoTime());
+        this.maxBytes = PngEncoderVerificationUtil.verifyBufferPoolMaxBytes(maxBytes);
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    PngEncoderDeflaterBuffer borrow(PngEncoderDeflaterBufferPool pool, int length) {
+        final int sizeClassIndex = getSizeClassIndex(length);
+        final ArrayDeque<PngEncoderDeflaterBuffer> sizeClass = sizeClasses.get(sizeClassIndex);
+        PngEncoderDeflaterBuffer buffer = null;
+        if (sizeClass != null) {
+            synchronized (sizeClass) {
+                buffer = sizeClass.pollFirst();
+            }
+        }
+        if (buffer == null) {
+            missCount.incrementAndGet();
+            return new PngEncoderDeflaterBuffer(pool, getSizeClassLength(length));
+        }
+        hitCount.incrementAndGet();
+        cachedBytes.addAndGet(-buffer.bytes.length);
+        buffer.pool = pool;
+        return buffer;
+    }
+
+    void giveBack(PngEncoderDeflaterBuffer buffer) {
+        final long nowNanos = System.nanoTime();
+        evictIdleIfDue(nowNanos);
+
+        final int length = buffer.bytes.length;
+        if (cachedBytes.addAndGet(length) > maxBytes) {
+            cachedBytes.addAndGet(-length);
+            discardCount.incrementAndGet();
+            return;
+        }
+        buffer.length = 0;
+        buffer.idleSinceNanos = nowNanos;
+        final ArrayDeque<PngEncoderDeflaterBuffer> sizeClass = getOrCreateSizeClass(getSizeClassIndex(length));
+        synchronized (sizeClass) {
+            sizeClass.offerFirst(buffer);
+        }
+    }
+
+    private ArrayDeque<PngEncoderDeflaterBuffer> getOrCreateSizeClass(int sizeClassIndex) {
+        ArrayDeque<PngEncoderDeflaterBuffer> sizeClass = sizeClasses.get(sizeClassIndex);
+        if (sizeClass == null) {
+            sizeClasses.compareAndSet(sizeClassIndex, null, new ArrayDeque<>());
+            sizeClass = sizeClasses.get(sizeClassIndex);
+        }
+        return sizeClass;
+    }
+
+    private void evictIdleIfDue(long nowNanos) {
+        final long dueNanos = nextEvictionNanos.get();
+        if (nowNanos - dueNanos < 0) {
+            return;
+        }
+        // Looking for idle buffers a few times per idle timeout is plenty. Only one thread does it.
+        if (nextEvictionNanos.compareAndSet(dueNanos, nowNanos + idleTimeoutNanos / 4)) {
+            evictIdle(nowNanos, idleTimeoutNanos);
+        }
+    }
+
+    private void evictIdle(long nowNanos, long idleTimeoutNanos) {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            final ArrayDeque<PngEncoderDeflaterBuffer> sizeClass = sizeClasses.get(i);
+            if (sizeClass == null) {
+                continue;
+            }
+            synchronized (sizeClass) {
+                PngEncoderDeflaterBuffer buffer;
+                while ((buffer = sizeClass.peekLast()) != null && nowNanos - buffer.idleSinceNanos >= idleTimeoutNanos) {
+                    sizeClass.pollLast();
+                    cachedBytes.addAndGet(-buffer.bytes.length);
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        evictIdle(System.nanoTime(), 0);
+    }
+
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = PngEncoderVerificationUtil.verifyBufferPoolMaxBytes(maxBytes);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    void setIdleTimeoutNanos(long idleTimeoutNanos) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.nextEvictionNanos.set(System.nanoTime());
+    }
+
+    long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    long getDiscardCount() {
+        return discardCount.get();
+    }
+}
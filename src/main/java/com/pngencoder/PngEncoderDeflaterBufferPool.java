@@ -1,15 +1,28 @@
 package com.pngencoder;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Objects;
 import java.util.Queue;
 
+/**
+ * The buffers of one {@link PngEncoderDeflaterOutputStream}. Only used by the thread writing to the stream.
+ * <p>
+ * Missing buffers are borrowed from the JVM-wide {@link PngEncoderDeflaterBufferCache}, and {@link #release()} hands
+ * them all back once the stream is done with them.
+ */
 class PngEncoderDeflaterBufferPool {
     private final int bufferMaxLength;
+    private final PngEncoderDeflaterBufferCache cache;
     protected final Queue<PngEncoderDeflaterBuffer> buffers;
 
-    PngEncoderDeflaterBufferPool(int bufferMaxLength) {
+    PngEncoderDeflaterBufferPool(int bufferMaxLength, PngEncoderDeflaterBufferCache cache) {
         this.bufferMaxLength = bufferMaxLength;
-        this.buffers = new LinkedList<>();
+        this.cache = Objects.requireNonNull(cache, "cache");
+        this.buffers = new ArrayDeque<>();
+    }
+
+    PngEncoderDeflaterBufferPool(int bufferMaxLength) {
+        this(bufferMaxLength, PngEncoderDeflaterBufferCache.getInstance());
     }
 
     public int getBufferMaxLength() {
@@ -19,7 +32,7 @@ class PngEncoderDeflaterBufferPool {
     PngEncoderDeflaterBuffer borrow() {
         PngEncoderDeflaterBuffer buffer = buffers.poll();
         if (buffer == null) {
-            buffer = new PngEncoderDeflaterBuffer(this, bufferMaxLength);
+            buffer = cache.borrow(this, bufferMaxLength);
         }
         return buffer;
     }
@@ -29,6 +42,17 @@ class PngEncoderDeflaterBufferPool {
         buffers.offer(buffer);
     }
 
+    /**
+     * Hands all buffers that have been given back to the cache. Buffers that are still borrowed, for example by a task
+     * of a failed encode that is still running, stay with this pool and are never seen by the cache.
+     */
+    void release() {
+        PngEncoderDeflaterBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            cache.giveBack(buffer);
+        }
+    }
+
     int size() {
         return buffers.size();
     }
@@ -0,0 +1,108 @@
+package com.pngencoder;
+
+import java.util.zip.Deflater;
+
+/**
+ * The default compressor, using the thread local {@link Deflater} of the compressing thread.
+ * There is one instance per {@link PngEncoderDeflateStrategy}.
+ */
+final class PngEncoderDeflaterCompressor extends PngEncoderCompressor {
+    // AUTO looks at samples of this many bytes spread over the segment.
+    private static final int SAMPLE_COUNT = 64;
+    private static final int SAMPLE_LENGTH = 64;
+
+    private static final PngEncoderDeflaterCompressor[] INSTANCES = new PngEncoderDeflaterCompressor[PngEncoderDeflateStrategy.values().length];
+
+    static {
+        for (PngEncoderDeflateStrategy strategy : PngEncoderDeflateStrategy.values()) {
+            INSTANCES[strategy.ordinal()] = new PngEncoderDeflaterCompressor(strategy);
+        }
+    }
+
+    static final PngEncoderDeflaterCompressor INSTANCE = getInstance(PngEncoderDeflateStrategy.DEFAULT);
+
+    static PngEncoderDeflaterCompressor getInstance(PngEncoderDeflateStrategy strategy) {
+        return INSTANCES[strategy.ordinal()];
+    }
+
+    private final PngEncoderDeflateStrategy strategy;
+
+    private PngEncoderDeflaterCompressor(PngEncoderDeflateStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    PngEncoderDeflateStrategy getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] dictionary, int dictionaryLength,
+            byte[] output, int outputOffset, int compressionLevel, boolean lastSegment) {
+        if (compressionLevel == 0) {
+            // Stored blocks never refer back, so the dictionary is of no use.
+            return compressStored(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+        }
+        final PngEncoderDeflateStrategy segmentStrategy = strategy == PngEncoderDeflateStrategy.AUTO
+                ? selectStrategy(input, inputOffset, inputLength)
+                : strategy;
+        final Deflater deflater = PngEncoderDeflaterThreadLocalDeflater.getInstance(compressionLevel, segmentStrategy.getValue());
+        if (dictionary != null) {
+            // Prime the deflater with the tail of the previous segment, just like pigz does.
+            // The deflater is raw (nowrap) so no FDICT flag or dictionary id ends up in the stream.
+            final int usedDictionaryLength = Math.min(dictionaryLength, PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_DICTIONARY);
+            deflater.setDictionary(dictionary, dictionaryLength - usedDictionaryLength, usedDictionaryLength);
+        }
+        deflater.setInput(input, inputOffset, inputLength);
+
+        if (lastSegment) {
+            deflater.finish();
+        }
+
+        // The first call of a Deflater with a strategy other than the default only applies the strategy, and may
+        // return before all input is consumed.
+        final int flush = lastSegment ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+        int outputPosition = outputOffset;
+        do {
+            outputPosition += deflater.deflate(output, outputPosition, output.length - outputPosition, flush);
+        } while (!(lastSegment ? deflater.finished() : deflater.needsInput()) && outputPosition < output.length);
+        return outputPosition - outputOffset;
+    }
+
+    /**
+     * Chooses the strategy for {@link PngEncoderDeflateStrategy#AUTO} from a few samples of the segment.
+     * <p>
+     * A byte equal to one of the four before it is a repeat, which covers runs in filtered data as well as repeated
+     * pixels of up to four bytes. Many repeats mean long matches, which need the default strategy. Otherwise, bytes
+     * close to zero are the residuals of the predictor, which FILTERED is meant for. What is left is noise, where
+     * matches are too rare to be worth looking for.
+     */
+    static PngEncoderDeflateStrategy selectStrategy(byte[] input, int offset, int length) {
+        final int step = Math.max(SAMPLE_LENGTH, length / SAMPLE_COUNT);
+        final int end = offset + length;
+        int total = 0;
+        int repeats = 0;
+        int small = 0;
+        for (int sampleStart = offset; sampleStart + SAMPLE_LENGTH <= end; sampleStart += step) {
+            for (int i = sampleStart + 4; i < sampleStart + SAMPLE_LENGTH; i++) {
+                final byte b = input[i];
+                if (b == input[i - 1] || b == input[i - 2] || b == input[i - 3] || b == input[i - 4]) {
+                    repeats++;
+                }
+                if (b >= -8 && b <= 8) {
+                    small++;
+                }
+                total++;
+            }
+        }
+        if (total == 0 || repeats * 2 >= total) {
+            return PngEncoderDeflateStrategy.DEFAULT;
+        }
+        if (small * 2 >= total) {
+            return PngEncoderDeflateStrategy.FILTERED;
+        }
+        if (repeats * 8 < total) {
+            return PngEncoderDeflateStrategy.HUFFMAN_ONLY;
+        }
+        return PngEncoderDeflateStrategy.DEFAULT;
+    }
+}
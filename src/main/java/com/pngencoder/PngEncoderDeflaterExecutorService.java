@@ -14,6 +14,18 @@ class PngEncoderDeflaterExecutorService {
         return Holder.INSTANCE;
     }
 
+    // Replaces the built-in pool as default for all encoders that don't have their own executor service.
+    private static volatile ExecutorService defaultExecutorService;
+
+    static void setDefault(ExecutorService executorService) {
+        defaultExecutorService = executorService;
+    }
+
+    static ExecutorService getDefault() {
+        ExecutorService executorService = defaultExecutorService;
+        return executorService != null ? executorService : getInstance();
+    }
+
     private PngEncoderDeflaterExecutorService() {
     }
 }
@@ -3,24 +3,21 @@ package com.pngencoder;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 // https://tools.ietf.org/html/rfc1950
 // https://stackoverflow.com/questions/9050260/what-does-a-zlib-header-look-like
 // https://www.euccas.me/zlib/
 // https://stackoverflow.com/questions/13132136/java-multithreaded-compression-with-deflater
 class PngEncoderDeflaterOutputStream extends FilterOutputStream {
-    // The maximum amount of queued tasks.
-    // Multiplied because some segments compress faster than others.
-    // A value of 3 seems to keep all threads busy.
-    static final int COUNT_MAX_QUEUED_TASKS = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * 3;
+    // The maximum amount of queued tasks with all threads of the built-in pool available.
+    // See PngEncoderSegmentPlanner for how it is chosen per encode.
+    static final int COUNT_MAX_QUEUED_TASKS = PngEncoderSegmentPlanner.getMaxQueuedSegments(PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS);
 
-    // Enforces writing to underlying stream in main thread.
-    // Multiplied so that not all work is finished before flush to underlying stream.
-    static final int COUNT_MAX_TOTAL_SEGMENTS = COUNT_MAX_QUEUED_TASKS * 3;
+    // The number of segments of large images with all threads of the built-in pool available.
+    static final int COUNT_MAX_TOTAL_SEGMENTS = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * PngEncoderSegmentPlanner.SEGMENTS_PER_THREAD;
 
     // The maximum dictionary size according to the deflate specification.
     // A segment max length lower than this would not allow for future use of dictionary.
@@ -32,33 +29,77 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
     // A lower value would better parallelize images but increase the size overhead.
     static final int SEGMENT_MAX_LENGTH_ORIGINAL_MIN = 128 * 1024;
 
+    // Our minimum segment length when every segment is primed with the tail of the previous one.
+    // The size overhead is then mostly gone, so we can afford to parallelize smaller images.
+    // Must be greater than the dictionary, or the dictionary would have to span several segments.
+    static final int SEGMENT_MAX_LENGTH_ORIGINAL_MIN_DICTIONARY_CHAINING = 64 * 1024;
+
     public static int getSegmentMaxLengthOriginal(int totalOriginalBytesLength) {
-        return Math.max(totalOriginalBytesLength / COUNT_MAX_TOTAL_SEGMENTS, SEGMENT_MAX_LENGTH_ORIGINAL_MIN);
+        return getSegmentMaxLengthOriginal(totalOriginalBytesLength, false);
+    }
+
+    public static int getSegmentMaxLengthOriginal(int totalOriginalBytesLength, boolean dictionaryChainingEnabled) {
+        return PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(totalOriginalBytesLength,
+                PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS, 0, dictionaryChainingEnabled);
+    }
+
+    // Segments of whole rows, so that they can be produced independently of each other.
+    public static int getSegmentMaxLengthOriginalRowAligned(int segmentMaxLengthOriginal, int rowByteSize) {
+        return Math.max(1, segmentMaxLengthOriginal / rowByteSize) * rowByteSize;
     }
 
     public static int getSegmentMaxLengthDeflated(int segmentMaxLengthOriginal) {
-        return segmentMaxLengthOriginal + (segmentMaxLengthOriginal >> 3);
+        // Level 0 segments are stored blocks, which for tiny segments have more overhead than an eighth.
+        return Math.max(segmentMaxLengthOriginal + (segmentMaxLengthOriginal >> 3), PngEncoderStoredBlocks.getMaxLength(segmentMaxLengthOriginal));
     }
 
     private final PngEncoderDeflaterBufferPool pool;
     private final byte[] singleByte;
     private final int compressionLevel;
     private final int segmentMaxLengthOriginal;
-    private final ConcurrentLinkedQueue<CompletableFuture<PngEncoderDeflaterSegmentResult>> resultQueue;
+    private final boolean dictionaryChainingEnabled;
+    private final Executor executor;
+    private final PngEncoderDeflaterScheduler.Client schedulerClient;
+    private final PngEncoderScratch scratch;
+    private final PngEncoderCompressor compressor;
+    private final int maxQueuedTasks;
+    private final PngEncoderSegmentPlanner.Throughput throughput;
+    private final PngEncoderDeadline deadline;
+    // Only used by the thread writing to this stream.
+    private final ArrayDeque<PngEncoderDeflaterSegmentTask> resultQueue;
     private PngEncoderDeflaterBuffer originalSegment;
+    // With dictionary chaining the previous original segment is still in use as dictionary by the latest task.
+    // It is given back when that task has been joined.
+    private PngEncoderDeflaterBuffer previousOriginalSegment;
     private long adler32;
+    // The number of bytes lent out by lease, or -1 if the segment is not lent out.
+    private int leasedLength;
+    private int segmentCount;
+    private boolean lastSegmentSubmitted;
     private boolean finished;
     private boolean closed;
 
-    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool) throws IOException {
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool, boolean dictionaryChainingEnabled, Executor executor, PngEncoderDeflaterScheduler.Client schedulerClient, PngEncoderScratch scratch, PngEncoderCompressor compressor, int maxQueuedTasks, PngEncoderSegmentPlanner.Throughput throughput, PngEncoderDeadline deadline) throws IOException {
         super(Objects.requireNonNull(out, "out"));
         this.pool = Objects.requireNonNull(pool, "pool");
         this.singleByte = new byte[1];
         this.compressionLevel = compressionLevel;
         this.segmentMaxLengthOriginal = segmentMaxLengthOriginal;
-        this.resultQueue = new ConcurrentLinkedQueue<>();
+        this.dictionaryChainingEnabled = dictionaryChainingEnabled;
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.schedulerClient = schedulerClient;
+        this.scratch = Objects.requireNonNull(scratch, "scratch");
+        this.compressor = Objects.requireNonNull(compressor, "compressor");
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.throughput = throughput;
+        this.deadline = deadline;
+        this.resultQueue = new ArrayDeque<>();
         this.originalSegment = pool.borrow();
+        this.previousOriginalSegment = null;
         this.adler32 = 1;
+        this.leasedLength = -1;
+        this.segmentCount = 0;
+        this.lastSegmentSubmitted = false;
         this.finished = false;
         this.closed = false;
         if (pool.getBufferMaxLength() != getSegmentMaxLengthDeflated(segmentMaxLengthOriginal)) {
@@ -67,8 +108,24 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
         writeDeflateHeader(out, compressionLevel);
     }
 
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool, boolean dictionaryChainingEnabled) throws IOException {
+        this(out, compressionLevel, segmentMaxLengthOriginal, pool, dictionaryChainingEnabled, PngEncoderDeflaterExecutorService.getDefault(), null, new PngEncoderScratch(), PngEncoderCompressor.deflater(), COUNT_MAX_QUEUED_TASKS, null, null);
+    }
+
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool) throws IOException {
+        this(out, compressionLevel, segmentMaxLengthOriginal, pool, false);
+    }
+
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, boolean dictionaryChainingEnabled, Executor executor, PngEncoderDeflaterScheduler.Client schedulerClient, PngEncoderScratch scratch, PngEncoderCompressor compressor, int maxQueuedTasks, PngEncoderSegmentPlanner.Throughput throughput, PngEncoderDeadline deadline) throws IOException {
+        this(out, compressionLevel, segmentMaxLengthOriginal, new PngEncoderDeflaterBufferPool(getSegmentMaxLengthDeflated(segmentMaxLengthOriginal)), dictionaryChainingEnabled, executor, schedulerClient, scratch, compressor, maxQueuedTasks, throughput, deadline);
+    }
+
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, boolean dictionaryChainingEnabled) throws IOException {
+        this(out, compressionLevel, segmentMaxLengthOriginal, dictionaryChainingEnabled, PngEncoderDeflaterExecutorService.getDefault(), null, new PngEncoderScratch(), PngEncoderCompressor.deflater(), COUNT_MAX_QUEUED_TASKS, null, null);
+    }
+
     PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal) throws IOException {
-        this(out, compressionLevel, segmentMaxLengthOriginal, new PngEncoderDeflaterBufferPool(getSegmentMaxLengthDeflated(segmentMaxLengthOriginal)));
+        this(out, compressionLevel, segmentMaxLengthOriginal, false);
     }
 
     @Override
@@ -84,9 +141,12 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (finished) {
+        if (finished || lastSegmentSubmitted) {
             throw new IOException("write beyond end of stream");
         }
+        if (leasedLength >= 0) {
+            throw new IllegalStateException("The segment is leased.");
+        }
         if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
             throw new IndexOutOfBoundsException();
         } else if (len == 0) {
@@ -97,7 +157,7 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
             int freeBufCount = segmentMaxLengthOriginal - originalSegment.length;
             if (freeBufCount == 0) {
                 // Submit task if the buffer is full and there still is more to write.
-                joinUntilMaximumQueueSize(COUNT_MAX_QUEUED_TASKS - 1);
+                joinUntilMaximumQueueSize(maxQueuedTasks - 1);
                 submitTask(false);
             } else {
                 int toCopyCount = Math.min(len, freeBufCount);
@@ -109,19 +169,136 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Lends the current segment to write bytes into directly, instead of copying them in with write. The bytes go to
+     * the bytes of the buffer from its length on, and are added to the stream with {@link #commit(int)}. If the bytes
+     * do not fit into the current segment, it is submitted first, so leases of whole rows keep the segments
+     * row aligned.
+     *
+     * @param length the number of bytes to write, at most the maximum segment length
+     * @return the buffer to write into, with room for length bytes after its length
+     */
+    PngEncoderDeflaterBuffer lease(int length) throws IOException {
+        if (finished || lastSegmentSubmitted) {
+            throw new IOException("write beyond end of stream");
+        }
+        if (leasedLength >= 0) {
+            throw new IllegalStateException("The segment is already leased.");
+        }
+        if (length < 0 || length > segmentMaxLengthOriginal) {
+            throw new IllegalArgumentException(String.format("The length must be between 0 and %d, but was %d.", segmentMaxLengthOriginal, length));
+        }
+        if (segmentMaxLengthOriginal - originalSegment.length < length) {
+            joinUntilMaximumQueueSize(maxQueuedTasks - 1);
+            submitTask(false);
+        }
+        leasedLength = length;
+        return originalSegment;
+    }
+
+    /**
+     * Adds the bytes written into the buffer of {@link #lease(int)} to the stream, and ends the lease.
+     *
+     * @param length the number of bytes written, at most the leased length
+     */
+    void commit(int length) {
+        if (leasedLength < 0) {
+            throw new IllegalStateException("The segment is not leased.");
+        }
+        if (length < 0 || length > leasedLength) {
+            throw new IllegalArgumentException(String.format("The length must be between 0 and %d, but was %d.", leasedLength, length));
+        }
+        originalSegment.length += length;
+        leasedLength = -1;
+    }
+
+    /**
+     * Writes a segment of rows that is produced by the worker deflating it, see
+     * {@link PngEncoderDeflaterSegmentProducer}. The rows must fit into one segment, and all bytes written before
+     * must have filled whole segments.
+     *
+     * @param lastSegment true if nothing follows this segment
+     */
+    void writeSegment(PngEncoderDeflaterSegmentProducer producer, int yStart, int rowCount, boolean lastSegment) throws IOException {
+        if (finished || lastSegmentSubmitted) {
+            throw new IOException("write beyond end of stream");
+        }
+        if (originalSegment.length != 0 || leasedLength >= 0) {
+            throw new IllegalStateException("Produced segments must not be mixed with a partially written segment.");
+        }
+        if (rowCount * producer.getRowByteSize() > segmentMaxLengthOriginal) {
+            throw new IllegalArgumentException("The rows do not fit into one segment.");
+        }
+
+        joinUntilMaximumQueueSize(maxQueuedTasks - 1);
+        final int segmentCompressionLevel = getSegmentCompressionLevel(rowCount * producer.getRowByteSize());
+        final PngEncoderDeflaterBuffer deflatedSegment = pool.borrow();
+        final PngEncoderDeflaterSegmentTask task = scratch.borrowSegmentTask()
+                .init(originalSegment, deflatedSegment, null, segmentCompressionLevel, lastSegment)
+                .compressWith(compressor)
+                .measureWith(getThroughput(segmentCompressionLevel))
+                .produceWith(producer, yStart, rowCount, dictionaryChainingEnabled);
+        submitTask(task);
+        originalSegment = pool.borrow();
+        lastSegmentSubmitted = lastSegment;
+    }
+
+    /**
+     * Writes all rows of the producer, in segments of as many rows as fit.
+     */
+    void writeSegments(PngEncoderDeflaterSegmentProducer producer, int height) throws IOException {
+        final int rowsPerSegment = Math.max(1, segmentMaxLengthOriginal / producer.getRowByteSize());
+        for (int y = 0; y < height; y += rowsPerSegment) {
+            final int rowCount = Math.min(rowsPerSegment, height - y);
+            writeSegment(producer, y, rowCount, y + rowCount == height);
+        }
+    }
+
     public void finish() throws IOException {
         if (this.finished) {
             return;
         }
         this.finished = true;
         try {
-            submitTask(true);
+            if (!lastSegmentSubmitted) {
+                submitTask(true);
+            }
             joinUntilMaximumQueueSize(0);
-            out.write(ByteBuffer.allocate(4).putInt((int) adler32).array());
+            out.write((int) (adler32 >> 24) & 0xFF);
+            out.write((int) (adler32 >> 16) & 0xFF);
+            out.write((int) (adler32 >> 8) & 0xFF);
+            out.write((int) adler32 & 0xFF);
             out.flush();
         } finally {
             originalSegment.giveBack();
+            // After a failure the last task may still be reading its dictionary.
+            if (previousOriginalSegment != null && resultQueue.isEmpty()) {
+                previousOriginalSegment.giveBack();
+                previousOriginalSegment = null;
+            }
+            pool.release();
+        }
+    }
+
+    /**
+     * Ends the stream after a failure, without writing the rest of it. Segments the scheduler has not admitted yet are
+     * dropped, and the buffers go back to the cache. Buffers still in use by running tasks are left to them.
+     */
+    void abort() {
+        if (schedulerClient != null) {
+            schedulerClient.cancel();
+        }
+        if (this.finished) {
+            return;
         }
+        this.finished = true;
+        originalSegment.giveBack();
+        // The latest task may still be reading its dictionary.
+        if (previousOriginalSegment != null && resultQueue.isEmpty()) {
+            previousOriginalSegment.giveBack();
+            previousOriginalSegment = null;
+        }
+        pool.release();
     }
 
     @Override
@@ -135,32 +312,71 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
     }
 
     void submitTask(boolean lastSegment) {
+        final int segmentCompressionLevel = getSegmentCompressionLevel(originalSegment.length);
         final PngEncoderDeflaterBuffer deflatedSegment = pool.borrow();
-        final PngEncoderDeflaterSegmentTask task = new PngEncoderDeflaterSegmentTask(originalSegment, deflatedSegment, compressionLevel, lastSegment);
+        final PngEncoderDeflaterBuffer dictionarySegment = dictionaryChainingEnabled ? previousOriginalSegment : null;
+        final PngEncoderDeflaterSegmentTask task = scratch.borrowSegmentTask()
+                .init(originalSegment, deflatedSegment, dictionarySegment, segmentCompressionLevel, lastSegment)
+                .compressWith(compressor)
+                .measureWith(getThroughput(segmentCompressionLevel));
         submitTask(task);
+        if (dictionaryChainingEnabled) {
+            previousOriginalSegment = originalSegment;
+        }
         originalSegment = pool.borrow();
     }
 
+    private int getSegmentCompressionLevel(int segmentLength) {
+        return deadline != null ? deadline.nextSegment(segmentLength) : compressionLevel;
+    }
+
+    private PngEncoderSegmentPlanner.Throughput getThroughput(int segmentCompressionLevel) {
+        return deadline != null ? deadline.getThroughput(segmentCompressionLevel) : throughput;
+    }
+
     void submitTask(PngEncoderDeflaterSegmentTask task) {
-        CompletableFuture<PngEncoderDeflaterSegmentResult> future = CompletableFuture.supplyAsync(task, PngEncoderDeflaterExecutorService.getInstance());
-        resultQueue.offer(future);
+        if (schedulerClient != null) {
+            schedulerClient.execute(task, executor);
+        } else {
+            executor.execute(task);
+        }
+        resultQueue.offer(task);
+        segmentCount++;
+    }
+
+    int getSegmentMaxLengthOriginal() {
+        return segmentMaxLengthOriginal;
+    }
+
+    int getSegmentCount() {
+        return segmentCount;
+    }
+
+    PngEncoderDeflaterScheduler.Client getSchedulerClient() {
+        return schedulerClient;
     }
 
     void joinOne() throws IOException {
-        CompletableFuture<PngEncoderDeflaterSegmentResult> resultFuture = resultQueue.poll();
-        if (resultFuture != null) {
-            final PngEncoderDeflaterSegmentResult result;
-            try {
-                result = resultFuture.join();
-            } catch (RuntimeException e) {
-                throw new IOException("An async segment task failed.", e);
-            }
+        PngEncoderDeflaterSegmentTask task = resultQueue.poll();
+        if (task != null) {
+            final PngEncoderDeflaterSegmentResult result = task.join();
             try {
                 adler32 = result.getUpdatedAdler32(adler32);
                 result.getDeflatedSegment().write(out);
+                if (deadline != null) {
+                    deadline.onSegmentFinished(result.getOriginalSegmentLength());
+                }
             } finally {
-                result.getOriginalSegment().giveBack();
+                // With dictionary chaining the original segment is given back as the dictionary of the next result,
+                // unless the task produced its rows and its dictionary itself.
+                if (!dictionaryChainingEnabled || task.isProducing()) {
+                    result.getOriginalSegment().giveBack();
+                }
+                if (result.getDictionarySegment() != null) {
+                    result.getDictionarySegment().giveBack();
+                }
                 result.getDeflatedSegment().giveBack();
+                scratch.giveBackSegmentTask(task);
             }
         }
     }
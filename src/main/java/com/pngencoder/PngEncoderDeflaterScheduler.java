@@ -0,0 +1,233 @@
+package com.pngencoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission control for segment tasks across all concurrent encodes.
+ * <p>
+ * Every encode queues up to {@link PngEncoderDeflaterOutputStream#COUNT_MAX_QUEUED_TASKS} segments. With many
+ * concurrent encodes a small image ends up waiting behind the queued segments of all the big ones. Encodes that opt in
+ * register a {@link Client} here instead of submitting to the executor directly. Only a limited number of segments are
+ * in flight at any time, and free slots are handed out to the clients round-robin. A client with weight n gets up to n
+ * segments per turn.
+ */
+class PngEncoderDeflaterScheduler {
+    // Twice the number of threads keeps the pool busy while still leaving room for new encodes.
+    static final int DEFAULT_MAX_IN_FLIGHT_SEGMENTS = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * 2;
+
+    private static class Holder {
+        private static final PngEncoderDeflaterScheduler INSTANCE = new PngEncoderDeflaterScheduler(DEFAULT_MAX_IN_FLIGHT_SEGMENTS);
+    }
+
+    static PngEncoderDeflaterScheduler getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private final ArrayDeque<Client> clientsWithPendingTasks;
+    private int maxInFlightSegments;
+    private int inFlightSegments;
+
+    PngEncoderDeflaterScheduler(int maxInFlightSegments) {
+        this.clientsWithPendingTasks = new ArrayDeque<>();
+        this.maxInFlightSegments = PngEncoderVerificationUtil.verifyMaxInFlightSegments(maxInFlightSegments);
+        this.inFlightSegments = 0;
+    }
+
+    void setMaxInFlightSegments(int maxInFlightSegments) {
+        PngEncoderVerificationUtil.verifyMaxInFlightSegments(maxInFlightSegments);
+        synchronized (this) {
+            this.maxInFlightSegments = maxInFlightSegments;
+        }
+        dispatch();
+    }
+
+    synchronized int getMaxInFlightSegments() {
+        return maxInFlightSegments;
+    }
+
+    synchronized int getInFlightSegments() {
+        return inFlightSegments;
+    }
+
+    Client register(int weight) {
+        return new Client(PngEncoderVerificationUtil.verifyFairShareSchedulingWeight(weight));
+    }
+
+    private void dispatch() {
+        List<PendingTask> toExecute = null;
+        synchronized (this) {
+            while (inFlightSegments < maxInFlightSegments && !clientsWithPendingTasks.isEmpty()) {
+                Client client = clientsWithPendingTasks.peekFirst();
+                PendingTask pendingTask = client.pendingTasks.pollFirst();
+                client.credit--;
+                if (client.pendingTasks.isEmpty()) {
+                    clientsWithPendingTasks.pollFirst();
+                } else if (client.credit <= 0) {
+                    // The client used up its turn, let the next one go.
+                    clientsWithPendingTasks.pollFirst();
+                    client.credit = client.weight;
+                    clientsWithPendingTasks.offerLast(client);
+                }
+                client.onDispatch(System.nanoTime() - pendingTask.enqueuedNanos);
+                inFlightSegments++;
+                if (toExecute == null) {
+                    toExecute = new ArrayList<>();
+                }
+                toExecute.add(pendingTask);
+            }
+        }
+        if (toExecute != null) {
+            for (PendingTask pendingTask : toExecute) {
+                execute(pendingTask);
+            }
+        }
+    }
+
+    private void execute(PendingTask pendingTask) {
+        try {
+            pendingTask.executor.execute(pendingTask);
+        } catch (RejectedExecutionException e) {
+            onComplete();
+            pendingTask.fail(e);
+        }
+    }
+
+    private void onComplete() {
+        synchronized (this) {
+            inFlightSegments--;
+        }
+        dispatch();
+    }
+
+    private abstract static class PendingTask implements Runnable {
+        final Executor executor;
+        final long enqueuedNanos;
+
+        PendingTask(Executor executor) {
+            this.executor = executor;
+            this.enqueuedNanos = System.nanoTime();
+        }
+
+        abstract void fail(Throwable t);
+    }
+
+    private class PendingSegmentTask extends PendingTask {
+        final PngEncoderDeflaterSegmentTask task;
+
+        PendingSegmentTask(PngEncoderDeflaterSegmentTask task, Executor executor) {
+            super(executor);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            try {
+                task.get();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // Free the slot before the task signals completion so the counters are settled once it is joined.
+            onComplete();
+            if (failure != null) {
+                task.fail(failure);
+            } else {
+                task.complete();
+            }
+        }
+
+        @Override
+        void fail(Throwable t) {
+            task.fail(t);
+        }
+    }
+
+    /**
+     * The handle of one encode. Keeps the tasks of the encode that have not been admitted yet.
+     */
+    class Client {
+        private final int weight;
+        private final ArrayDeque<PendingTask> pendingTasks;
+        private int credit;
+        private int dispatchedTaskCount;
+        private long totalQueueingDelayNanos;
+        private long maxQueueingDelayNanos;
+
+        private Client(int weight) {
+            this.weight = weight;
+            this.pendingTasks = new ArrayDeque<>();
+            this.credit = weight;
+        }
+
+        /**
+         * Queues the segment task and runs it on the executor once it is admitted. The task signals its own completion.
+         */
+        void execute(PngEncoderDeflaterSegmentTask task, Executor executor) {
+            enqueue(new PendingSegmentTask(task, executor));
+        }
+
+        /**
+         * Drops the tasks that have not been admitted yet, for an encode that failed. They fail without running, so
+         * the slots go to the other clients. Tasks that are running already are left to finish.
+         */
+        void cancel() {
+            final List<PendingTask> cancelledTasks;
+            synchronized (PngEncoderDeflaterScheduler.this) {
+                if (pendingTasks.isEmpty()) {
+                    return;
+                }
+                clientsWithPendingTasks.remove(this);
+                cancelledTasks = new ArrayList<>(pendingTasks);
+                pendingTasks.clear();
+            }
+            for (PendingTask pendingTask : cancelledTasks) {
+                pendingTask.fail(new CancellationException("The encode was aborted."));
+            }
+        }
+
+        private void enqueue(PendingTask pendingTask) {
+            synchronized (PngEncoderDeflaterScheduler.this) {
+                if (pendingTasks.isEmpty()) {
+                    credit = weight;
+                    clientsWithPendingTasks.offerLast(this);
+                }
+                pendingTasks.offerLast(pendingTask);
+            }
+            dispatch();
+        }
+
+        // Called with the scheduler lock held.
+        private void onDispatch(long queueingDelayNanos) {
+            dispatchedTaskCount++;
+            totalQueueingDelayNanos += queueingDelayNanos;
+            maxQueueingDelayNanos = Math.max(maxQueueingDelayNanos, queueingDelayNanos);
+        }
+
+        int getWeight() {
+            return weight;
+        }
+
+        int getDispatchedTaskCount() {
+            synchronized (PngEncoderDeflaterScheduler.this) {
+                return dispatchedTaskCount;
+            }
+        }
+
+        long getTotalQueueingDelayNanos() {
+            synchronized (PngEncoderDeflaterScheduler.this) {
+                return totalQueueingDelayNanos;
+            }
+        }
+
+        long getMaxQueueingDelayNanos() {
+            synchronized (PngEncoderDeflaterScheduler.this) {
+                return maxQueueingDelayNanos;
+            }
+        }
+    }
+}
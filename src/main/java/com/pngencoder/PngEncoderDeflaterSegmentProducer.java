@@ -0,0 +1,30 @@
+package com.pngencoder;
+
+import java.io.IOException;
+
+/**
+ * Produces the bytes of a range of image rows on a worker thread.
+ * <p>
+ * Segments written with {@link PngEncoderDeflaterOutputStream#writeSegment(PngEncoderDeflaterSegmentProducer, int, int, boolean)}
+ * are filled by the worker that deflates them, so the thread writing the stream only has to hand out row ranges.
+ * Producers must be able to produce any row range independently of the others, and produce the same bytes every time.
+ * <p>
+ * This is a class and not an interface for the same reason as {@link PngEncoderScanlineUtil.AbstractPNGLineConsumer}.
+ */
+abstract class PngEncoderDeflaterSegmentProducer {
+    /**
+     * @return the number of bytes per produced row
+     */
+    abstract int getRowByteSize();
+
+    /**
+     * Writes the bytes of rowCount rows starting at yStart to target.
+     *
+     * @param target   destination with room for rowCount rows
+     * @param yStart   the first row
+     * @param rowCount the number of rows
+     * @param scratch  the scratch of the worker thread
+     * @throws IOException if some IO error happens
+     */
+    abstract void produce(byte[] target, int yStart, int rowCount, PngEncoderScratch scratch) throws IOException;
+}
@@ -2,21 +2,40 @@ package com.pngencoder;
 
 import java.util.Objects;
 
+/**
+ * The result of a {@link PngEncoderDeflaterSegmentTask}. Reused together with its task.
+ */
 class PngEncoderDeflaterSegmentResult {
-    private final PngEncoderDeflaterBuffer originalSegment;
-    private final PngEncoderDeflaterBuffer deflatedSegment;
-    private final long originalSegmentAdler32;
-    private final int originalSegmentLength;
+    private PngEncoderDeflaterBuffer originalSegment;
+    private PngEncoderDeflaterBuffer deflatedSegment;
+    private PngEncoderDeflaterBuffer dictionarySegment;
+    private long originalSegmentAdler32;
+    private int originalSegmentLength;
+
+    PngEncoderDeflaterSegmentResult() {
+    }
 
     PngEncoderDeflaterSegmentResult(
             PngEncoderDeflaterBuffer originalSegment,
             PngEncoderDeflaterBuffer deflatedSegment,
+            PngEncoderDeflaterBuffer dictionarySegment,
+            long originalSegmentAdler32,
+            int originalSegmentLength) {
+        set(originalSegment, deflatedSegment, dictionarySegment, originalSegmentAdler32, originalSegmentLength);
+    }
+
+    PngEncoderDeflaterSegmentResult set(
+            PngEncoderDeflaterBuffer originalSegment,
+            PngEncoderDeflaterBuffer deflatedSegment,
+            PngEncoderDeflaterBuffer dictionarySegment,
             long originalSegmentAdler32,
             int originalSegmentLength) {
         this.originalSegment = Objects.requireNonNull(originalSegment, "originalSegment");
         this.deflatedSegment = Objects.requireNonNull(deflatedSegment, "deflatedSegment");
+        this.dictionarySegment = dictionarySegment;
         this.originalSegmentAdler32 = originalSegmentAdler32;
         this.originalSegmentLength = originalSegmentLength;
+        return this;
     }
 
     public PngEncoderDeflaterBuffer getOriginalSegment() {
@@ -27,6 +46,17 @@ class PngEncoderDeflaterSegmentResult {
         return deflatedSegment;
     }
 
+    /**
+     * @return the previous original segment used as preset dictionary, or null when dictionary chaining is disabled.
+     */
+    public PngEncoderDeflaterBuffer getDictionarySegment() {
+        return dictionarySegment;
+    }
+
+    int getOriginalSegmentLength() {
+        return originalSegmentLength;
+    }
+
     long getUpdatedAdler32(long originalAdler32) {
         return combine(originalAdler32, originalSegmentAdler32, originalSegmentLength);
     }
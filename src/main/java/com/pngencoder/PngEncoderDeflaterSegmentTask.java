@@ -1,44 +1,217 @@
 package com.pngencoder;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.Objects;
 import java.util.function.Supplier;
-import java.util.zip.Deflater;
 
-class PngEncoderDeflaterSegmentTask implements Supplier<PngEncoderDeflaterSegmentResult> {
-    private final PngEncoderDeflaterBuffer originalSegment;
-    private final PngEncoderDeflaterBuffer deflatedSegment;
-    private final int compressionLevel;
-    private final boolean lastSegment;
+/**
+ * Deflates one segment. The task is its own future: it is handed to the executor as a Runnable and joined by the
+ * thread writing the stream, so that no CompletableFuture is needed per segment. Once joined it can be reused.
+ */
+class PngEncoderDeflaterSegmentTask implements Supplier<PngEncoderDeflaterSegmentResult>, Runnable {
+    private final PngEncoderDeflaterSegmentResult result;
+    private PngEncoderDeflaterBuffer originalSegment;
+    private PngEncoderDeflaterBuffer deflatedSegment;
+    private PngEncoderDeflaterBuffer dictionarySegment;
+    private PngEncoderCompressor compressor;
+    private PngEncoderSegmentPlanner.Throughput throughput;
+    private int compressionLevel;
+    private boolean lastSegment;
+    private PngEncoderDeflaterSegmentProducer producer;
+    private int yStart;
+    private int rowCount;
+    private boolean produceDictionary;
+    private Throwable failure;
+    private volatile boolean done;
+
+    PngEncoderDeflaterSegmentTask() {
+        this.result = new PngEncoderDeflaterSegmentResult();
+    }
 
     public PngEncoderDeflaterSegmentTask(
             PngEncoderDeflaterBuffer originalSegment,
             PngEncoderDeflaterBuffer deflatedSegment,
+            PngEncoderDeflaterBuffer dictionarySegment,
+            int compressionLevel,
+            boolean lastSegment) {
+        this();
+        init(originalSegment, deflatedSegment, dictionarySegment, compressionLevel, lastSegment);
+    }
+
+    public PngEncoderDeflaterSegmentTask(
+            PngEncoderDeflaterBuffer originalSegment,
+            PngEncoderDeflaterBuffer deflatedSegment,
+            int compressionLevel,
+            boolean lastSegment) {
+        this(originalSegment, deflatedSegment, null, compressionLevel, lastSegment);
+    }
+
+    PngEncoderDeflaterSegmentTask init(
+            PngEncoderDeflaterBuffer originalSegment,
+            PngEncoderDeflaterBuffer deflatedSegment,
+            PngEncoderDeflaterBuffer dictionarySegment,
             int compressionLevel,
             boolean lastSegment) {
         this.originalSegment = Objects.requireNonNull(originalSegment, "originalSegment");
         this.deflatedSegment = Objects.requireNonNull(deflatedSegment, "deflatedSegment");
+        this.dictionarySegment = dictionarySegment;
+        this.compressor = PngEncoderCompressor.deflater();
+        this.throughput = null;
         this.compressionLevel = compressionLevel;
         this.lastSegment = lastSegment;
+        this.producer = null;
+        this.failure = null;
+        this.done = false;
+        return this;
+    }
+
+    PngEncoderDeflaterSegmentTask compressWith(PngEncoderCompressor compressor) {
+        this.compressor = Objects.requireNonNull(compressor, "compressor");
+        return this;
+    }
+
+    /**
+     * Lets the task record how long it took per byte, see {@link PngEncoderSegmentPlanner}.
+     *
+     * @param throughput the average to add the time to, or null to not measure
+     */
+    PngEncoderDeflaterSegmentTask measureWith(PngEncoderSegmentPlanner.Throughput throughput) {
+        this.throughput = throughput;
+        return this;
+    }
+
+    /**
+     * Lets the task fill the original segment with rows from the producer before deflating it.
+     *
+     * @param produceDictionary true to produce the rows before yStart as dictionary, like dictionary chaining does
+     */
+    PngEncoderDeflaterSegmentTask produceWith(PngEncoderDeflaterSegmentProducer producer, int yStart, int rowCount, boolean produceDictionary) {
+        this.producer = Objects.requireNonNull(producer, "producer");
+        this.yStart = yStart;
+        this.rowCount = rowCount;
+        this.produceDictionary = produceDictionary;
+        return this;
+    }
+
+    /**
+     * @return true if the task fills the original segment with rows from a producer
+     */
+    boolean isProducing() {
+        return producer != null;
     }
 
     @Override
     public PngEncoderDeflaterSegmentResult get() {
+        if (throughput == null) {
+            return produceIfNeededAndDeflate();
+        }
+        final long startNanos = System.nanoTime();
+        final PngEncoderDeflaterSegmentResult segmentResult = produceIfNeededAndDeflate();
+        throughput.record(originalSegment.length, System.nanoTime() - startNanos);
+        return segmentResult;
+    }
+
+    private PngEncoderDeflaterSegmentResult produceIfNeededAndDeflate() {
+        if (producer != null) {
+            return produceAndDeflate();
+        }
         final long originalSegmentAdler32 = originalSegment.calculateAdler32();
         final int originalSegmentLength = originalSegment.length;
 
-        deflate(originalSegment, deflatedSegment, compressionLevel, lastSegment);
+        deflate(compressor, originalSegment, deflatedSegment, dictionarySegment, compressionLevel, lastSegment);
+
+        return result.set(originalSegment, deflatedSegment, dictionarySegment, originalSegmentAdler32, originalSegmentLength);
+    }
+
+    private PngEncoderDeflaterSegmentResult produceAndDeflate() {
+        final PngEncoderScratch scratch = PngEncoderScratch.acquire(true);
+        try {
+            final int rowByteSize = producer.getRowByteSize();
+            byte[] dictionary = null;
+            int dictionaryLength = 0;
+            if (produceDictionary && yStart > 0 && compressionLevel != 0) {
+                // The preceding rows are produced once more, as the task producing them may not even have started.
+                final int dictionaryRowCount = Math.min(yStart, (PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_DICTIONARY + rowByteSize - 1) / rowByteSize);
+                dictionaryLength = dictionaryRowCount * rowByteSize;
+                dictionary = scratch.getDictionary(dictionaryLength);
+                producer.produce(dictionary, yStart - dictionaryRowCount, dictionaryRowCount, scratch);
+            }
+            producer.produce(originalSegment.bytes, yStart, rowCount, scratch);
+            originalSegment.length = rowCount * rowByteSize;
+
+            final long originalSegmentAdler32 = originalSegment.calculateAdler32();
+            deflate(compressor, originalSegment, deflatedSegment, dictionary, dictionaryLength, compressionLevel, lastSegment);
+            return result.set(originalSegment, deflatedSegment, null, originalSegmentAdler32, originalSegment.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            get();
+        } catch (Throwable t) {
+            fail(t);
+            return;
+        }
+        complete();
+    }
 
-        return new PngEncoderDeflaterSegmentResult(originalSegment, deflatedSegment, originalSegmentAdler32, originalSegmentLength);
+    void fail(Throwable failure) {
+        this.failure = failure;
+        complete();
     }
 
-    static void deflate(PngEncoderDeflaterBuffer originalSegment, PngEncoderDeflaterBuffer deflatedSegment, int compressionLevel, boolean lastSegment) {
-        final Deflater deflater = PngEncoderDeflaterThreadLocalDeflater.getInstance(compressionLevel);
-        deflater.setInput(originalSegment.bytes, 0, originalSegment.length);
+    void complete() {
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+    }
 
-        if (lastSegment) {
-            deflater.finish();
+    /**
+     * Waits for the task to finish.
+     *
+     * @return the result, valid until the task is reused
+     * @throws IOException if the task failed
+     */
+    PngEncoderDeflaterSegmentResult join() throws IOException {
+        if (!done) {
+            synchronized (this) {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for an async segment task.");
+                    }
+                }
+            }
         }
+        if (failure != null) {
+            throw new IOException("An async segment task failed.", failure);
+        }
+        return result;
+    }
+
+    static void deflate(PngEncoderCompressor compressor, PngEncoderDeflaterBuffer originalSegment, PngEncoderDeflaterBuffer deflatedSegment, PngEncoderDeflaterBuffer dictionarySegment, int compressionLevel, boolean lastSegment) {
+        if (dictionarySegment != null) {
+            deflate(compressor, originalSegment, deflatedSegment, dictionarySegment.bytes, dictionarySegment.length, compressionLevel, lastSegment);
+        } else {
+            deflate(compressor, originalSegment, deflatedSegment, null, 0, compressionLevel, lastSegment);
+        }
+    }
 
-        deflatedSegment.length = deflater.deflate(deflatedSegment.bytes, 0, deflatedSegment.bytes.length, lastSegment ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+    /**
+     * @param dictionary the bytes preceding the segment, of which the last 32 KB are used, or null
+     */
+    static void deflate(PngEncoderCompressor compressor, PngEncoderDeflaterBuffer originalSegment, PngEncoderDeflaterBuffer deflatedSegment, byte[] dictionary, int dictionaryLength, int compressionLevel, boolean lastSegment) {
+        deflatedSegment.length = compressor.compress(originalSegment.bytes, 0, originalSegment.length, dictionary, dictionaryLength,
+                deflatedSegment.bytes, 0, compressionLevel, lastSegment);
     }
 }
@@ -7,26 +7,38 @@ import java.util.zip.Deflater;
  * <p>
  * Creating a new Deflater instance takes a surprising amount of time.
  * Resetting an existing Deflater instance is almost free though.
+ * <p>
+ * There is one Deflater per compression level and strategy, as changing the strategy of a Deflater only takes effect
+ * with the next deflate call and may flush a block.
  */
 class PngEncoderDeflaterThreadLocalDeflater {
     private static final ThreadLocal<PngEncoderDeflaterThreadLocalDeflater> THREAD_LOCAL = ThreadLocal.withInitial(PngEncoderDeflaterThreadLocalDeflater::new);
 
+    // DEFAULT_STRATEGY, FILTERED and HUFFMAN_ONLY
+    private static final int STRATEGY_COUNT = 3;
+
     static Deflater getInstance(int compressionLevel) {
-        return THREAD_LOCAL.get().getDeflater(compressionLevel);
+        return getInstance(compressionLevel, Deflater.DEFAULT_STRATEGY);
+    }
+
+    static Deflater getInstance(int compressionLevel, int strategy) {
+        return THREAD_LOCAL.get().getDeflater(compressionLevel, strategy);
     }
 
     private final Deflater[] deflaters;
 
     private PngEncoderDeflaterThreadLocalDeflater() {
-        this.deflaters = new Deflater[11];
+        this.deflaters = new Deflater[11 * STRATEGY_COUNT];
     }
 
-    private Deflater getDeflater(int compressionLevel) {
-        Deflater deflater = this.deflaters[compressionLevel + 1];
+    private Deflater getDeflater(int compressionLevel, int strategy) {
+        final int index = (compressionLevel + 1) * STRATEGY_COUNT + strategy;
+        Deflater deflater = this.deflaters[index];
         if (deflater == null) {
             boolean nowrap = true;
             deflater = new Deflater(compressionLevel, nowrap);
-            this.deflaters[compressionLevel + 1] = deflater;
+            deflater.setStrategy(strategy);
+            this.deflaters[index] = deflater;
         }
         deflater.reset();
         return deflater;
@@ -0,0 +1,272 @@
+package com.pngencoder;
+
+import java.util.Arrays;
+
+/**
+ * A greedy LZ77 with the fixed Huffman codes of deflate, see {@link PngEncoderCompressor#fast()}.
+ * <p>
+ * Every position is looked up once in a hash table of the last position with the same three bytes. Before that, a
+ * run of the previous byte is checked for, as filtered image data is full of them. There are no hash chains, no lazy
+ * matching and no Huffman tables to build, which is what makes it fast. The fixed codes are precomputed bit reversed,
+ * as deflate writes Huffman codes starting with the most significant bit.
+ * <p>
+ * https://www.rfc-editor.org/rfc/rfc1951#section-3.2.6
+ */
+final class PngEncoderFastCompressor extends PngEncoderCompressor {
+    static final PngEncoderFastCompressor INSTANCE = new PngEncoderFastCompressor();
+
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+    private static final int HASH_BITS = 15;
+
+    // Segments this small are not worth it.
+    private static final int MIN_INPUT_LENGTH = 64;
+
+    // Enough for a pending token, the end of block code and the alignment.
+    private static final int OUTPUT_MARGIN = 16;
+
+    private static final int END_OF_BLOCK = 256;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA_BITS = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+    // Literal and end of block codes.
+    private static final int[] LITERAL_CODES = new int[END_OF_BLOCK + 1];
+    private static final int[] LITERAL_CODE_LENGTHS = new int[END_OF_BLOCK + 1];
+    // Per match length the length code followed by its extra bits.
+    private static final int[] LENGTH_CODES = new int[MAX_MATCH + 1];
+    private static final int[] LENGTH_CODE_LENGTHS = new int[MAX_MATCH + 1];
+    // The distance code of distance - 1, for distances up to 256 and in steps of 128 above, just like zlib.
+    private static final byte[] DISTANCE_CODES_SMALL = new byte[256];
+    private static final byte[] DISTANCE_CODES_LARGE = new byte[256];
+    private static final int[] DISTANCE_CODES_REVERSED = new int[DISTANCE_BASE.length];
+
+    static {
+        for (int literal = 0; literal <= END_OF_BLOCK; literal++) {
+            final int code = getFixedLiteralCode(literal);
+            final int codeLength = getFixedLiteralCodeLength(literal);
+            LITERAL_CODES[literal] = reverse(code, codeLength);
+            LITERAL_CODE_LENGTHS[literal] = codeLength;
+        }
+        for (int index = 0; index < LENGTH_BASE.length; index++) {
+            final int literal = 257 + index;
+            final int code = reverse(getFixedLiteralCode(literal), getFixedLiteralCodeLength(literal));
+            final int codeLength = getFixedLiteralCodeLength(literal);
+            final int end = index + 1 < LENGTH_BASE.length ? LENGTH_BASE[index + 1] : MAX_MATCH + 1;
+            for (int length = LENGTH_BASE[index]; length < end; length++) {
+                // 258 can also be written as 227 + 31, but deflate has its own code for it.
+                LENGTH_CODES[length] = code | (length - LENGTH_BASE[index]) << codeLength;
+                LENGTH_CODE_LENGTHS[length] = codeLength + LENGTH_EXTRA_BITS[index];
+            }
+        }
+        for (int index = 0; index < DISTANCE_BASE.length; index++) {
+            DISTANCE_CODES_REVERSED[index] = reverse(index, 5);
+            final int first = DISTANCE_BASE[index] - 1;
+            final int end = first + (1 << DISTANCE_EXTRA_BITS[index]);
+            for (int distanceMinusOne = first; distanceMinusOne < end; distanceMinusOne++) {
+                if (distanceMinusOne < 256) {
+                    DISTANCE_CODES_SMALL[distanceMinusOne] = (byte) index;
+                } else {
+                    DISTANCE_CODES_LARGE[distanceMinusOne >> 7] = (byte) index;
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> THREAD_LOCAL = ThreadLocal.withInitial(State::new);
+
+    /**
+     * The hash table and the window of a thread. Entries in the hash table are positions plus a base, which moves on
+     * with every segment. So older entries are recognized by being below the base, and the table needs no clearing.
+     */
+    private static class State {
+        final int[] head = new int[1 << HASH_BITS];
+        int base = 1;
+        byte[] window;
+
+        byte[] getWindow(int minLength) {
+            if (window == null || window.length < minLength) {
+                window = new byte[minLength];
+            }
+            return window;
+        }
+    }
+
+    private PngEncoderFastCompressor() {
+    }
+
+    @Override
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] dictionary, int dictionaryLength,
+            byte[] output, int outputOffset, int compressionLevel, boolean lastSegment) {
+        if (compressionLevel == 0 || inputLength < MIN_INPUT_LENGTH) {
+            return compressStored(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+        }
+
+        final State state = THREAD_LOCAL.get();
+
+        // Matches into the dictionary need it in front of the input.
+        final byte[] window;
+        final int windowStart;
+        final int start;
+        if (dictionary != null && dictionaryLength > 0) {
+            final int usedDictionaryLength = Math.min(dictionaryLength, WINDOW_SIZE);
+            window = state.getWindow(usedDictionaryLength + inputLength);
+            System.arraycopy(dictionary, dictionaryLength - usedDictionaryLength, window, 0, usedDictionaryLength);
+            System.arraycopy(input, inputOffset, window, usedDictionaryLength, inputLength);
+            windowStart = 0;
+            start = usedDictionaryLength;
+        } else {
+            window = input;
+            windowStart = inputOffset;
+            start = inputOffset;
+        }
+        final int end = start + inputLength;
+
+        final int[] head = state.head;
+        if (state.base > Integer.MAX_VALUE - end - 1) {
+            Arrays.fill(head, 0);
+            state.base = 1;
+        }
+        final int base = state.base;
+        state.base = base + end;
+
+        for (int position = windowStart; position < start; position++) {
+            head[hash(window, position)] = base + position;
+        }
+
+        final int outputLimit = outputOffset + getMaxCompressedLength(inputLength) - OUTPUT_MARGIN;
+        int outputPosition = outputOffset;
+        // BFINAL and BTYPE 01 for fixed Huffman codes.
+        long bits = (lastSegment ? 1 : 0) | 1 << 1;
+        int bitCount = 3;
+
+        int position = start;
+        while (position < end) {
+            int matchLength = 0;
+            int matchDistance = 0;
+            if (position + MIN_MATCH <= end) {
+                final int maxLength = Math.min(MAX_MATCH, end - position);
+                if (position > windowStart) {
+                    final byte previous = window[position - 1];
+                    if (window[position] == previous && window[position + 1] == previous && window[position + 2] == previous) {
+                        int length = MIN_MATCH;
+                        while (length < maxLength && window[position + length] == previous) {
+                            length++;
+                        }
+                        matchLength = length;
+                        matchDistance = 1;
+                    }
+                }
+
+                final int hash = hash(window, position);
+                final int candidate = head[hash] - base;
+                head[hash] = base + position;
+                if (matchLength < maxLength && candidate >= windowStart && candidate < position - 1
+                        && position - candidate <= WINDOW_SIZE && window[candidate + matchLength] == window[position + matchLength]) {
+                    int length = 0;
+                    while (length < maxLength && window[candidate + length] == window[position + length]) {
+                        length++;
+                    }
+                    if (length >= MIN_MATCH && length > matchLength) {
+                        matchLength = length;
+                        matchDistance = position - candidate;
+                    }
+                }
+            }
+
+            if (matchLength != 0) {
+                bits |= (long) LENGTH_CODES[matchLength] << bitCount;
+                bitCount += LENGTH_CODE_LENGTHS[matchLength];
+                final int distanceMinusOne = matchDistance - 1;
+                final int distanceCode = distanceMinusOne < 256 ? DISTANCE_CODES_SMALL[distanceMinusOne] : DISTANCE_CODES_LARGE[distanceMinusOne >> 7];
+                bits |= (long) (DISTANCE_CODES_REVERSED[distanceCode] | (matchDistance - DISTANCE_BASE[distanceCode]) << 5) << bitCount;
+                bitCount += 5 + DISTANCE_EXTRA_BITS[distanceCode];
+                position += matchLength;
+                // Keep the table up to date with the end of the match, where the next match most likely continues.
+                if (position + MIN_MATCH <= end) {
+                    head[hash(window, position - 1)] = base + position - 1;
+                }
+            } else {
+                final int literal = window[position] & 0xFF;
+                bits |= (long) LITERAL_CODES[literal] << bitCount;
+                bitCount += LITERAL_CODE_LENGTHS[literal];
+                position++;
+            }
+
+            if (bitCount >= 32) {
+                if (outputPosition > outputLimit) {
+                    // Did not compress, random data does that.
+                    return compressStored(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+                }
+                output[outputPosition] = (byte) bits;
+                output[outputPosition + 1] = (byte) (bits >>> 8);
+                output[outputPosition + 2] = (byte) (bits >>> 16);
+                output[outputPosition + 3] = (byte) (bits >>> 24);
+                outputPosition += 4;
+                bits >>>= 32;
+                bitCount -= 32;
+            }
+        }
+
+        bits |= (long) LITERAL_CODES[END_OF_BLOCK] << bitCount;
+        bitCount += LITERAL_CODE_LENGTHS[END_OF_BLOCK];
+        if (!lastSegment) {
+            // An empty stored block brings us to a byte boundary, just like a sync flush. Its three header bits are
+            // zero, followed by the padding, LEN and NLEN.
+            bitCount += 3;
+        }
+        while (bitCount > 0) {
+            output[outputPosition++] = (byte) bits;
+            bits >>>= 8;
+            bitCount -= 8;
+        }
+        if (!lastSegment) {
+            output[outputPosition++] = 0;
+            output[outputPosition++] = 0;
+            output[outputPosition++] = (byte) 0xFF;
+            output[outputPosition++] = (byte) 0xFF;
+        }
+        return outputPosition - outputOffset;
+    }
+
+    private static int hash(byte[] window, int position) {
+        final int value = (window[position] & 0xFF) | (window[position + 1] & 0xFF) << 8 | (window[position + 2] & 0xFF) << 16;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static int getFixedLiteralCode(int literal) {
+        if (literal < 144) {
+            return 0x30 + literal;
+        } else if (literal < 256) {
+            return 0x190 + literal - 144;
+        } else if (literal < 280) {
+            return literal - 256;
+        } else {
+            return 0xC0 + literal - 280;
+        }
+    }
+
+    private static int getFixedLiteralCodeLength(int literal) {
+        if (literal < 144) {
+            return 8;
+        } else if (literal < 256) {
+            return 9;
+        } else if (literal < 280) {
+            return 7;
+        } else {
+            return 8;
+        }
+    }
+
+    private static int reverse(int code, int length) {
+        return Integer.reverse(code) >>> (32 - length);
+    }
+}
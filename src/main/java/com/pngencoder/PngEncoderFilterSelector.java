@@ -0,0 +1,346 @@
+package com.pngencoder;
+
+import java.util.zip.Deflater;
+
+/**
+ * Filters a row and chooses which of the filtered versions to write, see {@link PngEncoderFilterStrategy}.
+ * <p>
+ * One instance filters the rows of one segment, or of the whole image when single threaded, in order.
+ */
+abstract class PngEncoderFilterSelector {
+    /**
+     * @param strategy         an adaptive strategy or a fixed filter other than NONE
+     * @param compressionLevel the compression level of the encode, used by the trial compression
+     */
+    static PngEncoderFilterSelector create(PngEncoderFilterStrategy strategy, int compressionLevel, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+        switch (strategy) {
+            case SAMPLED:
+                return new Sampled(metaInfo, scratch);
+            case MIN_SUM:
+                return new MinSum(metaInfo, scratch);
+            case ENTROPY:
+                return new Entropy(metaInfo, scratch);
+            case TRIAL_DEFLATE:
+                return new TrialDeflate(metaInfo, scratch, compressionLevel);
+            default:
+                return new Fixed(strategy.getFilterType(), metaInfo, scratch);
+        }
+    }
+
+    final int bpp;
+    // Rows of 16 bit samples are scored by the samples, not by the bytes, see sumOfSamples.
+    final boolean sixteenBit;
+
+    PngEncoderFilterSelector(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo) {
+        this.bpp = metaInfo.bytesPerPixel;
+        this.sixteenBit = metaInfo.bitsPerChannel == 16;
+    }
+
+    /**
+     * @param currRow the row to filter, with the filter type byte 0 first
+     * @param prevRow the row above, all zero for the first row
+     * @return the row to write, with its filter type byte first. Only valid until the next call.
+     */
+    abstract byte[] select(byte[] currRow, byte[] prevRow);
+
+    /**
+     * Like {@link #select(byte[], byte[])}, but writes the row to the target, where it is compressed from. Selectors
+     * that compute only one filter write it there right away instead of copying it.
+     *
+     * @param target       receives the row, with its filter type byte first
+     * @param targetOffset where the row starts in the target
+     */
+    void select(byte[] currRow, byte[] prevRow, byte[] target, int targetOffset) {
+        final byte[] row = select(currRow, prevRow);
+        System.arraycopy(row, 0, target, targetOffset, row.length);
+    }
+
+    /**
+     * The sum of absolute values of the bytes counts the low byte of a 16 bit sample as much as the high byte. The low
+     * byte is mostly noise, so the filter that makes it smallest wins, rather than the one that predicts the sample
+     * best. This weights the high byte, which comes first in PNG, by 256 as in the sample itself. On depth maps and scans
+     * that chose better than both the sum of the bytes and the sum of the differences of the samples.
+     *
+     * @param filterType the filter type of the row, 0 to sum the bytes unsigned
+     * @return the weighted sum of the absolute values of the bytes, from index 1 of the row
+     */
+    static long sumOfSamples(byte[] row, int filterType) {
+        return sumOfSamples(row, 0, row.length, filterType);
+    }
+
+    /**
+     * @return like {@link #sumOfSamples(byte[], int)} for the row of the given length at the offset
+     */
+    static long sumOfSamples(byte[] row, int rowOffset, int rowLength, int filterType) {
+        final int end = rowOffset + rowLength;
+        long sum = 0;
+        if (filterType == 0) {
+            for (int i = rowOffset + 1; i < end; i += 2) {
+                sum += ((row[i] & 0xFF) << 8) + (row[i + 1] & 0xFF);
+            }
+        } else {
+            for (int i = rowOffset + 1; i < end; i += 2) {
+                sum += (Math.abs(row[i]) << 8) + Math.abs(row[i + 1]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Always writes the same filter, which is the only one computed.
+     */
+    static final class Fixed extends PngEncoderFilterSelector {
+        private final PngEncoderPredictorKernel kernel;
+        private final int filterType;
+        private final byte[] row;
+
+        Fixed(int filterType, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+            super(metaInfo);
+            this.kernel = PngEncoderPredictorKernel.getInstance();
+            this.filterType = filterType;
+            this.row = scratch.getRow(PngEncoderScratch.ROW_SUB, metaInfo.rowByteSize);
+            row[0] = (byte) filterType;
+        }
+
+        @Override
+        byte[] select(byte[] currRow, byte[] prevRow) {
+            kernel.filter(filterType, currRow, prevRow, bpp, row);
+            return row;
+        }
+
+        @Override
+        void select(byte[] currRow, byte[] prevRow, byte[] target, int targetOffset) {
+            target[targetOffset] = (byte) filterType;
+            kernel.filter(filterType, currRow, prevRow, bpp, target, targetOffset);
+        }
+    }
+
+    /**
+     * Evaluates all filters on a sample of the rows, and uses the winner for the band of rows after it. Only the sum of
+     * the chosen filter is computed for the rows in the band, which triggers a new evaluation when it drifts.
+     */
+    static final class Sampled extends PngEncoderFilterSelector {
+        // Rows between full evaluations when the image does not drift. Longer bands hardly save more time, but cost
+        // graphics noticeably in size, as the drift check does not see that another filter got better.
+        static final int BAND_ROWS = 8;
+
+        private final MinSum minSum;
+        private final byte[][] rows;
+        private int filterType;
+        private long evaluatedSum;
+        private int rowsSinceEvaluation;
+
+        Sampled(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+            super(metaInfo);
+            this.minSum = new MinSum(metaInfo, scratch);
+            // The same rows as the evaluation, which does not need them while a filter is fixed.
+            this.rows = minSum.rows;
+            this.rowsSinceEvaluation = BAND_ROWS;
+        }
+
+        @Override
+        byte[] select(byte[] currRow, byte[] prevRow) {
+            if (rowsSinceEvaluation < BAND_ROWS) {
+                final byte[] row = filterType == 0 ? currRow : rows[filterType];
+                final long byteSum = minSum.kernel.filter(filterType, currRow, prevRow, bpp, row);
+                final long sum = sixteenBit ? sumOfSamples(row, filterType) : byteSum;
+                if (!hasDrifted(sum)) {
+                    rowsSinceEvaluation++;
+                    return row;
+                }
+            }
+            return evaluate(currRow, prevRow);
+        }
+
+        @Override
+        void select(byte[] currRow, byte[] prevRow, byte[] target, int targetOffset) {
+            if (rowsSinceEvaluation < BAND_ROWS && filterType != 0) {
+                // Overwritten by the evaluated row on drift.
+                target[targetOffset] = (byte) filterType;
+                final long byteSum = minSum.kernel.filter(filterType, currRow, prevRow, bpp, target, targetOffset);
+                final long sum = sixteenBit ? sumOfSamples(target, targetOffset, currRow.length, filterType) : byteSum;
+                if (!hasDrifted(sum)) {
+                    rowsSinceEvaluation++;
+                    return;
+                }
+                final byte[] row = evaluate(currRow, prevRow);
+                System.arraycopy(row, 0, target, targetOffset, row.length);
+                return;
+            }
+            super.select(currRow, prevRow, target, targetOffset);
+        }
+
+        private byte[] evaluate(byte[] currRow, byte[] prevRow) {
+            final byte[] row = minSum.select(currRow, prevRow);
+            filterType = row[0];
+            evaluatedSum = minSum.sums[filterType] - filterType;
+            rowsSinceEvaluation = 0;
+            return row;
+        }
+
+        /**
+         * @return true if the row is an eighth worse than the evaluated row, with some slack for rows close to zero
+         */
+        private boolean hasDrifted(long sum) {
+            return sum > evaluatedSum + (evaluatedSum >> 3) + (rows[1].length >> 6);
+        }
+    }
+
+    /**
+     * Computes all five filters of every row with the {@link PngEncoderPredictorKernel}.
+     */
+    abstract static class Adaptive extends PngEncoderFilterSelector {
+        final PngEncoderPredictorKernel kernel;
+        // Indexed by filter type, the row itself is the first.
+        final byte[][] rows;
+        final long[] sums;
+
+        Adaptive(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+            super(metaInfo);
+            this.kernel = PngEncoderPredictorKernel.getInstance();
+            this.rows = new byte[PngEncoderPredictorKernel.SUM_COUNT][];
+            this.rows[1] = scratch.getRow(PngEncoderScratch.ROW_SUB, metaInfo.rowByteSize);
+            this.rows[2] = scratch.getRow(PngEncoderScratch.ROW_UP, metaInfo.rowByteSize);
+            this.rows[3] = scratch.getRow(PngEncoderScratch.ROW_AVERAGE, metaInfo.rowByteSize);
+            this.rows[4] = scratch.getRow(PngEncoderScratch.ROW_PAETH, metaInfo.rowByteSize);
+            for (int filterType = 1; filterType < rows.length; filterType++) {
+                rows[filterType][0] = (byte) filterType;
+            }
+            this.sums = new long[PngEncoderPredictorKernel.SUM_COUNT];
+        }
+
+        @Override
+        final byte[] select(byte[] currRow, byte[] prevRow) {
+            rows[0] = currRow;
+            kernel.filter(currRow, prevRow, bpp, rows[1], rows[2], rows[3], rows[4], sums);
+            return rows[choose()];
+        }
+
+        /**
+         * @return the filter type to write, after the rows and sums have been filled in
+         */
+        abstract int choose();
+    }
+
+    /**
+     * The minimum sum of absolute differences, see https://www.w3.org/TR/PNG-Encoders.html#E.Filter-selection
+     */
+    static final class MinSum extends Adaptive {
+        MinSum(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+            super(metaInfo, scratch);
+        }
+
+        @Override
+        int choose() {
+            if (sixteenBit) {
+                for (int filterType = 0; filterType < sums.length; filterType++) {
+                    sums[filterType] = sumOfSamples(rows[filterType], filterType) + filterType;
+                }
+            }
+            // The sums have the filter type added, which breaks ties towards the lower type.
+            int best = 0;
+            for (int filterType = 1; filterType < sums.length; filterType++) {
+                if (sums[best] > sums[filterType]) {
+                    best = filterType;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The lowest Shannon entropy of the byte values, which is the size of the row in bits with an ideal code for its
+     * own histogram.
+     */
+    static final class Entropy extends Adaptive {
+        private final int[] histogram;
+
+        Entropy(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch) {
+            super(metaInfo, scratch);
+            this.histogram = new int[256];
+        }
+
+        @Override
+        int choose() {
+            int best = 0;
+            double bestCost = Double.MAX_VALUE;
+            for (int filterType = 0; filterType < rows.length; filterType++) {
+                final double cost = cost(rows[filterType]);
+                if (cost < bestCost) {
+                    best = filterType;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return the entropy of the row in bits, less the same constant for every row of the same length
+         */
+        private double cost(byte[] row) {
+            final int[] histogram = this.histogram;
+            for (int i = 1; i < row.length; i++) {
+                histogram[row[i] & 0xFF]++;
+            }
+            // n * log(n) - sum(count * log(count)), of which n * log(n) is the same for all filters.
+            double cost = 0;
+            for (int value = 0; value < histogram.length; value++) {
+                final int count = histogram[value];
+                if (count > 1) {
+                    cost -= count * Math.log(count);
+                }
+                histogram[value] = 0;
+            }
+            return cost;
+        }
+    }
+
+    /**
+     * The smallest compressed size, with the chosen row above as dictionary so that matches with it count.
+     */
+    static final class TrialDeflate extends Adaptive {
+        private final Deflater deflater;
+        private final byte[] output;
+        private final byte[] previousChosen;
+        private boolean hasPrevious;
+
+        TrialDeflate(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderScratch scratch, int compressionLevel) {
+            super(metaInfo, scratch);
+            // Stored blocks tell the filters apart.
+            this.deflater = scratch.getTrialDeflater(compressionLevel == 0 ? Deflater.BEST_SPEED : compressionLevel);
+            this.output = new byte[4096];
+            this.previousChosen = new byte[metaInfo.rowByteSize];
+        }
+
+        @Override
+        int choose() {
+            int best = 0;
+            long bestLength = Long.MAX_VALUE;
+            for (int filterType = 0; filterType < rows.length; filterType++) {
+                final long length = compressedLength(rows[filterType]);
+                if (length < bestLength) {
+                    best = filterType;
+                    bestLength = length;
+                }
+            }
+            System.arraycopy(rows[best], 0, previousChosen, 0, previousChosen.length);
+            hasPrevious = true;
+            return best;
+        }
+
+        private long compressedLength(byte[] row) {
+            final Deflater deflater = this.deflater;
+            deflater.reset();
+            if (hasPrevious) {
+                final int dictionaryLength = Math.min(previousChosen.length, PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_DICTIONARY);
+                deflater.setDictionary(previousChosen, previousChosen.length - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(row, 0, row.length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return deflater.getBytesWritten();
+        }
+    }
+}
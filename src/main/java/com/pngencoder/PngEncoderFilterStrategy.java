@@ -0,0 +1,76 @@
+package com.pngencoder;
+
+/**
+ * How the predictor encoding chooses the filter of every row, see
+ * {@link PngEncoder#withFilterStrategy(PngEncoderFilterStrategy)}.
+ * <p>
+ * The strategies are listed from fast to small. A fixed filter only computes that filter. The adaptive strategies
+ * compute all five filters of every row and differ in how the winner is picked.
+ */
+public enum PngEncoderFilterStrategy {
+    /**
+     * Filter type 0, the bytes as they are. The same as no predictor encoding.
+     */
+    NONE(0),
+
+    /**
+     * Filter type 1, the difference to the pixel to the left.
+     */
+    SUB(1),
+
+    /**
+     * Filter type 2, the difference to the pixel above. Cheap, and good for images with vertical structure.
+     */
+    UP(2),
+
+    /**
+     * Filter type 3, the difference to the average of the pixels to the left and above.
+     */
+    AVERAGE(3),
+
+    /**
+     * Filter type 4, the difference to the pixel to the left, above or above left that is closest to their gradient.
+     * Usually the best single filter for photographs.
+     */
+    PAETH(4),
+
+    /**
+     * Chooses the filter like {@link #MIN_SUM} on a sample of the rows, and uses it for the rows in between. A row is
+     * only evaluated in full again after a band of rows, or when the sum of the filtered bytes grows noticeably.
+     * Filters about three times as fast as {@link #MIN_SUM}. Photographs and gradients come out about as small, while
+     * graphics with text and sharp edges may be a few percent larger.
+     */
+    SAMPLED(-1),
+
+    /**
+     * Chooses the filter with the minimum sum of the absolute values of the filtered bytes, as recommended by the
+     * PNG specification. For 16 bit samples the high byte counts 256 times as much as the low byte, which is mostly
+     * noise. The default.
+     */
+    MIN_SUM(-1),
+
+    /**
+     * Chooses the filter whose filtered bytes have the lowest Shannon entropy, which estimates the size after Huffman
+     * coding better than the sum. A little slower than {@link #MIN_SUM}.
+     */
+    ENTROPY(-1),
+
+    /**
+     * Compresses every filtered version of a row, with the previous row as dictionary, and chooses the smallest.
+     * Several times slower than the others, and usually a few percent smaller.
+     */
+    TRIAL_DEFLATE(-1);
+
+    private final int filterType;
+
+    PngEncoderFilterStrategy(int filterType) {
+        this.filterType = filterType;
+    }
+
+    /**
+     * @return the filter type byte of a fixed filter, or -1 if the filter is chosen per row
+     */
+    public int getFilterType() {
+        return filterType;
+    }
+}
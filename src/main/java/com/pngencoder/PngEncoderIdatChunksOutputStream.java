@@ -17,13 +17,17 @@ class PngEncoderIdatChunksOutputStream extends FilterOutputStream {
     private final byte[] buf;
     private int count;
 
-    PngEncoderIdatChunksOutputStream(OutputStream out, int bufferLength) {
+    PngEncoderIdatChunksOutputStream(OutputStream out, byte[] buf, CRC32 crc) {
         super(out);
-        this.crc = new CRC32();
-        this.buf = new byte[bufferLength];
+        this.crc = crc;
+        this.buf = buf;
         this.count = 0;
     }
 
+    PngEncoderIdatChunksOutputStream(OutputStream out, int bufferLength) {
+        this(out, new byte[bufferLength], new CRC32());
+    }
+
     PngEncoderIdatChunksOutputStream(OutputStream out) {
         this(out, DEFAULT_BUFFER_LENGTH);
     }
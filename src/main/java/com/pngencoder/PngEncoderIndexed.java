@@ -8,30 +8,52 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PngEncoderIndexed {
 
     static class IndexedEncoderResult {
         byte[] colorTable;
         byte[] transparencyTable;
-        byte[] rawIDAT;
+        PngEncoderRows rows;
     }
 
+    // Rows sampled before the full scan. A photo has more than 256 colors in a few of them already.
+    static final int SAMPLED_ROWS = 32;
+    // Rows a band streams between checks whether another band already found too many colors.
+    private static final int SCAN_CHUNK_ROWS = 64;
+    // Bands with fewer pixels are not worth a task.
+    static final int MIN_BAND_PIXELS = 1 << 16;
+    // Runs the scan on the calling thread.
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
     /**
-     * Encode the image as indexed image. This can fail if the image has more than 256 colors. But we only know this if
-     * we try to encode it. In case this image has more than 256 colors null is returned and everything written
-     * into out has to disposed.
+     * Like {@link #encodeImage(BufferedImage, EncodingMetaInfo, Executor, int)}, on the calling thread.
+     */
+    static IndexedEncoderResult encodeImage(BufferedImage image, EncodingMetaInfo metaInfo) throws IOException {
+        return encodeImage(image, metaInfo, DIRECT_EXECUTOR, 1);
+    }
+
+    /**
+     * Prepares the image to be encoded as indexed image. The palette is built by a scan of the colors first. Some rows
+     * are sampled, which rejects most images with more than 256 colors after a tiny part of the image. Then all rows
+     * are scanned in bands, which stop as soon as one of them has seen more than 256 colors. The rows are only mapped
+     * to the palette while they are encoded, see {@link PngEncoderRows}.
      *
-     * @param image    the Image to encode
-     * @param metaInfo the metaInfos of the image
+     * @param image       the Image to encode
+     * @param metaInfo    the metaInfos of the image
+     * @param executor    the executor to scan bands of rows with
+     * @param parallelism the number of bands to scan at most
      * @return null if this image can not be encoded as indexed image or the additional chunk data needed for the indexed image.
      * @throws IOException propagated IO Exception. Should not occur.
      */
-    static IndexedEncoderResult encodeImage(BufferedImage image, EncodingMetaInfo metaInfo) throws IOException {
+    static IndexedEncoderResult encodeImage(BufferedImage image, EncodingMetaInfo metaInfo, Executor executor, int parallelism) throws IOException {
         /*
          * We only can encode 8 bit rgb image data here.
          */
@@ -39,129 +61,397 @@ public class PngEncoderIndexed {
             return null;
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getHeight() * (image.getWidth() + 1));
+        final ColorTable table = scanColors(image, metaInfo.hasAlpha, executor, parallelism);
+        if (table == null) {
+            return null;
+        }
+        return makeIndexedEncoderResult(metaInfo, new PaletteRows(image, metaInfo.hasAlpha, table), image.getWidth(), table);
+    }
 
-        // The first byte is 0; We don't try predictor encoding here. It's not worth the effort.
-        byte[] indexedRow = new byte[image.getWidth() + 1];
+    /**
+     * Collects the colors of the image, each band of rows into a table of its own. The tables are merged in the order
+     * of the bands.
+     *
+     * @return the colors in order of their first appearance, or null if the image has more than 256 colors
+     */
+    static ColorTable scanColors(BufferedImage image, boolean hasAlpha, Executor executor, int parallelism) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (height > 2 * SAMPLED_ROWS) {
+            final ColorCollector sampleCollector = new ColorCollector(hasAlpha, width);
+            final PngEncoderScratch scratch = new PngEncoderScratch();
+            for (int i = 0; i < SAMPLED_ROWS && !sampleCollector.tooManyColors; i++) {
+                PngEncoderScanlineUtil.stream(image, (int) ((long) i * (height - 1) / (SAMPLED_ROWS - 1)), 1, sampleCollector, scratch);
+            }
+            if (sampleCollector.tooManyColors) {
+                return null;
+            }
+        }
 
-        ColorTable table = new ColorTable();
-        try {
-            if (metaInfo.hasAlpha) {
-                PngEncoderScanlineUtil.stream(image, 0, image.getHeight(), new AbstractPNGLineConsumer() {
-                    boolean firstRow = true;
-
-                    @Override
-                    void consume(byte[] currRow, byte[] prevRow) throws IOException {
-                        if (firstRow) {
-                            int r = currRow[1] & 0xFF;
-                            int g = currRow[2] & 0xFF;
-                            int b = currRow[3] & 0xFF;
-                            int a = currRow[4] & 0xFF;
-                            int v = (a << 24) | (r << 16) | (g << 8) | b;
-                            if (a == 0) {
-                                v = 0;
-                            }
-                            // initialise the first color slot
-                            table.findColorLookup(v);
-                            firstRow = false;
-                        }
-
-                        int readPtr = 1; // Skip predictor setting byte
-                        for (int x = 1; x < indexedRow.length; x++) {
-                            int r = currRow[readPtr++] & 0xFF;
-                            int g = currRow[readPtr++] & 0xFF;
-                            int b = currRow[readPtr++] & 0xFF;
-                            int a = currRow[readPtr++] & 0xFF;
-                            int v;
-                            if (a == 0) {
-                                v = 0;
-                            } else {
-                                v = (a << 24) | (r << 16) | (g << 8) | b;
-                            }
-                            indexedRow[x] = table.findColor(v);
-                        }
-
-                        out.write(indexedRow);
+        final long pixels = (long) width * height;
+        final int bandCount = (int) Math.max(1, Math.min(Math.min(parallelism, height), pixels / MIN_BAND_PIXELS));
+        final ColorScan scan = new ColorScan(image, hasAlpha, bandCount);
+        for (int i = 1; i < bandCount; i++) {
+            executor.execute(scan);
+        }
+        return scan.join();
+    }
+
+    private static int getRgbaColor(byte[] row, int readPtr) {
+        int r = row[readPtr] & 0xFF;
+        int g = row[readPtr + 1] & 0xFF;
+        int b = row[readPtr + 2] & 0xFF;
+        int a = row[readPtr + 3] & 0xFF;
+        if (a == 0) {
+            return 0;
+        }
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int getRgbColor(byte[] row, int readPtr) {
+        int r = row[readPtr] & 0xFF;
+        int g = row[readPtr + 1] & 0xFF;
+        int b = row[readPtr + 2] & 0xFF;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static final class ColorCollector extends AbstractPNGLineConsumer {
+        final ColorTable table = new ColorTable();
+        final boolean hasAlpha;
+        // The rows may be longer than the pixels.
+        final int rowEnd;
+        boolean tooManyColors;
+
+        ColorCollector(boolean hasAlpha, int width) {
+            this.hasAlpha = hasAlpha;
+            this.rowEnd = 1 + width * (hasAlpha ? 4 : 3);
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            if (tooManyColors) {
+                return;
+            }
+            if (hasAlpha) {
+                for (int readPtr = 1; readPtr < rowEnd; readPtr += 4) {
+                    if (table.add(getRgbaColor(currRow, readPtr)) < 0) {
+                        tooManyColors = true;
+                        return;
                     }
-                });
+                }
             } else {
-                PngEncoderScanlineUtil.stream(image, 0, image.getHeight(), new AbstractPNGLineConsumer() {
-                    boolean firstRow = true;
-
-                    @Override
-                    void consume(byte[] currRow, byte[] prevRow) throws IOException {
-                        if (firstRow) {
-                            int r = currRow[1] & 0xFF;
-                            int g = currRow[2] & 0xFF;
-                            int b = currRow[3] & 0xFF;
-                            int v = 0xFF000000 | (r << 16) | (g << 8) | b;
-                            // initialise the first color slot
-                            table.findColorLookup(v);
-                            firstRow = false;
-                        }
-
-                        int readPtr = 1; // Skip predictor setting byte
-                        for (int x = 1; x < indexedRow.length; x++) {
-                            int r = currRow[readPtr++] & 0xFF;
-                            int g = currRow[readPtr++] & 0xFF;
-                            int b = currRow[readPtr++] & 0xFF;
-                            int v = 0xFF000000 | (r << 16) | (g << 8) | b;
-                            indexedRow[x] = table.findColor(v);
-                        }
-
-                        out.write(indexedRow);
+                for (int readPtr = 1; readPtr < rowEnd; readPtr += 3) {
+                    if (table.add(getRgbColor(currRow, readPtr)) < 0) {
+                        tooManyColors = true;
+                        return;
                     }
-                });
+                }
             }
-        } catch (IndexOutOfBoundsException ignored) {
-            // We have more than 256 colors ...
-            return null;
+        }
+    }
+
+    /**
+     * Scans the bands of rows on every thread running it. The bands are claimed one after the other, so the thread
+     * that joins the scan never waits for a band that no thread has started yet.
+     */
+    private static final class ColorScan implements Runnable {
+        private final BufferedImage image;
+        private final boolean hasAlpha;
+        private final int bandHeight;
+        private final ColorTable[] tables;
+        private final AtomicInteger nextBand = new AtomicInteger();
+        private volatile boolean tooManyColors;
+        // Guarded by this.
+        private int bandsDone;
+        private Throwable failure;
+
+        ColorScan(BufferedImage image, boolean hasAlpha, int bandCount) {
+            this.image = image;
+            this.hasAlpha = hasAlpha;
+            this.bandHeight = (image.getHeight() + bandCount - 1) / bandCount;
+            this.tables = new ColorTable[bandCount];
         }
 
-        return makeIndexedEncoderResult(metaInfo, out, indexedRow.length, table);
+        @Override
+        public void run() {
+            int band;
+            while ((band = nextBand.getAndIncrement()) < tables.length) {
+                Throwable bandFailure = null;
+                try {
+                    if (!tooManyColors) {
+                        tables[band] = scanBand(band);
+                    }
+                } catch (Throwable t) {
+                    bandFailure = t;
+                }
+                synchronized (this) {
+                    if (bandFailure != null) {
+                        failure = bandFailure;
+                    }
+                    bandsDone++;
+                    notifyAll();
+                }
+            }
+        }
+
+        private ColorTable scanBand(int band) throws IOException {
+            final int yStart = band * bandHeight;
+            final int yEnd = Math.min(yStart + bandHeight, image.getHeight());
+            final ColorCollector collector = new ColorCollector(hasAlpha, image.getWidth());
+            final PngEncoderScratch scratch = PngEncoderScratch.acquire(true);
+            try {
+                for (int y = yStart; y < yEnd && !tooManyColors; y += SCAN_CHUNK_ROWS) {
+                    PngEncoderScanlineUtil.stream(image, y, Math.min(SCAN_CHUNK_ROWS, yEnd - y), collector, scratch);
+                    if (collector.tooManyColors) {
+                        tooManyColors = true;
+                    }
+                }
+            } finally {
+                scratch.release();
+            }
+            return collector.table;
+        }
+
+        /**
+         * Scans the bands left on the calling thread, waits for the others and merges the tables in the order of the
+         * bands.
+         *
+         * @return the colors in order of their first appearance, or null if the image has more than 256 colors
+         */
+        ColorTable join() throws IOException {
+            run();
+            synchronized (this) {
+                while (bandsDone < tables.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the color scan.");
+                    }
+                }
+            }
+            if (failure != null) {
+                throw new IOException("A color scan task failed.", failure);
+            }
+            if (tooManyColors) {
+                return null;
+            }
+            final ColorTable table = tables[0];
+            for (int i = 1; i < tables.length; i++) {
+                if (!table.addAll(tables[i])) {
+                    return null;
+                }
+            }
+            return table;
+        }
     }
 
-    private static IndexedEncoderResult makeIndexedEncoderResult(EncodingMetaInfo metaInfo, ByteArrayOutputStream out, int rowByteSize, ColorTable table) {
+    /**
+     * Maps the rows of the image to the palette.
+     */
+    private static final class PaletteRows extends PngEncoderRows {
+        private final BufferedImage image;
+        private final boolean hasAlpha;
+        private final ColorTable table;
+
+        PaletteRows(BufferedImage image, boolean hasAlpha, ColorTable table) {
+            this.image = image;
+            this.hasAlpha = hasAlpha;
+            this.table = table;
+        }
+
+        @Override
+        void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
+            PngEncoderScanlineUtil.stream(image, yStart, heightToStream, new Indexer(consumer), scratch);
+        }
+
+        private final class Indexer extends AbstractPNGLineConsumer {
+            private final AbstractPNGLineConsumer consumer;
+            private byte[] currIndexRow = new byte[image.getWidth() + 1];
+            private byte[] prevIndexRow = new byte[image.getWidth() + 1];
+            // Every thread has its own cache of the last color, the table is shared.
+            private int lastColor = ColorTable.NO_COLOR;
+            private int lastColorIndex;
+
+            Indexer(AbstractPNGLineConsumer consumer) {
+                this.consumer = consumer;
+            }
+
+            @Override
+            void consume(byte[] currRow, byte[] prevRow) throws IOException {
+                final byte[] indexRow = currIndexRow;
+                int readPtr = 1; // Skip predictor setting byte
+                if (hasAlpha) {
+                    for (int x = 1; x < indexRow.length; x++) {
+                        indexRow[x] = indexOf(getRgbaColor(currRow, readPtr));
+                        readPtr += 4;
+                    }
+                } else {
+                    for (int x = 1; x < indexRow.length; x++) {
+                        indexRow[x] = indexOf(getRgbColor(currRow, readPtr));
+                        readPtr += 3;
+                    }
+                }
+                consumer.consume(indexRow, prevIndexRow);
+                currIndexRow = prevIndexRow;
+                prevIndexRow = indexRow;
+            }
+
+            private byte indexOf(int color) {
+                if (lastColor != color) {
+                    lastColor = color;
+                    lastColorIndex = table.indexOf(color);
+                }
+                return (byte) lastColorIndex;
+            }
+        }
+    }
+
+    /**
+     * Copies the rows of an image that is indexed already, with a byte per pixel or packed like PNG packs them.
+     */
+    private static final class RasterRows extends PngEncoderRows {
+        private final byte[] rawBytes;
+        private final int rowLength;
+        // Clears the bits of the last byte that belong to no pixel.
+        private final int lastByteMask;
+        private final int scanlineStride;
+        private final int firstLinePtr;
+
+        RasterRows(byte[] rawBytes, int rowLength, int lastByteMask, int scanlineStride, int firstLinePtr) {
+            this.rawBytes = rawBytes;
+            this.rowLength = rowLength;
+            this.lastByteMask = lastByteMask;
+            this.scanlineStride = scanlineStride;
+            this.firstLinePtr = firstLinePtr;
+        }
+
+        @Override
+        void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
+            // The first byte is 0: No Predictor encoding
+            byte[] currRow = new byte[rowLength + 1];
+            byte[] prevRow = new byte[rowLength + 1];
+            int linePtr = firstLinePtr + yStart * scanlineStride;
+            for (int y = 0; y < heightToStream; y++) {
+                System.arraycopy(rawBytes, linePtr, currRow, 1, rowLength);
+                currRow[rowLength] &= lastByteMask;
+                consumer.consume(currRow, prevRow);
+                final byte[] row = currRow;
+                currRow = prevRow;
+                prevRow = row;
+                linePtr += scanlineStride;
+            }
+        }
+    }
+
+    /**
+     * @param rows the rows with a byte per pixel. With up to 16 colors they are packed into less.
+     */
+    private static IndexedEncoderResult makeIndexedEncoderResult(EncodingMetaInfo metaInfo, PngEncoderRows rows, int width, ColorTable table) {
+        final int bitDepth = PngEncoderPackedRows.getBitDepth(table.usedColors);
+        if (bitDepth < 8) {
+            return makeIndexedEncoderResult(metaInfo, new PngEncoderPackedRows(rows, width, bitDepth, null), width, bitDepth, table);
+        }
+        return makeIndexedEncoderResult(metaInfo, rows, width, bitDepth, table);
+    }
+
+    private static IndexedEncoderResult makeIndexedEncoderResult(EncodingMetaInfo metaInfo, PngEncoderRows rows, int width, int bitDepth, ColorTable table) {
         IndexedEncoderResult result = new IndexedEncoderResult();
-        result.rawIDAT = out.toByteArray();
+        result.rows = rows;
         result.colorTable = table.makeColorTable();
         if (metaInfo.hasAlpha) {
             result.transparencyTable = table.makeTransparencyTable();
         }
         metaInfo.colorSpaceType = ColorSpaceType.Indexed;
-        metaInfo.rowByteSize = rowByteSize;
+        metaInfo.bitsPerChannel = bitDepth;
+        metaInfo.rowByteSize = PngEncoderPackedRows.getRowByteSize(width, bitDepth);
+        // The filters work on the indices, and on whole bytes of packed indices.
+        metaInfo.bytesPerPixel = 1;
         return result;
     }
 
-    private static class ColorTable {
+    static class ColorTable {
+        // Open addressing with linear probing, at most half full with 256 colors. Hashing keeps the lookup of a color
+        // that is not the last one constant, while a linear search got slow with many colors.
+        private static final int HASH_BITS = 9;
+        private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+        // Transparent pixels are all mapped to 0, so this color never occurs.
+        static final int NO_COLOR = 1;
+
         int[] colorTable = new int[256];
         int usedColors = 0;
-        int lastColor;
+        int lastColor = NO_COLOR;
         int lastColorIndex = 0;
-
-        byte findColor(int color) {
+        // The colors and their index + 1, with index 0 for an empty slot.
+        private final int[] hashColors = new int[1 << HASH_BITS];
+        private final int[] hashIndices = new int[1 << HASH_BITS];
+
+        /**
+         * Adds the color if it is not in the table yet.
+         *
+         * @return the index of the color, or -1 if the table is full with 256 other colors
+         */
+        int add(int color) {
             if (lastColor == color) {
-                return (byte) lastColorIndex;
+                return lastColorIndex;
             }
-            return (byte) findColorLookup(color);
-        }
-
-        private int findColorLookup(int color) {
-            for (int i = 0; i < usedColors; i++) {
-                if (colorTable[i] == color) {
+            int slot = hash(color);
+            int index;
+            while ((index = hashIndices[slot]) != 0) {
+                if (hashColors[slot] == color) {
                     lastColor = color;
-                    lastColorIndex = i;
-                    return i;
+                    lastColorIndex = index - 1;
+                    return index - 1;
                 }
+                slot = (slot + 1) & HASH_MASK;
             }
 
-            int colorIndex = usedColors++;
+            // The table is at most half full, so there always is an empty slot.
+            if (usedColors == colorTable.length) {
+                return -1;
+            }
+            final int colorIndex = usedColors++;
             colorTable[colorIndex] = color;
+            hashColors[slot] = color;
+            hashIndices[slot] = colorIndex + 1;
             lastColor = color;
             lastColorIndex = colorIndex;
             return colorIndex;
         }
 
+        /**
+         * Looks the color up without touching the cache of the last color, so that several threads can look up colors
+         * in the same table once it is complete.
+         *
+         * @return the index of the color, which must be in the table
+         */
+        int indexOf(int color) {
+            int slot = hash(color);
+            while (hashIndices[slot] != 0 && hashColors[slot] != color) {
+                slot = (slot + 1) & HASH_MASK;
+            }
+            return hashIndices[slot] - 1;
+        }
+
+        /**
+         * Adds the colors of the other table in their order.
+         *
+         * @return false if the tables have more than 256 colors together
+         */
+        boolean addAll(ColorTable other) {
+            for (int i = 0; i < other.usedColors; i++) {
+                if (add(other.colorTable[i]) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(int color) {
+            // Fibonacci hashing, the top bits of the product depend on all bits of the color.
+            return (color * 0x9E3779B9) >>> (32 - HASH_BITS);
+        }
+
         public byte[] makeColorTable() {
             byte[] res = new byte[3 * usedColors];
             int dest = 0;
@@ -204,7 +494,8 @@ public class PngEncoderIndexed {
             // We can not encode that many colors
             return null;
         }
-        Raster imageRaster = image.getData();
+        // The raster itself, not a copy of it like getData() returns.
+        Raster imageRaster = image.getRaster();
         DataBuffer dataBuffer = imageRaster.getDataBuffer();
         if (!(dataBuffer instanceof DataBufferByte)) {
             // We can only handle byte buffers here
@@ -218,7 +509,6 @@ public class PngEncoderIndexed {
         }
 
         int width = image.getWidth();
-        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getHeight() * width);
 
         PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
         byte[] rawBytes = dataBufferByte.getData();
@@ -226,22 +516,56 @@ public class PngEncoderIndexed {
         int pixelStride = sampleModel.getPixelStride();
 
         assert pixelStride == 1;
-        int yStart = 0;
-        int heightToStream = image.getHeight();
-        int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
+        int firstLinePtr = scanlineStride * -imageRaster.getSampleModelTranslateY()
                 - imageRaster.getSampleModelTranslateX() * pixelStride;
-        for (int y = 0; y < heightToStream; y++) {
-            int pixelPtr = linePtr;
 
-            out.write(0); // No Predictor encoding
-            out.write(rawBytes, pixelPtr, width);
+        ColorTable table = new ColorTable();
+        table.copyFromIndexedColorModel(colorModel);
+
+        return makeIndexedEncoderResult(metaInfo, new RasterRows(rawBytes, width, 0xFF, scanlineStride, firstLinePtr), width, table);
+    }
 
-            linePtr += scanlineStride;
+    /*
+     * Images with 1, 2 or 4 bits per pixel, such as TYPE_BYTE_BINARY, store their rows packed like PNG does. So they
+     * are copied as they are, instead of being read pixel by pixel.
+     */
+    static IndexedEncoderResult encodeImageFromPacked(BufferedImage image, EncodingMetaInfo metaInfo) {
+        if (!(image.getColorModel() instanceof IndexColorModel)) {
+            return null;
+        }
+        IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+        if (colorModel.getMapSize() > 256) {
+            // We can not encode that many colors
+            return null;
+        }
+        Raster imageRaster = image.getRaster();
+        if (!(imageRaster.getSampleModel() instanceof MultiPixelPackedSampleModel) || !(imageRaster.getDataBuffer() instanceof DataBufferByte)) {
+            // Unsupported
+            return null;
+        }
+        MultiPixelPackedSampleModel sampleModel = (MultiPixelPackedSampleModel) imageRaster.getSampleModel();
+        int bitDepth = sampleModel.getPixelBitStride();
+        // The first pixel of a row must start a byte, which it may not in a subimage.
+        int firstBitOffset = sampleModel.getDataBitOffset() - imageRaster.getSampleModelTranslateX() * bitDepth;
+        if ((bitDepth != 1 && bitDepth != 2 && bitDepth != 4) || firstBitOffset % 8 != 0) {
+            return null;
         }
+        assert colorModel.hasAlpha() == metaInfo.hasAlpha;
+
+        int width = image.getWidth();
+        int usedBits = width * bitDepth % 8;
+        int lastByteMask = usedBits == 0 ? 0xFF : (0xFF << (8 - usedBits)) & 0xFF;
+        DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int firstLinePtr = dataBufferByte.getOffset() + scanlineStride * -imageRaster.getSampleModelTranslateY() + firstBitOffset / 8;
+        RasterRows rows = new RasterRows(dataBufferByte.getData(), PngEncoderPackedRows.getRowByteSize(width, bitDepth) - 1,
+                lastByteMask, scanlineStride, firstLinePtr);
 
         ColorTable table = new ColorTable();
         table.copyFromIndexedColorModel(colorModel);
+        // The pixels can not refer to more colors than fit into their bits.
+        table.usedColors = Math.min(table.usedColors, 1 << bitDepth);
 
-        return makeIndexedEncoderResult(metaInfo, out, width + 1, table);
+        return makeIndexedEncoderResult(metaInfo, rows, width, bitDepth, table);
     }
 }
@@ -5,14 +5,17 @@ import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
 
 import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.CRC32;
-import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 class PngEncoderLogic {
@@ -27,6 +30,15 @@ class PngEncoderLogic {
     // This is the "file ending"
     static final byte[] FILE_ENDING = {0, 0, 0, 0, 73, 69, 78, 68, -82, 66, 96, -126};
 
+    static final byte[] CHUNK_TYPE_IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_SRGB = "sRGB".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_GAMA = "gAMA".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_CHRM = "cHRM".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_PHYS = "pHYs".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_ICCP = "iCCP".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_PLTE = "PLTE".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK_TYPE_TRNS = "tRNS".getBytes(StandardCharsets.US_ASCII);
+
     static final byte IHDR_COLOR_TYPE_GREY = 0;
     static final byte IHDR_COLOR_TYPE_RGB = 2;
     static final byte IHDR_COLOR_TYPE_INDEXED = 3;
@@ -54,6 +66,9 @@ class PngEncoderLogic {
             .putInt(6000)
             .array();
 
+    // Runs segment tasks on the thread writing the stream.
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
     private PngEncoderLogic() {
     }
 
@@ -62,32 +77,148 @@ class PngEncoderLogic {
         void encodeImageData(boolean isMultithreaded, OutputStream out) throws IOException;
     }
 
-    private static void encodeWithCompressorStream(boolean multiThreadedCompressionEnabled, int compressionLevel, BufferedImage bufferedImage, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo,
-            OutputStream outputStream,
+    private static void encodeWithCompressorStream(PngEncoder pngEncoder, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo,
+            OutputStream outputStream, PngEncoderStatistics statistics, PngEncoderScratch scratch, long startNanos,
             IDoWithDeflaterStream action) throws IOException {
-        int estimatedBytes = metaInfo.rowByteSize * bufferedImage.getHeight();
-        final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(estimatedBytes);
-        if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
-            Deflater deflater = new Deflater(compressionLevel);
-            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, deflater);
+        final int compressionLevel = pngEncoder.getCompressionLevel();
+        final PngEncoderCompressor compressor = getCompressor(pngEncoder);
+        // Deterministic segmentation compresses in the same segments whether single or multithreaded.
+        final boolean deterministic = pngEncoder.isDeterministicSegmentationEnabled();
+        // A single Deflater stream does not have segments to choose the strategy or the level for.
+        final boolean deflaterStream = pngEncoder.getCompressor() == PngEncoderCompressor.deflater()
+                && pngEncoder.getDeflateStrategy() != PngEncoderDeflateStrategy.AUTO
+                && pngEncoder.getDeadline() == null
+                && !deterministic;
+        final boolean dictionaryChainingEnabled = pngEncoder.isDictionaryChainingEnabled();
+        int estimatedBytes = metaInfo.rowByteSize * pngEncoder.getBufferedImage().getHeight();
+        final int parallelism = getParallelism(pngEncoder);
+        final PngEncoderSegmentPlanner.Throughput throughput = compressor.throughputModel.get(compressionLevel, pngEncoder.isPredictorEncodingEnabled());
+        // An explicit parallelism plans by size only, so that the segments do not depend on earlier encodes.
+        final double nanosPerByte = pngEncoder.getParallelism() > 0 || deterministic ? 0 : throughput.getNanosPerByte();
+        final int segmentMaxLengthUnaligned = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(
+                estimatedBytes, deterministic ? PngEncoderSegmentPlanner.DETERMINISTIC_PARALLELISM : parallelism,
+                nanosPerByte, dictionaryChainingEnabled);
+        final boolean singleThreaded = estimatedBytes <= segmentMaxLengthUnaligned || !pngEncoder.isMultiThreadedCompressionEnabled()
+                || pngEncoder.getParallelism() == 1;
+        if (singleThreaded && deflaterStream && compressionLevel == 0) {
+            // Nothing to compress, so no need for a Deflater.
+            PngEncoderStoredOutputStream storedOutputStream = scratch.getStoredOutputStream(outputStream);
+            action.encodeImageData(false, storedOutputStream);
+            storedOutputStream.finish();
+        } else if (singleThreaded && deflaterStream) {
+            DeflaterOutputStream deflaterOutputStream = scratch.getDeflaterOutputStream(outputStream, compressionLevel, pngEncoder.getDeflateStrategy().getValue());
             action.encodeImageData(false, deflaterOutputStream);
             deflaterOutputStream.finish();
             deflaterOutputStream.flush();
-            deflater.end();
         } else {
+            // Other compressors and AUTO only know segments. Single threaded they are compressed one after the other on this
+            // thread, each primed with the previous one unless the segments must not depend on the threads.
+            final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginalRowAligned(segmentMaxLengthUnaligned, metaInfo.rowByteSize);
+            final PngEncoderDeflaterScheduler.Client schedulerClient = !singleThreaded && pngEncoder.getFairShareSchedulingWeight() > 0
+                    ? PngEncoderDeflaterScheduler.getInstance().register(pngEncoder.getFairShareSchedulingWeight())
+                    : null;
+            final Executor executor = singleThreaded ? DIRECT_EXECUTOR : getExecutorService(pngEncoder);
+            final PngEncoderDeadline deadline = pngEncoder.getDeadline() != null
+                    ? new PngEncoderDeadline(startNanos, pngEncoder.getDeadline(), compressionLevel, estimatedBytes,
+                            singleThreaded ? 1 : parallelism, compressor.throughputModel, pngEncoder.isPredictorEncodingEnabled())
+                    : null;
             PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(
-                    outputStream, compressionLevel, segmentMaxLengthOriginal);
-            action.encodeImageData(true, deflaterOutputStream);
-            deflaterOutputStream.finish();
+                    outputStream, compressionLevel, segmentMaxLengthOriginal, dictionaryChainingEnabled || (singleThreaded && !deterministic),
+                    executor, schedulerClient, scratch, compressor, PngEncoderSegmentPlanner.getMaxQueuedSegments(parallelism),
+                    throughput, deadline);
+            try {
+                action.encodeImageData(true, deflaterOutputStream);
+                deflaterOutputStream.finish();
+            } catch (Throwable t) {
+                // Queued segments of a failed encode must not hold on to the scheduler or the buffers.
+                deflaterOutputStream.abort();
+                throw t;
+            }
+            statistics.setSegmentCount(deflaterOutputStream.getSegmentCount());
+            if (!singleThreaded) {
+                statistics.setParallelism(parallelism);
+            }
+            if (deadline != null) {
+                statistics.setSegmentCompressionLevels(deadline.getSegmentCompressionLevels());
+            }
+            if (schedulerClient != null) {
+                statistics.setQueueingDelayNanos(schedulerClient.getTotalQueueingDelayNanos(), schedulerClient.getMaxQueueingDelayNanos());
+            }
+        }
+    }
+
+    static PngEncoderCompressor getCompressor(PngEncoder pngEncoder) {
+        final PngEncoderCompressor compressor = pngEncoder.getCompressor();
+        return compressor == PngEncoderCompressor.deflater()
+                ? PngEncoderDeflaterCompressor.getInstance(pngEncoder.getDeflateStrategy())
+                : compressor;
+    }
+
+    /**
+     * @return the number of threads to plan the segments for, see {@link PngEncoder#withParallelism(int)}
+     */
+    static int getParallelism(PngEncoder pngEncoder) {
+        if (pngEncoder.getParallelism() > 0) {
+            return pngEncoder.getParallelism();
+        }
+        if (!pngEncoder.isMultiThreadedCompressionEnabled()) {
+            return 1;
         }
+        return PngEncoderSegmentPlanner.getAvailableParallelism(getExecutorService(pngEncoder));
+    }
+
+    static ExecutorService getExecutorService(PngEncoder pngEncoder) {
+        final ExecutorService executorService = pngEncoder.getExecutorService();
+        return executorService != null ? executorService : PngEncoderDeflaterExecutorService.getDefault();
     }
 
-    static int encode(BufferedImage bufferedImage, OutputStream outputStream, int compressionLevel,
-            boolean multiThreadedCompressionEnabled, PngEncoderSrgbRenderingIntent srgbRenderingIntent,
-            PngEncoderPhysicalPixelDimensions physicalPixelDimensions, boolean usePredictor, boolean tryIndexedEncoding) throws IOException {
-        Objects.requireNonNull(bufferedImage, "bufferedImage");
+    static int encode(PngEncoder pngEncoder, OutputStream outputStream, PngEncoderStatistics statistics) throws IOException {
+        Objects.requireNonNull(pngEncoder.getBufferedImage(), "bufferedImage");
         Objects.requireNonNull(outputStream, "outputStream");
 
+        if (pngEncoder.getOptimizationEffort() > 0) {
+            return PngEncoderOptimizer.encode(pngEncoder, outputStream, statistics);
+        }
+
+        final PngEncoderScratch scratch = PngEncoderScratch.acquire(pngEncoder.isThreadLocalScratchEnabled());
+        try {
+            return encode(pngEncoder, outputStream, statistics, scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * @param metaInfo the metaInfos of the image, changed to those of the indexed image if it is one
+     * @return the palette and the rows if the image is encoded as indexed image, or null
+     */
+    static IndexedEncoderResult getIndexedEncoderResult(PngEncoder pngEncoder, BufferedImage bufferedImage, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo) throws IOException {
+        if (bufferedImage.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
+            return PngEncoderIndexed.encodeImageFromIndexed(bufferedImage, metaInfo);
+        }
+        if (bufferedImage.getSampleModel() instanceof MultiPixelPackedSampleModel) {
+            return PngEncoderIndexed.encodeImageFromPacked(bufferedImage, metaInfo);
+        }
+        if (!pngEncoder.isTryIndexedEncodingEnabled()) {
+            return null;
+        }
+        // The colors are scanned in bands on the executor, as many as there are threads for the segments.
+        return pngEncoder.isMultiThreadedCompressionEnabled()
+                ? PngEncoderIndexed.encodeImage(bufferedImage, metaInfo, getExecutorService(pngEncoder), getParallelism(pngEncoder))
+                : PngEncoderIndexed.encodeImage(bufferedImage, metaInfo);
+    }
+
+    private static int encode(PngEncoder pngEncoder, OutputStream outputStream, PngEncoderStatistics statistics, PngEncoderScratch scratch) throws IOException {
+        final long startNanos = System.nanoTime();
+        final BufferedImage bufferedImage = pngEncoder.getBufferedImage();
+
+        final PngEncoderSrgbRenderingIntent srgbRenderingIntent = pngEncoder.getSrgbRenderingIntent();
+        final PngEncoderPhysicalPixelDimensions physicalPixelDimensions = pngEncoder.getPhysicalPixelDimensions();
+        // Filter type 0 for every row is the same as no predictor encoding, which skips the filtering.
+        final PngEncoderFilterStrategy filterStrategy = pngEncoder.getFilterStrategy();
+        final boolean usePredictor = pngEncoder.isPredictorEncodingEnabled() && filterStrategy != PngEncoderFilterStrategy.NONE;
+        final int compressionLevel = pngEncoder.getCompressionLevel();
+
         PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage);
         final int width = bufferedImage.getWidth();
         final int height = bufferedImage.getHeight();
@@ -95,60 +226,74 @@ class PngEncoderLogic {
 
         countingOutputStream.write(FILE_BEGINNING);
 
-        IndexedEncoderResult indexedEncoderResult = null;
-        if (bufferedImage.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
-            indexedEncoderResult = PngEncoderIndexed.encodeImageFromIndexed(bufferedImage, metaInfo);
-        } else if (tryIndexedEncoding) {
-            indexedEncoderResult = PngEncoderIndexed.encodeImage(bufferedImage, metaInfo);
-        }
+        final IndexedEncoderResult indexedEncoderResult = getIndexedEncoderResult(pngEncoder, bufferedImage, metaInfo);
+
+        // Gray images with only 2, 4 or 16 evenly spaced levels are packed into 1, 2 or 4 bits per pixel.
+        final PngEncoderRows rows = indexedEncoderResult != null
+                ? indexedEncoderResult.rows
+                : PngEncoderPackedRows.packGray(bufferedImage, metaInfo, scratch);
 
         final byte[] ihdr = getIhdrHeader(width, height, metaInfo);
-        final byte[] ihdrChunk = asChunk("IHDR", ihdr);
-        countingOutputStream.write(ihdrChunk);
+        writeChunk(countingOutputStream, CHUNK_TYPE_IHDR, ihdr, scratch.getCrc());
 
         if (srgbRenderingIntent != null && metaInfo.colorProfile == null) {
-            outputStream.write(asChunk("sRGB", new byte[]{srgbRenderingIntent.getValue()}));
-            outputStream.write(asChunk("gAMA", GAMA_SRGB_VALUE));
-            outputStream.write(asChunk("cHRM", CHRM_SRGB_VALUE));
+            writeChunk(outputStream, CHUNK_TYPE_SRGB, new byte[]{srgbRenderingIntent.getValue()}, scratch.getCrc());
+            writeChunk(outputStream, CHUNK_TYPE_GAMA, GAMA_SRGB_VALUE, scratch.getCrc());
+            writeChunk(outputStream, CHUNK_TYPE_CHRM, CHRM_SRGB_VALUE, scratch.getCrc());
         }
 
         if (physicalPixelDimensions != null) {
-            outputStream.write(asChunk("pHYs", getPhysicalPixelDimensions(physicalPixelDimensions)));
+            writeChunk(outputStream, CHUNK_TYPE_PHYS, getPhysicalPixelDimensions(physicalPixelDimensions), scratch.getCrc());
         }
 
         if (metaInfo.colorProfile != null) {
             byte[] iCCP = getICCP(metaInfo.colorProfile);
-            outputStream.write(asChunk("iCCP", iCCP));
+            writeChunk(outputStream, CHUNK_TYPE_ICCP, iCCP, scratch.getCrc());
         }
 
         PngEncoderIdatChunksOutputStream idatChunksOutputStream = new PngEncoderIdatChunksOutputStream(
-                countingOutputStream);
+                countingOutputStream, scratch.getIdatBuffer(), scratch.getCrc());
         if (indexedEncoderResult != null) {
-            outputStream.write(asChunk("PLTE", indexedEncoderResult.colorTable));
+            writeChunk(outputStream, CHUNK_TYPE_PLTE, indexedEncoderResult.colorTable, scratch.getCrc());
             if (indexedEncoderResult.transparencyTable != null) {
-                outputStream.write(asChunk("tRNS", indexedEncoderResult.transparencyTable));
+                writeChunk(outputStream, CHUNK_TYPE_TRNS, indexedEncoderResult.transparencyTable, scratch.getCrc());
             }
-            byte[] rawIDAT = indexedEncoderResult.rawIDAT;
-            encodeWithCompressorStream(multiThreadedCompressionEnabled, compressionLevel, bufferedImage, metaInfo, idatChunksOutputStream, (isMultithreaded, out) -> {
-                out.write(rawIDAT);
+        }
+        if (rows != null) {
+            // The rows are mapped to the palette or packed while they are compressed, on the workers if multithreaded.
+            final PngEncoderFilterStrategy rowsFilterStrategy = indexedEncoderResult != null
+                    ? pngEncoder.getIndexedFilterStrategy()
+                    : usePredictor ? filterStrategy : PngEncoderFilterStrategy.NONE;
+            encodeWithCompressorStream(pngEncoder, metaInfo, idatChunksOutputStream, statistics, scratch, startNanos, (isMultithreaded, out) -> {
+                if (isMultithreaded) {
+                    rows.encodeMultiThreaded(metaInfo, height, rowsFilterStrategy, compressionLevel, (PngEncoderDeflaterOutputStream) out);
+                } else {
+                    rows.encodeSingleThreaded(metaInfo, height, rowsFilterStrategy, compressionLevel, out, scratch);
+                }
             });
         } else {
             if (usePredictor) {
-                encodeWithCompressorStream(multiThreadedCompressionEnabled, compressionLevel, bufferedImage, metaInfo, idatChunksOutputStream, (isMultithreaded, out) -> {
+                encodeWithCompressorStream(pngEncoder, metaInfo, idatChunksOutputStream, statistics, scratch, startNanos, (isMultithreaded, out) -> {
                     if (isMultithreaded) {
-                        PngEncoderPredictor.encodeImageMultiThreaded(bufferedImage, metaInfo, out);
+                        PngEncoderPredictor.encodeImageMultiThreaded(bufferedImage, metaInfo, filterStrategy, compressionLevel, (PngEncoderDeflaterOutputStream) out);
                     } else {
-                        PngEncoderPredictor.encodeImageSingleThreaded(bufferedImage, metaInfo, out);
+                        PngEncoderPredictor.encodeImageSingleThreaded(bufferedImage, metaInfo, filterStrategy, compressionLevel, out, scratch);
                     }
                 });
             } else {
-                encodeWithCompressorStream(multiThreadedCompressionEnabled, compressionLevel, bufferedImage, metaInfo, idatChunksOutputStream, (isMultithreaded, out) -> {
+                encodeWithCompressorStream(pngEncoder, metaInfo, idatChunksOutputStream, statistics, scratch, startNanos, (isMultithreaded, out) -> {
+                    if (isMultithreaded) {
+                        // The workers extract the rows of their segments straight from the raster.
+                        ((PngEncoderDeflaterOutputStream) out).writeSegments(
+                                new PngEncoderScanlineUtil.SegmentProducer(bufferedImage, metaInfo), bufferedImage.getHeight());
+                        return;
+                    }
                     PngEncoderScanlineUtil.stream(bufferedImage, 0, bufferedImage.getHeight(), new AbstractPNGLineConsumer() {
                         @Override
                         void consume(byte[] currRow, byte[] prevRow) throws IOException {
                             out.write(currRow);
                         }
-                    });
+                    }, scratch);
                 });
             }
         }
@@ -246,14 +391,34 @@ class PngEncoderLogic {
 
     static byte[] asChunk(String type, byte[] data) {
         PngEncoderVerificationUtil.verifyChunkType(type);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(data.length + 12);
-        byteBuffer.putInt(data.length);
-        ByteBuffer byteBufferForCrc = byteBuffer.slice().asReadOnlyBuffer();
-        byteBufferForCrc.limit(4 + data.length);
-        byteBuffer.put(type.getBytes(StandardCharsets.US_ASCII));
-        byteBuffer.put(data);
-        byteBuffer.putInt(getCrc32(byteBufferForCrc));
-        return byteBuffer.array();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 12);
+        try {
+            writeChunk(out, type.getBytes(StandardCharsets.US_ASCII), data, new CRC32());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a chunk without creating a copy of the data.
+     *
+     * @param crc a reset CRC32 to use for the checksum
+     */
+    static void writeChunk(OutputStream out, byte[] type, byte[] data, CRC32 crc) throws IOException {
+        writeInt(out, data.length);
+        out.write(type);
+        out.write(data);
+        crc.update(type, 0, type.length);
+        crc.update(data, 0, data.length);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int i) throws IOException {
+        out.write((i >> 24) & 0xFF);
+        out.write((i >> 16) & 0xFF);
+        out.write((i >> 8) & 0xFF);
+        out.write(i & 0xFF);
     }
 
     static int getCrc32(ByteBuffer byteBuffer) {
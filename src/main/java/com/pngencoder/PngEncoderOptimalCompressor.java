@@ -0,0 +1,557 @@
+package com.pngencoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An optimal parsing deflate in the spirit of Zopfli, see {@link PngEncoderCompressor#optimal(int)}.
+ * <p>
+ * The matches of every position are found once: for every length the nearest distance it can be matched at. A greedy
+ * parse of these is split into blocks where the estimated size says so. Then each block is parsed as the shortest
+ * path through its bytes, where the cost of a literal or match is its number of bits with the Huffman codes of the
+ * previous parse. This is repeated a number of times, keeping the smallest parse, and written with Huffman codes
+ * fitted to it.
+ * <p>
+ * It takes in the order of a hundred times longer than the Deflater at level 9, which is why it only makes sense for
+ * images encoded once and served many times. Each segment is compressed on its own, so all cores share the work.
+ */
+final class PngEncoderOptimalCompressor extends PngEncoderCompressor {
+    static final int DEFAULT_ITERATION_COUNT = 15;
+
+    private static final int MIN_MATCH = PngEncoderDeflateBlockWriter.MIN_MATCH;
+    private static final int MAX_MATCH = PngEncoderDeflateBlockWriter.MAX_MATCH;
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final int HASH_BITS = 15;
+
+    // How many earlier positions with the same hash are tried per position.
+    private static final int MAX_CHAIN_LENGTH = 8192;
+
+    // Segments this small are not worth it.
+    private static final int MIN_INPUT_LENGTH = 64;
+
+    private static final int MAX_BLOCK_COUNT = 15;
+    // Blocks of fewer symbols are not split further.
+    private static final int MIN_SPLIT_SYMBOL_COUNT = 10;
+    // Ranges of fewer symbols are searched for a split point exhaustively.
+    private static final int EXHAUSTIVE_SPLIT_SYMBOL_COUNT = 1024;
+    private static final int SPLIT_POINT_COUNT = 9;
+
+    private static final ThreadLocal<State> THREAD_LOCAL = ThreadLocal.withInitial(State::new);
+
+    /**
+     * The buffers of a thread, grown as needed and kept between segments.
+     */
+    private static class State {
+        final int[] head = new int[1 << HASH_BITS];
+        final int[] sameHead = new int[1 << HASH_BITS];
+        final PngEncoderDeflateBlockWriter blockWriter = new PngEncoderDeflateBlockWriter();
+        final PngEncoderDeflateBlockWriter.Symbols greedy = new PngEncoderDeflateBlockWriter.Symbols();
+        PngEncoderDeflateBlockWriter.Symbols current = new PngEncoderDeflateBlockWriter.Symbols();
+        PngEncoderDeflateBlockWriter.Symbols best = new PngEncoderDeflateBlockWriter.Symbols();
+        final int[] literalLengthCounts = new int[PngEncoderDeflateBlockWriter.LITERAL_LENGTH_CODE_COUNT];
+        final int[] distanceCounts = new int[PngEncoderDeflateBlockWriter.DISTANCE_CODE_COUNT];
+        final float[] literalCosts = new float[256];
+        final float[] lengthCosts = new float[MAX_MATCH + 1];
+        final float[] distanceSymbolCosts = new float[PngEncoderDeflateBlockWriter.DISTANCE_CODE_COUNT];
+
+        byte[] window = new byte[0];
+        int[] previous = new int[0];
+        // How many times the byte at a position of the window repeats from there, up to MAX_MATCH, and the chain of
+        // the earlier positions with the same hash and the same number of repetitions.
+        int[] same = new int[0];
+        int[] sameHashes = new int[0];
+        int[] samePrevious = new int[0];
+        int[] runs = new int[0];
+        // The matches of position i of the segment are matches[matchStarts[i]] until matches[matchStarts[i + 1]],
+        // each a length and the nearest distance for all lengths up to it, packed as length << 16 | distance.
+        int[] matchStarts = new int[0];
+        int[] matches = new int[1024];
+        float[] costs = new float[0];
+        int[] pathLengths = new int[0];
+        int[] pathDistances = new int[0];
+
+        void ensureCapacity(int windowLength, int inputLength) {
+            if (window.length < windowLength) {
+                window = new byte[windowLength];
+                previous = new int[windowLength];
+                same = new int[windowLength];
+                sameHashes = new int[windowLength];
+                samePrevious = new int[windowLength];
+            }
+            if (matchStarts.length < inputLength + 1) {
+                matchStarts = new int[inputLength + 1];
+                runs = new int[inputLength];
+                costs = new float[inputLength + 1];
+                pathLengths = new int[inputLength + 1];
+                pathDistances = new int[inputLength + 1];
+            }
+        }
+    }
+
+    private final int iterationCount;
+
+    PngEncoderOptimalCompressor(int iterationCount) {
+        this.iterationCount = iterationCount;
+    }
+
+    int getIterationCount() {
+        return iterationCount;
+    }
+
+    @Override
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] dictionary, int dictionaryLength,
+            byte[] output, int outputOffset, int compressionLevel, boolean lastSegment) {
+        if (compressionLevel == 0 || inputLength < MIN_INPUT_LENGTH) {
+            return compressStored(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+        }
+
+        final State state = THREAD_LOCAL.get();
+
+        // Matches into the dictionary need it in front of the input.
+        final int usedDictionaryLength = dictionary != null ? Math.min(dictionaryLength, WINDOW_SIZE) : 0;
+        final int start = usedDictionaryLength;
+        final int end = start + inputLength;
+        state.ensureCapacity(end, inputLength);
+        final byte[] window = state.window;
+        if (usedDictionaryLength > 0) {
+            System.arraycopy(dictionary, dictionaryLength - usedDictionaryLength, window, 0, usedDictionaryLength);
+        }
+        System.arraycopy(input, inputOffset, window, start, inputLength);
+
+        findMatches(state, start, end);
+        findRuns(state, start, end);
+        parseGreedy(state, start, end);
+        final int[] blockStarts = splitBlocks(state, start);
+
+        final PngEncoderDeflateBlockWriter blockWriter = state.blockWriter;
+        blockWriter.reset();
+        for (int block = 0; block < blockStarts.length - 1; block++) {
+            final int blockStart = blockStarts[block];
+            final int blockEnd = blockStarts[block + 1];
+            parseOptimal(state, start, blockStart, blockEnd);
+            final boolean lastBlock = lastSegment && block == blockStarts.length - 2;
+            blockWriter.writeBlock(state.best, 0, state.best.size(), window, blockStart, lastBlock);
+        }
+        if (!lastSegment) {
+            blockWriter.writeSyncFlush();
+        }
+        final int length = blockWriter.finish();
+
+        if (length > getMaxCompressedLength(inputLength)) {
+            return compressStored(input, inputOffset, inputLength, output, outputOffset, lastSegment);
+        }
+        System.arraycopy(blockWriter.getBytes(), 0, output, outputOffset, length);
+        return length;
+    }
+
+    /**
+     * Finds the matches of every position from start to end with hash chains, which also cover the dictionary.
+     * Walking the chain from the nearest position, every longer match found gives the nearest distance for the
+     * lengths up to it.
+     */
+    private static void findMatches(State state, int start, int end) {
+        final byte[] window = state.window;
+        final int[] head = state.head;
+        final int[] previous = state.previous;
+        final int[] sameHead = state.sameHead;
+        final int[] same = state.same;
+        final int[] sameHashes = state.sameHashes;
+        final int[] samePrevious = state.samePrevious;
+        final int[] matchStarts = state.matchStarts;
+        int[] matches = state.matches;
+        int matchCount = 0;
+        Arrays.fill(head, -1);
+        Arrays.fill(sameHead, -1);
+
+        same[end - 1] = 1;
+        for (int position = end - 2; position >= 0; position--) {
+            same[position] = window[position] == window[position + 1] ? Math.min(same[position + 1] + 1, MAX_MATCH) : 1;
+        }
+
+        for (int position = 0; position < end; position++) {
+            if (position >= start) {
+                matchStarts[position - start] = matchCount;
+            }
+            if (position + MIN_MATCH > end) {
+                continue;
+            }
+            final int hash = hash(window, position);
+            final int positionSame = same[position];
+            final int sameHash = (hash ^ positionSame * 0x9E37) & ((1 << HASH_BITS) - 1);
+            if (position >= start) {
+                final int maxLength = Math.min(MAX_MATCH, end - position);
+                int bestLength = MIN_MATCH - 1;
+                int candidate = head[hash];
+                int chainLength = MAX_CHAIN_LENGTH;
+                boolean onSameChain = false;
+                while (candidate >= 0 && position - candidate <= WINDOW_SIZE && chainLength-- > 0) {
+                    if (window[candidate] == window[position] && window[candidate + bestLength] == window[position + bestLength]) {
+                        // Within runs of the same byte the repetitions tell the length, unless both runs are as long.
+                        final int candidateSame = same[candidate];
+                        int length = Math.min(Math.min(candidateSame, positionSame), maxLength);
+                        if (candidateSame == positionSame) {
+                            while (length < maxLength && window[candidate + length] == window[position + length]) {
+                                length++;
+                            }
+                        }
+                        if (length > bestLength) {
+                            if (matchCount == matches.length) {
+                                matches = Arrays.copyOf(matches, matchCount * 2);
+                                state.matches = matches;
+                            }
+                            matches[matchCount++] = length << 16 | (position - candidate);
+                            bestLength = length;
+                            if (length == maxLength) {
+                                break;
+                            }
+                        }
+                    }
+                    if (!onSameChain && bestLength >= positionSame && sameHashes[candidate] == sameHash) {
+                        // Only runs as long as the one at this position can give a longer match from now on, and the
+                        // earlier ones are all on the chain of this candidate.
+                        onSameChain = true;
+                    }
+                    candidate = onSameChain ? samePrevious[candidate] : previous[candidate];
+                }
+            }
+            previous[position] = head[hash];
+            head[hash] = position;
+            sameHashes[position] = sameHash;
+            samePrevious[position] = sameHead[sameHash];
+            sameHead[sameHash] = position;
+        }
+        matchStarts[end - start] = matchCount;
+    }
+
+    /**
+     * Counts for every position of the segment how many bytes repeat from there at the distance of its match of the
+     * maximum length, which covers runs of one byte as well as repeated pixels. Zero without such a match.
+     */
+    private static void findRuns(State state, int start, int end) {
+        final int[] runs = state.runs;
+        final int[] matchStarts = state.matchStarts;
+        final int[] matches = state.matches;
+        int nextDistance = 0;
+        for (int i = end - start - 1; i >= 0; i--) {
+            final int distance = getMaxMatchDistance(matchStarts, matches, i);
+            if (distance == 0) {
+                runs[i] = 0;
+            } else if (distance == nextDistance) {
+                runs[i] = runs[i + 1] + 1;
+            } else {
+                runs[i] = MAX_MATCH;
+            }
+            nextDistance = distance;
+        }
+    }
+
+    /**
+     * @return the distance of the match of the maximum length at position i of the segment, or 0 if there is none
+     */
+    private static int getMaxMatchDistance(int[] matchStarts, int[] matches, int i) {
+        final int matchEnd = matchStarts[i + 1];
+        if (matchEnd > matchStarts[i] && matches[matchEnd - 1] >>> 16 == MAX_MATCH) {
+            return matches[matchEnd - 1] & 0xFFFF;
+        }
+        return 0;
+    }
+
+    private static void parseGreedy(State state, int start, int end) {
+        final PngEncoderDeflateBlockWriter.Symbols greedy = state.greedy;
+        greedy.clear();
+        int position = start;
+        while (position < end) {
+            final int matchEnd = state.matchStarts[position - start + 1];
+            if (matchEnd > state.matchStarts[position - start]) {
+                final int match = state.matches[matchEnd - 1];
+                final int length = match >>> 16;
+                greedy.addMatch(length, match & 0xFFFF);
+                position += length;
+            } else {
+                greedy.addLiteral(state.window[position] & 0xFF);
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Splits the greedy parse where two blocks with their own Huffman codes are smaller than one. The largest block is
+     * split first, at the point where the sum of the two estimated sizes is the smallest.
+     *
+     * @return the positions in the window where the blocks start, followed by the end
+     */
+    private static int[] splitBlocks(State state, int start) {
+        final PngEncoderDeflateBlockWriter.Symbols greedy = state.greedy;
+        final PngEncoderDeflateBlockWriter blockWriter = state.blockWriter;
+        // Symbol indices where blocks start, and whether a block is known not to split.
+        final List<Integer> splits = new ArrayList<>();
+        final List<Boolean> done = new ArrayList<>();
+        splits.add(0);
+        done.add(false);
+
+        while (splits.size() < MAX_BLOCK_COUNT) {
+            int largest = -1;
+            int largestSize = 0;
+            for (int block = 0; block < splits.size(); block++) {
+                final int size = getBlockEnd(splits, block, greedy) - splits.get(block);
+                if (!done.get(block) && size >= MIN_SPLIT_SYMBOL_COUNT && size > largestSize) {
+                    largest = block;
+                    largestSize = size;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+
+            final int from = splits.get(largest);
+            final int to = getBlockEnd(splits, largest, greedy);
+            final long[] splitBits = new long[1];
+            final int split = findSplit(blockWriter, greedy, from, to, splitBits);
+            if (split <= from || split >= to || splitBits[0] >= blockWriter.getBlockBits(greedy, from, to)) {
+                done.set(largest, true);
+            } else {
+                splits.add(largest + 1, split);
+                done.add(largest + 1, false);
+            }
+        }
+
+        final int[] blockStarts = new int[splits.size() + 1];
+        int splitIndex = 0;
+        int position = start;
+        for (int index = 0; index <= greedy.size(); index++) {
+            if (splitIndex < splits.size() && splits.get(splitIndex) == index) {
+                blockStarts[splitIndex++] = position;
+            }
+            if (index < greedy.size()) {
+                position += greedy.getByteLength(index);
+            }
+        }
+        blockStarts[splits.size()] = position;
+        return blockStarts;
+    }
+
+    private static int getBlockEnd(List<Integer> splits, int block, PngEncoderDeflateBlockWriter.Symbols greedy) {
+        return block + 1 < splits.size() ? splits.get(block + 1) : greedy.size();
+    }
+
+    /**
+     * Narrows down on the split point with the smallest sum of sizes, trying a few evenly spread points at a time.
+     */
+    private static int findSplit(PngEncoderDeflateBlockWriter blockWriter, PngEncoderDeflateBlockWriter.Symbols symbols,
+            int from, int to, long[] bestBits) {
+        int low = from + 1;
+        int high = to;
+        if (high - low < EXHAUSTIVE_SPLIT_SYMBOL_COUNT) {
+            int best = from;
+            bestBits[0] = Long.MAX_VALUE;
+            for (int split = low; split < high; split++) {
+                final long bits = blockWriter.getBlockBits(symbols, from, split) + blockWriter.getBlockBits(symbols, split, to);
+                if (bits < bestBits[0]) {
+                    bestBits[0] = bits;
+                    best = split;
+                }
+            }
+            return best;
+        }
+
+        final int[] points = new int[SPLIT_POINT_COUNT];
+        int best = from;
+        long lastBits = Long.MAX_VALUE;
+        while (high - low > SPLIT_POINT_COUNT) {
+            int bestIndex = 0;
+            long roundBits = Long.MAX_VALUE;
+            for (int i = 0; i < SPLIT_POINT_COUNT; i++) {
+                points[i] = low + (i + 1) * ((high - low) / (SPLIT_POINT_COUNT + 1));
+                final long bits = blockWriter.getBlockBits(symbols, from, points[i]) + blockWriter.getBlockBits(symbols, points[i], to);
+                if (bits < roundBits) {
+                    roundBits = bits;
+                    bestIndex = i;
+                }
+            }
+            if (roundBits > lastBits) {
+                break;
+            }
+            low = bestIndex == 0 ? low : points[bestIndex - 1];
+            high = bestIndex == SPLIT_POINT_COUNT - 1 ? high : points[bestIndex + 1];
+            best = points[bestIndex];
+            lastBits = roundBits;
+        }
+        bestBits[0] = lastBits;
+        return best;
+    }
+
+    /**
+     * Parses the block from blockStart to blockEnd a number of times, each time with the costs of the previous parse,
+     * starting with the costs of the greedy parse. The smallest parse ends up in state.best.
+     */
+    private void parseOptimal(State state, int start, int blockStart, int blockEnd) {
+        final PngEncoderDeflateBlockWriter blockWriter = state.blockWriter;
+        int greedyFrom = 0;
+        int position = start;
+        while (position < blockStart) {
+            position += state.greedy.getByteLength(greedyFrom++);
+        }
+        int greedyTo = greedyFrom;
+        while (position < blockEnd) {
+            position += state.greedy.getByteLength(greedyTo++);
+        }
+        state.greedy.count(greedyFrom, greedyTo, state.literalLengthCounts, state.distanceCounts);
+        updateCosts(state);
+
+        // The greedy parse is the one to beat.
+        state.best.copyFrom(state.greedy, greedyFrom, greedyTo);
+        long bestBits = blockWriter.getBlockBits(state.best, 0, state.best.size());
+        long lastBits = -1;
+        for (int iteration = 0; iteration < iterationCount; iteration++) {
+            findShortestPath(state, start, blockStart, blockEnd);
+            final PngEncoderDeflateBlockWriter.Symbols parsed = state.current;
+            final long bits = blockWriter.getBlockBits(parsed, 0, parsed.size());
+            if (bits < bestBits) {
+                bestBits = bits;
+                state.current = state.best;
+                state.best = parsed;
+            }
+            if (bits == lastBits) {
+                // The same costs give the same parse from here on.
+                break;
+            }
+            lastBits = bits;
+            parsed.count(0, parsed.size(), state.literalLengthCounts, state.distanceCounts);
+            updateCosts(state);
+        }
+    }
+
+    /**
+     * Sets the cost of every symbol to its entropy in bits, given the counts, plus its extra bits. Unused symbols cost
+     * as much as a symbol used once.
+     */
+    private static void updateCosts(State state) {
+        final int[] literalLengthCounts = state.literalLengthCounts;
+        final int[] distanceCounts = state.distanceCounts;
+        final float[] literalLengthBits = getEntropy(literalLengthCounts, PngEncoderDeflateBlockWriter.LITERAL_LENGTH_CODE_COUNT);
+        final float[] distanceBits = getEntropy(distanceCounts, PngEncoderDeflateBlockWriter.DISTANCE_CODE_COUNT);
+        System.arraycopy(literalLengthBits, 0, state.literalCosts, 0, 256);
+        for (int length = MIN_MATCH; length <= MAX_MATCH; length++) {
+            state.lengthCosts[length] = literalLengthBits[PngEncoderDeflateBlockWriter.getLengthSymbol(length)]
+                    + PngEncoderDeflateBlockWriter.getLengthExtraBits(length);
+        }
+        System.arraycopy(distanceBits, 0, state.distanceSymbolCosts, 0, PngEncoderDeflateBlockWriter.DISTANCE_CODE_COUNT);
+    }
+
+    private static float[] getEntropy(int[] counts, int symbolCount) {
+        long total = 0;
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            total += counts[symbol];
+        }
+        final float[] bits = new float[symbolCount];
+        final double log2Total = log2(Math.max(total, 1));
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            bits[symbol] = (float) (counts[symbol] == 0 ? log2Total : log2Total - log2(counts[symbol]));
+        }
+        return bits;
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static float getDistanceCost(State state, int distance) {
+        return state.distanceSymbolCosts[PngEncoderDeflateBlockWriter.getDistanceSymbol(distance)]
+                + PngEncoderDeflateBlockWriter.getDistanceExtraBits(distance);
+    }
+
+    /**
+     * Finds the cheapest way through the block with the current costs, trying every length of every match. Within a
+     * long repetition, matches of the maximum length are taken right away, as nothing beats them and trying all
+     * lengths there takes long.
+     */
+    private static void findShortestPath(State state, int start, int blockStart, int blockEnd) {
+        final byte[] window = state.window;
+        final int[] runs = state.runs;
+        final int[] matchStarts = state.matchStarts;
+        final int[] matches = state.matches;
+        final float[] literalCosts = state.literalCosts;
+        final float[] lengthCosts = state.lengthCosts;
+        final float[] costs = state.costs;
+        final int[] pathLengths = state.pathLengths;
+        final int[] pathDistances = state.pathDistances;
+        final int length = blockEnd - blockStart;
+
+        costs[0] = 0;
+        Arrays.fill(costs, 1, length + 1, Float.MAX_VALUE);
+        final int offset = blockStart - start;
+
+        for (int i = 0; i < length; i++) {
+            int position = blockStart + i;
+            if (runs[offset + i] > MAX_MATCH * 2 && i > MAX_MATCH + 1 && i + MAX_MATCH * 2 + 1 < length
+                    && runs[offset + i - MAX_MATCH] > MAX_MATCH) {
+                final int distance = getMaxMatchDistance(matchStarts, matches, offset + i);
+                final float runCost = lengthCosts[MAX_MATCH] + getDistanceCost(state, distance);
+                for (int k = 0; k < MAX_MATCH; k++) {
+                    costs[i + MAX_MATCH] = costs[i] + runCost;
+                    pathLengths[i + MAX_MATCH] = MAX_MATCH;
+                    pathDistances[i + MAX_MATCH] = distance;
+                    i++;
+                }
+                position = blockStart + i;
+            }
+
+            final float cost = costs[i];
+            final float literalCost = cost + literalCosts[window[position] & 0xFF];
+            if (literalCost < costs[i + 1]) {
+                costs[i + 1] = literalCost;
+                pathLengths[i + 1] = 1;
+                pathDistances[i + 1] = 0;
+            }
+
+            final int maxLength = length - i;
+            int previousLength = MIN_MATCH - 1;
+            final int matchEnd = matchStarts[position - start + 1];
+            for (int m = matchStarts[position - start]; m < matchEnd && previousLength < maxLength; m++) {
+                final int match = matches[m];
+                final int matchLength = Math.min(match >>> 16, maxLength);
+                final int distance = match & 0xFFFF;
+                final float matchCost = cost + getDistanceCost(state, distance);
+                for (int l = previousLength + 1; l <= matchLength; l++) {
+                    final float total = matchCost + lengthCosts[l];
+                    if (total < costs[i + l]) {
+                        costs[i + l] = total;
+                        pathLengths[i + l] = l;
+                        pathDistances[i + l] = distance;
+                    }
+                }
+                previousLength = matchLength;
+            }
+        }
+
+        // Walk back from the end, then add the symbols in order.
+        int pathCount = 0;
+        for (int i = length; i > 0; i -= pathLengths[i]) {
+            pathCount++;
+        }
+        final PngEncoderDeflateBlockWriter.Symbols current = state.current;
+        current.clear();
+        final int[] path = new int[pathCount];
+        int index = pathCount;
+        for (int i = length; i > 0; i -= pathLengths[i]) {
+            path[--index] = i;
+        }
+        int position = blockStart;
+        for (int i : path) {
+            final int distance = pathDistances[i];
+            if (distance == 0) {
+                current.addLiteral(window[position] & 0xFF);
+                position++;
+            } else {
+                current.addMatch(pathLengths[i], distance);
+                position += pathLengths[i];
+            }
+        }
+    }
+
+    private static int hash(byte[] window, int position) {
+        final int value = (window[position] & 0xFF) | (window[position + 1] & 0xFF) << 8 | (window[position + 2] & 0xFF) << 16;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
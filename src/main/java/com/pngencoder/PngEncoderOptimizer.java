@@ -0,0 +1,179 @@
+package com.pngencoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Encodes a few candidate configurations at the same time and keeps the smallest result, see
+ * {@link PngEncoder#withOptimizationEffort(int)}.
+ * <p>
+ * Each candidate is encoded in a single thread, so the candidates are the unit of parallelism. The calling thread
+ * takes part as well: it encodes every candidate no worker has started yet, so a busy or saturated pool never leaves
+ * it waiting on work that cannot begin.
+ */
+final class PngEncoderOptimizer {
+    private static final PngEncoderDeflateStrategy[] STRATEGIES_LOW_EFFORT = {
+            PngEncoderDeflateStrategy.DEFAULT, PngEncoderDeflateStrategy.FILTERED};
+    private static final PngEncoderDeflateStrategy[] STRATEGIES = {
+            PngEncoderDeflateStrategy.DEFAULT, PngEncoderDeflateStrategy.FILTERED, PngEncoderDeflateStrategy.HUFFMAN_ONLY};
+    private static final PngEncoderFilterStrategy[] FILTER_STRATEGIES_LOW_EFFORT = {
+            PngEncoderFilterStrategy.NONE, PngEncoderFilterStrategy.SAMPLED, PngEncoderFilterStrategy.MIN_SUM};
+    private static final PngEncoderFilterStrategy[] FILTER_STRATEGIES = {
+            PngEncoderFilterStrategy.NONE, PngEncoderFilterStrategy.SAMPLED, PngEncoderFilterStrategy.MIN_SUM,
+            PngEncoderFilterStrategy.ENTROPY, PngEncoderFilterStrategy.UP, PngEncoderFilterStrategy.PAETH,
+            PngEncoderFilterStrategy.TRIAL_DEFLATE};
+
+    private PngEncoderOptimizer() {
+    }
+
+    static int encode(PngEncoder pngEncoder, OutputStream outputStream, PngEncoderStatistics statistics) throws IOException {
+        final List<PngEncoder> candidates = getCandidates(pngEncoder);
+        final List<Trial> trials = new ArrayList<>(candidates.size());
+        for (PngEncoder candidate : candidates) {
+            trials.add(new Trial(candidate));
+        }
+
+        final ExecutorService executorService = PngEncoderLogic.getExecutorService(pngEncoder);
+        // The first trial is left for the calling thread.
+        for (int i = 1; i < trials.size(); i++) {
+            try {
+                executorService.execute(trials.get(i));
+            } catch (RejectedExecutionException e) {
+                // The calling thread encodes it below.
+            }
+        }
+        for (Trial trial : trials) {
+            trial.run();
+        }
+
+        Trial winner = null;
+        for (Trial trial : trials) {
+            trial.await();
+            if (winner == null || trial.result.length < winner.result.length) {
+                winner = trial;
+            }
+        }
+
+        outputStream.write(winner.result);
+        statistics.setOptimization(winner.candidate, trials.size());
+        return winner.result.length;
+    }
+
+    /**
+     * @return the configurations to try, all based on the given one but without optimization. Candidates that would
+     * encode the same bytes as another one are left out.
+     */
+    static List<PngEncoder> getCandidates(PngEncoder pngEncoder) throws IOException {
+        final int effort = pngEncoder.getOptimizationEffort();
+        final PngEncoder base = pngEncoder
+                .withOptimizationEffort(0)
+                .withCompressor(PngEncoderCompressor.deflater());
+        final PngEncoderDeflateStrategy[] strategies = effort == 1 ? STRATEGIES_LOW_EFFORT : STRATEGIES;
+        final PngEncoderFilterStrategy[] filterStrategies = effort == 1 ? FILTER_STRATEGIES_LOW_EFFORT : FILTER_STRATEGIES;
+        final int minCompressionLevel = effort == PngEncoder.MAX_OPTIMIZATION_EFFORT ? 6 : 9;
+
+        // Decided once for all candidates. Trying indexed encoding only makes a difference if the image is not indexed
+        // anyway and has at most 256 colors, and the colors are only counted if some candidate tries it.
+        final boolean alwaysIndexed = isIndexed(base.withTryIndexedEncoding(false));
+        final boolean triesIndexedEncoding = effort > 1 || pngEncoder.isTryIndexedEncodingEnabled();
+        final boolean indexable = alwaysIndexed || (triesIndexedEncoding && isIndexed(base.withTryIndexedEncoding(true)));
+        final boolean[] tryIndexedEncodings = effort == 1 || alwaysIndexed || !indexable
+                ? new boolean[]{pngEncoder.isTryIndexedEncodingEnabled()}
+                : new boolean[]{false, true};
+
+        final List<PngEncoder> candidates = new ArrayList<>();
+        for (boolean tryIndexedEncoding : tryIndexedEncodings) {
+            // Indexed images are filtered by the indexed filter strategy, so they are not tried with the others.
+            final boolean indexed = alwaysIndexed || (tryIndexedEncoding && indexable);
+            for (int compressionLevel = 9; compressionLevel >= minCompressionLevel; compressionLevel--) {
+                for (PngEncoderDeflateStrategy strategy : strategies) {
+                    if (strategy == PngEncoderDeflateStrategy.HUFFMAN_ONLY && compressionLevel != 9) {
+                        // Without matches the level makes no difference.
+                        continue;
+                    }
+                    final PngEncoder candidate = base
+                            .withTryIndexedEncoding(tryIndexedEncoding)
+                            .withCompressionLevel(compressionLevel)
+                            .withDeflateStrategy(strategy);
+                    if (indexed) {
+                        candidates.add(candidate);
+                        continue;
+                    }
+                    for (PngEncoderFilterStrategy filterStrategy : filterStrategies) {
+                        candidates.add(candidate
+                                .withPredictorEncoding(true)
+                                .withFilterStrategy(filterStrategy));
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean isIndexed(PngEncoder pngEncoder) throws IOException {
+        final BufferedImage bufferedImage = pngEncoder.getBufferedImage();
+        return PngEncoderLogic.getIndexedEncoderResult(pngEncoder, bufferedImage, PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage)) != null;
+    }
+
+    /**
+     * One candidate, run by whichever thread claims it first.
+     */
+    private static class Trial implements Runnable {
+        private final PngEncoder candidate;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte[] result;
+        private Throwable failure;
+
+        Trial(PngEncoder candidate) {
+            this.candidate = candidate;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                PngEncoderLogic.encode(candidate.withMultiThreadedCompressionEnabled(false), outputStream, new PngEncoderStatistics());
+                result = outputStream.toByteArray();
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an optimization candidate");
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) failure).getCause();
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+}
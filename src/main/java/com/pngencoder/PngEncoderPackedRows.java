@@ -0,0 +1,184 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.EncodingMetaInfo;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Packs rows of one byte per pixel into 1, 2 or 4 bits per pixel, the leftmost pixel in the high bits of a byte. A
+ * palette of up to 16 colors or a gray image with up to 16 evenly spaced levels needs at most 4 bits, which makes the
+ * rows 2 to 8 times shorter before they are compressed.
+ */
+final class PngEncoderPackedRows extends PngEncoderRows {
+    // Rows the gray level scan streams between checks whether a level needs 8 bits.
+    private static final int SCAN_CHUNK_ROWS = 64;
+    // Per gray level the bit depths that can not hold it: 1 for 1 bit, 2 for 2 bits and 4 for 4 bits.
+    private static final byte[] GRAY_LEVEL_TOO_FINE = new byte[256];
+
+    static {
+        for (int level = 0; level < 256; level++) {
+            GRAY_LEVEL_TOO_FINE[level] = (byte) ((level % 255 != 0 ? 1 : 0) | (level % 85 != 0 ? 2 : 0) | (level % 17 != 0 ? 4 : 0));
+        }
+    }
+
+    private final PngEncoderRows rows;
+    private final int width;
+    private final int bitDepth;
+    // The value to pack per byte of the rows, or null to pack the bytes as they are.
+    private final byte[] values;
+
+    PngEncoderPackedRows(PngEncoderRows rows, int width, int bitDepth, byte[] values) {
+        if (bitDepth != 1 && bitDepth != 2 && bitDepth != 4) {
+            throw new IllegalArgumentException(String.format("The bit depth must be 1, 2 or 4, but was %d.", bitDepth));
+        }
+        this.rows = rows;
+        this.width = width;
+        this.bitDepth = bitDepth;
+        this.values = values;
+    }
+
+    /**
+     * @return the smallest bit depth for palette indices below colorCount, or 8 if they do not fit into less
+     */
+    static int getBitDepth(int colorCount) {
+        if (colorCount <= 2) {
+            return 1;
+        }
+        if (colorCount <= 4) {
+            return 2;
+        }
+        return colorCount <= 16 ? 4 : 8;
+    }
+
+    static int getRowByteSize(int width, int bitDepth) {
+        return 1 + (int) (((long) width * bitDepth + 7) / 8);
+    }
+
+    /**
+     * Packs an 8 bit gray image without alpha whose levels are all multiples of 255, 85 or 17, which 1, 2 or 4 bit
+     * samples scale up to. The scan stops at the first level that needs 8 bits, usually in the first row of a photo.
+     *
+     * @return the packed rows with the metaInfo changed to their bit depth, or null if the image needs 8 bits
+     */
+    static PngEncoderPackedRows packGray(BufferedImage image, EncodingMetaInfo metaInfo, PngEncoderScratch scratch) throws IOException {
+        if (metaInfo.channels != 1 || metaInfo.bitsPerChannel != 8 || metaInfo.hasAlpha) {
+            return null;
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final GrayLevelScan scan = new GrayLevelScan(width);
+        for (int y = 0; y < height && scan.tooFine != 7; y += SCAN_CHUNK_ROWS) {
+            PngEncoderScanlineUtil.stream(image, y, Math.min(SCAN_CHUNK_ROWS, height - y), scan, scratch);
+        }
+        final int bitDepth = (scan.tooFine & 1) == 0 ? 1 : (scan.tooFine & 2) == 0 ? 2 : (scan.tooFine & 4) == 0 ? 4 : 8;
+        if (bitDepth == 8) {
+            return null;
+        }
+
+        final int step = 255 / ((1 << bitDepth) - 1);
+        final byte[] values = new byte[256];
+        for (int level = 0; level < 256; level += step) {
+            values[level] = (byte) (level / step);
+        }
+        metaInfo.bitsPerChannel = bitDepth;
+        metaInfo.rowByteSize = getRowByteSize(width, bitDepth);
+        return new PngEncoderPackedRows(new ImageRows(image), width, bitDepth, values);
+    }
+
+    @Override
+    void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
+        rows.stream(yStart, heightToStream, new Packer(consumer), scratch);
+    }
+
+    private final class Packer extends AbstractPNGLineConsumer {
+        private final AbstractPNGLineConsumer consumer;
+        private byte[] currPackedRow = new byte[getRowByteSize(width, bitDepth)];
+        private byte[] prevPackedRow = new byte[getRowByteSize(width, bitDepth)];
+
+        Packer(AbstractPNGLineConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) throws IOException {
+            final byte[] packedRow = currPackedRow;
+            if (values != null) {
+                pack(currRow, packedRow, width, bitDepth, values);
+            } else {
+                pack(currRow, packedRow, width, bitDepth);
+            }
+            consumer.consume(packedRow, prevPackedRow);
+            currPackedRow = prevPackedRow;
+            prevPackedRow = packedRow;
+        }
+    }
+
+    /**
+     * Packs the bytes of the row after its filter type byte. The unused bits of the last byte are 0.
+     */
+    static void pack(byte[] row, byte[] packedRow, int width, int bitDepth) {
+        int readPtr = 1; // Skip predictor setting byte
+        int writePtr = 1;
+        final int rowEnd = 1 + width;
+        while (readPtr < rowEnd) {
+            int packed = 0;
+            for (int shift = 8 - bitDepth; shift >= 0 && readPtr < rowEnd; shift -= bitDepth) {
+                packed |= (row[readPtr++] & 0xFF) << shift;
+            }
+            packedRow[writePtr++] = (byte) packed;
+        }
+    }
+
+    /**
+     * Like {@link #pack(byte[], byte[], int, int)}, but packs the value of each byte.
+     */
+    static void pack(byte[] row, byte[] packedRow, int width, int bitDepth, byte[] values) {
+        int readPtr = 1; // Skip predictor setting byte
+        int writePtr = 1;
+        final int rowEnd = 1 + width;
+        while (readPtr < rowEnd) {
+            int packed = 0;
+            for (int shift = 8 - bitDepth; shift >= 0 && readPtr < rowEnd; shift -= bitDepth) {
+                packed |= (values[row[readPtr++] & 0xFF] & 0xFF) << shift;
+            }
+            packedRow[writePtr++] = (byte) packed;
+        }
+    }
+
+    private static final class GrayLevelScan extends AbstractPNGLineConsumer {
+        // The rows may be longer than the pixels.
+        private final int rowEnd;
+        int tooFine;
+
+        GrayLevelScan(int width) {
+            this.rowEnd = 1 + width;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            int rowTooFine = tooFine;
+            for (int readPtr = 1; readPtr < rowEnd; readPtr++) {
+                rowTooFine |= GRAY_LEVEL_TOO_FINE[currRow[readPtr] & 0xFF];
+            }
+            tooFine = rowTooFine;
+        }
+    }
+
+    /**
+     * The rows of the image as they are.
+     */
+    private static final class ImageRows extends PngEncoderRows {
+        private final BufferedImage image;
+
+        ImageRows(BufferedImage image) {
+            this.image = image;
+        }
+
+        @Override
+        void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
+            PngEncoderScanlineUtil.stream(image, yStart, heightToStream, consumer, scratch);
+        }
+    }
+}
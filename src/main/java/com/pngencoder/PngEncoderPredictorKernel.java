@@ -0,0 +1,233 @@
+package com.pngencoder;
+
+/**
+ * Computes the Sub, Up, Average and Paeth filtered versions of a row and the sums the filter is chosen by, see
+ * {@link PngEncoderPredictor}.
+ * <p>
+ * This is the scalar kernel, which runs on Java 8. On Java 17 and later the multi-release JAR also contains
+ * {@code PngEncoderPredictorVectorKernel}, which computes many bytes at once with the incubating Vector API. It is used
+ * when the JVM was started with {@code --add-modules jdk.incubator.vector} and the CPU has vectors of at least 128 bits.
+ * Both kernels produce exactly the same bytes.
+ */
+class PngEncoderPredictorKernel {
+    static final int SUM_NONE = 0;
+    static final int SUM_SUB = 1;
+    static final int SUM_UP = 2;
+    static final int SUM_AVERAGE = 3;
+    static final int SUM_PAETH = 4;
+    static final int SUM_COUNT = 5;
+
+    private static final String VECTOR_KERNEL_CLASS_NAME = "com.pngencoder.PngEncoderPredictorVectorKernel";
+
+    private static class ScalarHolder {
+        static final PngEncoderPredictorKernel INSTANCE = new PngEncoderPredictorKernel();
+    }
+
+    private static class Holder {
+        static final PngEncoderPredictorKernel INSTANCE = createInstance();
+    }
+
+    /**
+     * @return the fastest kernel available on this JVM and CPU
+     */
+    static PngEncoderPredictorKernel getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return the scalar kernel, which is always available
+     */
+    static PngEncoderPredictorKernel scalar() {
+        return ScalarHolder.INSTANCE;
+    }
+
+    private static PngEncoderPredictorKernel createInstance() {
+        try {
+            // Only present in the Java 17 part of the multi-release JAR, so it must not be referred to directly.
+            return (PngEncoderPredictorKernel) Class.forName(VECTOR_KERNEL_CLASS_NAME).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            // Java 8 to 16, the vector module not added or no usable vectors.
+            return scalar();
+        }
+    }
+
+    PngEncoderPredictorKernel() {
+    }
+
+    /**
+     * @return true if this kernel uses SIMD instructions
+     */
+    boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Filters the bytes from index 1 of the row. Index 0 is the filter type byte and is left as it is.
+     *
+     * @param currRow the row to filter
+     * @param prevRow the row above, all zero for the first row
+     * @param bpp     the number of bytes per complete pixel, rounded up to one
+     * @param sums    receives the sum of the absolute values per filter, with the filter type added, see SUM_*
+     */
+    void filter(byte[] currRow, byte[] prevRow, int bpp, byte[] rowSub, byte[] rowUp, byte[] rowAverage, byte[] rowPaeth, long[] sums) {
+        sums[SUM_NONE] = 0;
+        sums[SUM_SUB] = 1;
+        sums[SUM_UP] = 2;
+        sums[SUM_AVERAGE] = 3;
+        sums[SUM_PAETH] = 4;
+        filter(currRow, prevRow, bpp, 1, currRow.length, rowSub, rowUp, rowAverage, rowPaeth, sums);
+    }
+
+    /**
+     * Filters the bytes from start to end and adds them to the sums. Used by the vector kernel for the bytes that do
+     * not fill a vector.
+     */
+    static void filter(byte[] currRow, byte[] prevRow, int bpp, int start, int end, byte[] rowSub, byte[] rowUp, byte[] rowAverage, byte[] rowPaeth, long[] sums) {
+        long sumNone = 0;
+        long sumSub = 0;
+        long sumUp = 0;
+        long sumAverage = 0;
+        long sumPaeth = 0;
+
+        // c | b
+        // -----
+        // a | x
+        //
+        // x => current pixel
+        int a = 0;
+        int c = 0;
+        for (int i = start; i < end; i++) {
+            int x = currRow[i] & 0xFF;
+            int b = prevRow[i] & 0xFF;
+            if (i > bpp) {
+                int prevPixelByte = i - bpp;
+                a = currRow[prevPixelByte] & 0xFF;
+                c = prevRow[prevPixelByte] & 0xFF;
+            }
+
+            /*
+             * PNG Filters, see https://www.w3.org/TR/PNG-Filters.html
+             */
+            byte bSub = (byte) (x - a);
+            byte bUp = (byte) (x - b);
+            byte bAverage = (byte) (x - ((b + a) / 2));
+            byte bPaeth = (byte) (x - paethPredictor(a, b, c));
+
+            rowSub[i] = bSub;
+            rowUp[i] = bUp;
+            rowAverage[i] = bAverage;
+            rowPaeth[i] = bPaeth;
+
+            sumNone += Math.abs(x);
+            sumSub += Math.abs(bSub);
+            sumUp += Math.abs(bUp);
+            sumAverage += Math.abs(bAverage);
+            sumPaeth += Math.abs(bPaeth);
+        }
+
+        sums[SUM_NONE] += sumNone;
+        sums[SUM_SUB] += sumSub;
+        sums[SUM_UP] += sumUp;
+        sums[SUM_AVERAGE] += sumAverage;
+        sums[SUM_PAETH] += sumPaeth;
+    }
+
+    /**
+     * Filters the bytes from index 1 of the row with a single filter, which is about four times as fast as computing
+     * all of them.
+     *
+     * @param filterType the filter type, 0 to 4
+     * @param row        receives the filtered bytes, index 0 is left as it is. Not used for filter type 0.
+     * @return the sum of the absolute values of the filtered bytes, like the sums of all filters
+     */
+    final long filter(int filterType, byte[] currRow, byte[] prevRow, int bpp, byte[] row) {
+        return filter(filterType, currRow, prevRow, bpp, row, 0);
+    }
+
+    /**
+     * Like {@link #filter(int, byte[], byte[], int, byte[])}, but writes byte i of the filtered row to row[rowOffset + i].
+     * This filters straight into a segment of the deflater output stream.
+     */
+    long filter(int filterType, byte[] currRow, byte[] prevRow, int bpp, byte[] row, int rowOffset) {
+        return filter(filterType, currRow, prevRow, bpp, 1, currRow.length, row, rowOffset);
+    }
+
+    /**
+     * Filters the bytes from start to end with a single filter. Used by the vector kernel for the bytes that do not
+     * fill a vector.
+     */
+    static long filter(int filterType, byte[] currRow, byte[] prevRow, int bpp, int start, int end, byte[] row, int rowOffset) {
+        // The first pixel has no pixel to the left, so a and c are 0.
+        final int headEnd = Math.max(start, Math.min(bpp + 1, end));
+        long sum = 0;
+        switch (filterType) {
+            case 0:
+                for (int i = start; i < end; i++) {
+                    sum += currRow[i] & 0xFF;
+                }
+                break;
+            case 1:
+                for (int i = start; i < headEnd; i++) {
+                    final byte r = currRow[i];
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                for (int i = headEnd; i < end; i++) {
+                    final byte r = (byte) (currRow[i] - currRow[i - bpp]);
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                break;
+            case 2:
+                for (int i = start; i < end; i++) {
+                    final byte r = (byte) (currRow[i] - prevRow[i]);
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                break;
+            case 3:
+                for (int i = start; i < headEnd; i++) {
+                    final byte r = (byte) ((currRow[i] & 0xFF) - ((prevRow[i] & 0xFF) >>> 1));
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                for (int i = headEnd; i < end; i++) {
+                    final byte r = (byte) ((currRow[i] & 0xFF) - (((currRow[i - bpp] & 0xFF) + (prevRow[i] & 0xFF)) >>> 1));
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                break;
+            case 4:
+                // With a and c 0 the Paeth predictor is b.
+                for (int i = start; i < headEnd; i++) {
+                    final byte r = (byte) (currRow[i] - prevRow[i]);
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                for (int i = headEnd; i < end; i++) {
+                    final int pr = paethPredictor(currRow[i - bpp] & 0xFF, prevRow[i] & 0xFF, prevRow[i - bpp] & 0xFF);
+                    final byte r = (byte) (currRow[i] - pr);
+                    row[rowOffset + i] = r;
+                    sum += Math.abs(r);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("The filter type must be between 0 and 4, but was %d.", filterType));
+        }
+        return sum;
+    }
+
+    /**
+     * @return the Paeth predictor of a, the byte to the left, b, the byte above, and c, the byte above left
+     */
+    static int paethPredictor(int a, int b, int c) {
+        // p = a + b - c, pa = |p - a| and so on.
+        final int pa = Math.abs(b - c);
+        final int pb = Math.abs(a - c);
+        final int pc = Math.abs(a + b - c - c);
+        // Without branches, as they are hard to predict for photos. (x - y - 1) >> 31 is all ones where x <= y.
+        final int selectA = ((pa - pb - 1) >> 31) & ((pa - pc - 1) >> 31);
+        final int selectB = ~selectA & ((pb - pc - 1) >> 31);
+        return (a & selectA) | (b & selectB) | (c & ~(selectA | selectB));
+    }
+}
@@ -0,0 +1,77 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.EncodingMetaInfo;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Rows that are not the rows of the image as they are, such as palette indices or packed samples of less than 8
+ * bits. They are produced while they are encoded, so the rows of the whole image are never held in memory at once.
+ * Every row starts with a filter type byte of 0.
+ * <p>
+ * This is a class and not an interface for the same reason as {@link AbstractPNGLineConsumer}.
+ */
+abstract class PngEncoderRows {
+    /**
+     * Streams rows to a consumer, row by row, like
+     * {@link PngEncoderScanlineUtil#stream(BufferedImage, int, int, AbstractPNGLineConsumer, PngEncoderScratch)}.
+     * Can be called for any row range on several threads at the same time.
+     */
+    abstract void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException;
+
+    /**
+     * Writes the rows to the stream, predictor encoded unless the filter strategy is
+     * {@link PngEncoderFilterStrategy#NONE}.
+     *
+     * @param metaInfo the metaInfos of the rows, not of the image
+     */
+    final void encodeSingleThreaded(EncodingMetaInfo metaInfo, int height, PngEncoderFilterStrategy filterStrategy, int compressionLevel, OutputStream outputStream, PngEncoderScratch scratch) throws IOException {
+        if (filterStrategy != PngEncoderFilterStrategy.NONE) {
+            PngEncoderPredictor.encodeRowsSingleThreaded(this, metaInfo, height, filterStrategy, compressionLevel, outputStream, scratch);
+            return;
+        }
+        stream(0, height, new AbstractPNGLineConsumer() {
+            @Override
+            void consume(byte[] currRow, byte[] prevRow) throws IOException {
+                outputStream.write(currRow);
+            }
+        }, scratch);
+    }
+
+    /**
+     * Like {@link #encodeSingleThreaded}, but the workers produce the rows of their segments themselves.
+     */
+    final void encodeMultiThreaded(EncodingMetaInfo metaInfo, int height, PngEncoderFilterStrategy filterStrategy, int compressionLevel, PngEncoderDeflaterOutputStream out) throws IOException {
+        if (filterStrategy != PngEncoderFilterStrategy.NONE) {
+            out.writeSegments(new PngEncoderPredictor.SegmentProducer(this, metaInfo, filterStrategy, compressionLevel), height);
+            return;
+        }
+        out.writeSegments(new SegmentProducer(this, metaInfo.rowByteSize), height);
+    }
+
+    /**
+     * Produces the unfiltered rows of row ranges on the workers.
+     */
+    private static class SegmentProducer extends PngEncoderDeflaterSegmentProducer {
+        private final PngEncoderRows rows;
+        private final int rowByteSize;
+
+        SegmentProducer(PngEncoderRows rows, int rowByteSize) {
+            this.rows = rows;
+            this.rowByteSize = rowByteSize;
+        }
+
+        @Override
+        int getRowByteSize() {
+            return rowByteSize;
+        }
+
+        @Override
+        void produce(byte[] target, int yStart, int rowCount, PngEncoderScratch scratch) throws IOException {
+            rows.stream(yStart, rowCount, new PngEncoderScanlineUtil.ByteBufferPNGLineConsumer(target), scratch);
+        }
+    }
+}
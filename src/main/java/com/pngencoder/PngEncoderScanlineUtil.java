@@ -13,6 +13,7 @@ import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.Arrays;
 
 class PngEncoderScanlineUtil {
     private PngEncoderScanlineUtil() {
@@ -42,9 +43,9 @@ class PngEncoderScanlineUtil {
     }
 
     /**
-     * Consumer getting everything as big byte array. Only used to implement get().
+     * Consumer getting everything as big byte array. Used to implement get() and to fill segments.
      * <p>
-     * This thrashes the CPU cache, as with bigger images the whole image data will
+     * With the whole image this thrashes the CPU cache, as with bigger images the whole image data will
      * not fit into the cache and has to be fetched again from main memory when future
      * processing the data.
      */
@@ -53,7 +54,11 @@ class PngEncoderScanlineUtil {
         int currentOffset;
 
         ByteBufferPNGLineConsumer(int byteCount) {
-            bytes = new byte[byteCount];
+            this(new byte[byteCount]);
+        }
+
+        ByteBufferPNGLineConsumer(byte[] bytes) {
+            this.bytes = bytes;
         }
 
         void consume(byte[] currRow, byte[] prevRow) {
@@ -62,6 +67,29 @@ class PngEncoderScanlineUtil {
         }
     }
 
+    /**
+     * Extracts row ranges on the workers, see {@link PngEncoderDeflaterSegmentProducer}.
+     */
+    static class SegmentProducer extends PngEncoderDeflaterSegmentProducer {
+        private final BufferedImage bufferedImage;
+        private final int rowByteSize;
+
+        SegmentProducer(BufferedImage bufferedImage, EncodingMetaInfo metaInfo) {
+            this.bufferedImage = bufferedImage;
+            this.rowByteSize = metaInfo.rowByteSize;
+        }
+
+        @Override
+        int getRowByteSize() {
+            return rowByteSize;
+        }
+
+        @Override
+        void produce(byte[] target, int yStart, int rowCount, PngEncoderScratch scratch) throws IOException {
+            stream(bufferedImage, yStart, rowCount, new ByteBufferPNGLineConsumer(target), scratch);
+        }
+    }
+
     /**
      * Metadata about how the image has to be encoded.
      */
@@ -75,7 +103,8 @@ class PngEncoderScanlineUtil {
          */
         int bytesPerPixel;
         /**
-         * Bits per channel, can be 8 or 16
+         * Bits per channel, can be 8 or 16. Indexed and gray rows packed by {@link PngEncoderPackedRows} have 1, 2 or
+         * 4.
          */
         int bitsPerChannel = 8;
         /**
@@ -210,6 +239,14 @@ class PngEncoderScanlineUtil {
      */
     static void stream(BufferedImage bufferedImage, int yStart, int heightToStream, AbstractPNGLineConsumer consumer)
             throws IOException {
+        stream(bufferedImage, yStart, heightToStream, consumer, new PngEncoderScratch());
+    }
+
+    /**
+     * Stream image rows to a consumer, row by row, using the row buffers of the scratch.
+     */
+    static void stream(BufferedImage bufferedImage, int yStart, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         final int width = bufferedImage.getWidth();
         final int imageHeight = bufferedImage.getHeight();
         assert (heightToStream <= imageHeight - yStart);
@@ -219,83 +256,98 @@ class PngEncoderScanlineUtil {
         WritableRaster raster = bufferedImage.getRaster();
         switch (type) {
             case TYPE_INT_RGB:
-                getIntRgb(raster, yStart, width, heightToStream, consumer);
+                getIntRgb(raster, yStart, width, heightToStream, consumer, scratch);
                 break;
             case TYPE_INT_ARGB:
-                getIntArgb(raster, yStart, width, heightToStream, false, consumer);
+                getIntArgb(raster, yStart, width, heightToStream, false, consumer, scratch);
                 break;
             case TYPE_INT_ARGB_PRE:
-                getIntArgb(raster, yStart, width, heightToStream, true, consumer);
+                getIntArgb(raster, yStart, width, heightToStream, true, consumer, scratch);
                 break;
             case TYPE_INT_BGR:
-                getIntBgr(raster, yStart, width, heightToStream, consumer);
+                getIntBgr(raster, yStart, width, heightToStream, consumer, scratch);
                 break;
             case TYPE_3BYTE_BGR:
-                get3ByteBgr(raster, yStart, width, heightToStream, consumer);
+                get3ByteBgr(raster, yStart, width, heightToStream, consumer, scratch);
                 break;
             case TYPE_4BYTE_ABGR:
-                get4ByteAbgr(raster, yStart, width, heightToStream, false, consumer);
+                get4ByteAbgr(raster, yStart, width, heightToStream, false, consumer, scratch);
                 break;
             case TYPE_4BYTE_ABGR_PRE:
-                get4ByteAbgr(raster, yStart, width, heightToStream, true, consumer);
+                get4ByteAbgr(raster, yStart, width, heightToStream, true, consumer, scratch);
                 break;
             // TODO: TYPE_USHORT_565_RGB
             // TODO: TYPE_USHORT_555_RGB
             case TYPE_BYTE_GRAY:
-                getByteGray(bufferedImage, yStart, width, heightToStream, consumer);
+                getByteGray(bufferedImage, yStart, width, heightToStream, consumer, scratch);
                 break;
             case TYPE_USHORT_GRAY:
-                getUshortGray(bufferedImage, yStart, width, heightToStream, consumer);
+                getUshortGray(bufferedImage, yStart, width, heightToStream, consumer, scratch);
                 break;
             case TYPE_BYTE_INDEXED:
-                getFallback(bufferedImage, yStart, width, heightToStream, consumer);
+                getFallback(bufferedImage, yStart, width, heightToStream, consumer, scratch);
                 break;
             default:
                 if (raster.getDataBuffer() instanceof DataBufferUShort) {
-                    if (getUshortGenericDataBufferUShort(bufferedImage, yStart, width, heightToStream, consumer)) {
+                    if (getUshortGenericDataBufferUShort(bufferedImage, yStart, width, heightToStream, consumer, scratch)) {
                         break;
                     }
                 }
                 // Generic DataBuffer variants.
                 if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_USHORT) {
-                    if (getUshortGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
+                    if (getUshortGeneric(bufferedImage, yStart, width, heightToStream, consumer, scratch)) {
                         break;
                     }
                 }
                 if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE) {
-                    if (getByteGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
+                    if (getByteGeneric(bufferedImage, yStart, width, heightToStream, consumer, scratch)) {
                         break;
                     }
                 }
                 if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_INT) {
-                    if (getIntGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
+                    if (getIntGeneric(bufferedImage, yStart, width, heightToStream, consumer, scratch)) {
                         break;
                     }
                 }
 
-                getFallback(bufferedImage, yStart, width, heightToStream, consumer);
+                getFallback(bufferedImage, yStart, width, heightToStream, consumer, scratch);
                 break;
         }
     }
 
+    private static byte[] getCurrentRow(PngEncoderScratch scratch, int rowByteSize) {
+        byte[] row = scratch.getRow(PngEncoderScratch.ROW_CURRENT, rowByteSize);
+        // The row filter type, all other bytes are overwritten for every row.
+        row[0] = 0;
+        return row;
+    }
+
+    private static byte[] getPreviousRow(PngEncoderScratch scratch, int rowByteSize) {
+        byte[] row = scratch.getRow(PngEncoderScratch.ROW_PREVIOUS, rowByteSize);
+        // The row above the first row is all zeros.
+        Arrays.fill(row, (byte) 0);
+        return row;
+    }
+
     /**
      * Fallback for unsupported types. We use getRGB, which will convert the image.
      */
-    private static void getFallback(BufferedImage bufferedImage, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+    private static void getFallback(BufferedImage bufferedImage, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int[] elements = bufferedImage.getRGB(0, yStart, width, heightToStream, null, 0, width);
+        // The elements start with the row at yStart.
         if (bufferedImage.getTransparency() == Transparency.OPAQUE) {
-            getIntRgb(elements, yStart, width, heightToStream, consumer);
+            getIntRgb(elements, 0, width, heightToStream, consumer, scratch);
         } else {
-            getIntArgb(elements, yStart, width, heightToStream, consumer);
+            getIntArgb(elements, 0, width, heightToStream, consumer, scratch);
         }
     }
 
-    static void getIntRgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static void getIntRgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         final int channels = 3;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         for (int y = yStart; y < yStart + height; y++) {
             int yOffset = y * width;
@@ -317,12 +369,12 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getIntArgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static void getIntArgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         final int channels = 4;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         for (int y = yStart; y < yStart + height; y++) {
             int yOffset = y * width;
@@ -345,11 +397,11 @@ class PngEncoderScanlineUtil {
     }
 
     static void getIntRgb(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
+            AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int channels = 3;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -389,11 +441,11 @@ class PngEncoderScanlineUtil {
     }
 
     static void getIntArgb(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            boolean preMultipliedAlpha, AbstractPNGLineConsumer consumer) throws IOException {
+            boolean preMultipliedAlpha, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int channels = 4;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -451,11 +503,11 @@ class PngEncoderScanlineUtil {
     }
 
     static void getIntBgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
+            AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int channels = 3;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -494,11 +546,11 @@ class PngEncoderScanlineUtil {
     }
 
     static void get3ByteBgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
+            AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int channels = 3;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -535,11 +587,11 @@ class PngEncoderScanlineUtil {
     }
 
     static void get4ByteAbgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            boolean preMultipliedAlpha, AbstractPNGLineConsumer consumer) throws IOException {
+            boolean preMultipliedAlpha, AbstractPNGLineConsumer consumer, PngEncoderScratch scratch) throws IOException {
         final int channels = 4;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -588,14 +640,14 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getByteGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static void getByteGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = 1;
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
@@ -625,14 +677,14 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getUshortGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static void getUshortGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = 1;
         final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
@@ -668,15 +720,15 @@ class PngEncoderScanlineUtil {
     }
 
 
-    static boolean getUshortGenericDataBufferUShort(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static boolean getUshortGenericDataBufferUShort(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
         final int channels = imageRaster.getSampleModel().getNumBands();
         final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -712,14 +764,14 @@ class PngEncoderScanlineUtil {
         return false;
     }
 
-    static boolean getUshortGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static boolean getUshortGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = imageRaster.getSampleModel().getNumBands();
         final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -757,14 +809,14 @@ class PngEncoderScanlineUtil {
         return false;
     }
 
-    static boolean getByteGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static boolean getByteGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = imageRaster.getSampleModel().getNumBands();
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -800,14 +852,14 @@ class PngEncoderScanlineUtil {
     }
 
 
-    static boolean getIntGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
-            throws IOException {
+    static boolean getIntGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer,
+            PngEncoderScratch scratch) throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = imageRaster.getSampleModel().getNumBands();
         final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = getCurrentRow(scratch, rowByteSize);
+        byte[] prevLine = getPreviousRow(scratch, rowByteSize);
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -0,0 +1,198 @@
+package com.pngencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The temporary state of one encode: row buffers, checksums, the deflater and the segment tasks.
+ * <p>
+ * Normally every encode gets a new instance. With {@link PngEncoder#withThreadLocalScratchEnabled(boolean)} the
+ * instance is kept per thread instead, so that repeated encodes of images of the same width allocate next to nothing.
+ * The price is the memory kept by each thread that has encoded an image: a few rows and a Deflater.
+ * <p>
+ * Worker threads always use their thread local instance, as there are only a few of them.
+ */
+class PngEncoderScratch {
+    static final int ROW_CURRENT = 0;
+    static final int ROW_PREVIOUS = 1;
+    static final int ROW_SUB = 2;
+    static final int ROW_UP = 3;
+    static final int ROW_AVERAGE = 4;
+    static final int ROW_PAETH = 5;
+    private static final int ROW_COUNT = 6;
+
+    private static final ThreadLocal<PngEncoderScratch> THREAD_LOCAL = ThreadLocal.withInitial(() -> new PngEncoderScratch(true));
+
+    /**
+     * @param threadLocal whether to use the instance of the current thread
+     * @return the scratch to use for one encode, must be given back with {@link #release()}.
+     */
+    static PngEncoderScratch acquire(boolean threadLocal) {
+        if (threadLocal) {
+            PngEncoderScratch scratch = THREAD_LOCAL.get();
+            // An encode from within an encode, e.g. by the output stream, must not share the state.
+            if (!scratch.inUse) {
+                scratch.inUse = true;
+                return scratch;
+            }
+        }
+        return new PngEncoderScratch(false);
+    }
+
+    private final boolean threadLocal;
+    private final byte[][] rows;
+    private final CRC32 crc;
+    private final ArrayDeque<PngEncoderDeflaterSegmentTask> segmentTasks;
+    private byte[] idatBuffer;
+    private byte[] dictionary;
+    private byte[] storedBlock;
+    private ReusableDeflaterOutputStream deflaterOutputStream;
+    private Deflater trialDeflater;
+    private boolean inUse;
+
+    PngEncoderScratch() {
+        this(false);
+    }
+
+    private PngEncoderScratch(boolean threadLocal) {
+        this.threadLocal = threadLocal;
+        this.rows = new byte[ROW_COUNT][];
+        this.crc = new CRC32();
+        this.segmentTasks = new ArrayDeque<>();
+    }
+
+    /**
+     * The content of the returned row is undefined.
+     *
+     * @param row    one of the ROW_ constants
+     * @param length the exact length of the row
+     * @return a row of the given length
+     */
+    byte[] getRow(int row, int length) {
+        byte[] bytes = rows[row];
+        if (bytes == null || bytes.length != length) {
+            bytes = new byte[length];
+            rows[row] = bytes;
+        }
+        return bytes;
+    }
+
+    CRC32 getCrc() {
+        crc.reset();
+        return crc;
+    }
+
+    byte[] getIdatBuffer() {
+        if (idatBuffer == null) {
+            idatBuffer = new byte[PngEncoderIdatChunksOutputStream.DEFAULT_BUFFER_LENGTH];
+        }
+        return idatBuffer;
+    }
+
+    /**
+     * @param minLength the number of bytes needed
+     * @return a buffer of at least minLength bytes to produce a dictionary in
+     */
+    byte[] getDictionary(int minLength) {
+        if (dictionary == null || dictionary.length < minLength) {
+            dictionary = new byte[minLength];
+        }
+        return dictionary;
+    }
+
+    /**
+     * @return a zlib stream with a fresh deflater writing to out
+     */
+    DeflaterOutputStream getDeflaterOutputStream(OutputStream out, int compressionLevel, int strategy) {
+        if (deflaterOutputStream == null) {
+            deflaterOutputStream = new ReusableDeflaterOutputStream(new Deflater(compressionLevel));
+        }
+        deflaterOutputStream.reset(out, compressionLevel, strategy);
+        return deflaterOutputStream;
+    }
+
+    /**
+     * @return a zlib stream of stored blocks writing to out, for compression level 0
+     */
+    PngEncoderStoredOutputStream getStoredOutputStream(OutputStream out) throws IOException {
+        if (storedBlock == null) {
+            storedBlock = new byte[PngEncoderStoredBlocks.BLOCK_MAX_LENGTH];
+        }
+        return new PngEncoderStoredOutputStream(out, storedBlock);
+    }
+
+    /**
+     * @return a raw deflater to measure how well rows compress, see {@link PngEncoderFilterStrategy#TRIAL_DEFLATE}
+     */
+    Deflater getTrialDeflater(int compressionLevel) {
+        if (trialDeflater == null) {
+            trialDeflater = new Deflater(compressionLevel, true);
+        }
+        trialDeflater.setLevel(compressionLevel);
+        return trialDeflater;
+    }
+
+    PngEncoderDeflaterSegmentTask borrowSegmentTask() {
+        PngEncoderDeflaterSegmentTask task = segmentTasks.poll();
+        return task != null ? task : new PngEncoderDeflaterSegmentTask();
+    }
+
+    void giveBackSegmentTask(PngEncoderDeflaterSegmentTask task) {
+        segmentTasks.push(task);
+    }
+
+    void release() {
+        if (deflaterOutputStream != null) {
+            if (threadLocal) {
+                deflaterOutputStream.detach();
+            } else {
+                deflaterOutputStream.end();
+            }
+        }
+        if (trialDeflater != null && !threadLocal) {
+            trialDeflater.end();
+            trialDeflater = null;
+        }
+        inUse = false;
+    }
+
+    /**
+     * A DeflaterOutputStream that can be pointed to another stream and keeps its Deflater between encodes.
+     */
+    private static class ReusableDeflaterOutputStream extends DeflaterOutputStream {
+        ReusableDeflaterOutputStream(Deflater deflater) {
+            super(NullOutputStream.INSTANCE, deflater);
+        }
+
+        void reset(OutputStream out, int compressionLevel, int strategy) {
+            this.out = out;
+            def.reset();
+            def.setLevel(compressionLevel);
+            def.setStrategy(strategy);
+        }
+
+        void detach() {
+            this.out = NullOutputStream.INSTANCE;
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.pngencoder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Chooses the segment length and the number of queued segments of a multithreaded encode.
+ * <p>
+ * The segments are planned for the threads that are actually available: the parallelism of the encoder if set,
+ * otherwise the idle threads of the executor. Each of them gets {@link #SEGMENTS_PER_THREAD} segments, as some
+ * segments compress faster than others. A segment must not be shorter than the minimum length for its size
+ * overhead, nor compress in less than {@link #MIN_SEGMENT_NANOS} according to the {@link ThroughputModel}, as then
+ * handing it over to a worker costs more than it saves. Compression level 1 is about five times faster per byte than
+ * level 9, so its segments are longer.
+ */
+final class PngEncoderSegmentPlanner {
+    // Some segments compress faster than others. A value of 3 seems to keep all threads busy.
+    static final int QUEUED_SEGMENTS_PER_THREAD = 3;
+
+    // Enforces writing to underlying stream in main thread.
+    // Multiplied so that not all work is finished before flush to underlying stream.
+    static final int SEGMENTS_PER_THREAD = QUEUED_SEGMENTS_PER_THREAD * 3;
+
+    // Deterministic segmentation plans for this many threads, whatever the machine has. Large images then have enough
+    // segments for most machines, and small ones are not split up more than the size overhead allows anyway.
+    static final int DETERMINISTIC_PARALLELISM = 8;
+
+    // Below this a segment spends a noticeable part of its time being handed over and joined.
+    static final long MIN_SEGMENT_NANOS = 1_000_000;
+
+    // Caps the segments of very fast compression, e.g. level 0, so that the buffers stay reasonable.
+    static final int SEGMENT_MAX_LENGTH_ORIGINAL_MAX = 8 * 1024 * 1024;
+
+    private PngEncoderSegmentPlanner() {
+    }
+
+    /**
+     * @param totalOriginalBytesLength  the estimated length of the image data
+     * @param parallelism               the number of threads to plan for
+     * @param nanosPerByte              the expected compression time per byte, or 0 if unknown
+     * @param dictionaryChainingEnabled true if every segment is primed with the tail of the previous one
+     * @return the maximum length of a segment, not yet aligned to rows
+     */
+    static int getSegmentMaxLengthOriginal(int totalOriginalBytesLength, int parallelism, double nanosPerByte, boolean dictionaryChainingEnabled) {
+        int segmentMaxLengthOriginalMin = dictionaryChainingEnabled
+                ? PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN_DICTIONARY_CHAINING
+                : PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN;
+        if (nanosPerByte > 0) {
+            final double minLengthForTime = MIN_SEGMENT_NANOS / nanosPerByte;
+            segmentMaxLengthOriginalMin = (int) Math.max(segmentMaxLengthOriginalMin, Math.min(minLengthForTime, SEGMENT_MAX_LENGTH_ORIGINAL_MAX));
+        }
+        final long segmentCount = (long) parallelism * SEGMENTS_PER_THREAD;
+        return (int) Math.max(totalOriginalBytesLength / segmentCount, segmentMaxLengthOriginalMin);
+    }
+
+    /**
+     * @return the number of segments an encode may have queued, besides the one it is filling
+     */
+    static int getMaxQueuedSegments(int parallelism) {
+        return parallelism * QUEUED_SEGMENTS_PER_THREAD;
+    }
+
+    /**
+     * Estimates how many threads of the executor are free to take segments. The built-in pool and other
+     * {@link ThreadPoolExecutor}s and {@link ForkJoinPool}s report their active threads and queued tasks, for other
+     * executors all processors are assumed to be available.
+     *
+     * @return the number of idle threads, at least 1
+     */
+    static int getAvailableParallelism(Executor executor) {
+        final int threadCount;
+        final long busyCount;
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executor;
+            final int maximumPoolSize = threadPoolExecutor.getMaximumPoolSize();
+            if (maximumPoolSize == Integer.MAX_VALUE) {
+                // A cached pool starts a thread for every task.
+                return PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS;
+            }
+            threadCount = maximumPoolSize;
+            busyCount = (long) threadPoolExecutor.getActiveCount() + threadPoolExecutor.getQueue().size();
+        } else if (executor instanceof ForkJoinPool) {
+            final ForkJoinPool forkJoinPool = (ForkJoinPool) executor;
+            threadCount = forkJoinPool.getParallelism();
+            busyCount = (long) forkJoinPool.getActiveThreadCount() + forkJoinPool.getQueuedSubmissionCount();
+        } else {
+            return PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS;
+        }
+        return (int) Math.max(1, threadCount - busyCount);
+    }
+
+    /**
+     * A running average of the compression time per byte of one compressor, per compression level and predictor
+     * setting. Every multithreaded segment is measured, so the model follows the images that are actually encoded.
+     */
+    static final class ThroughputModel {
+        // Only segments this long are measured, shorter ones are dominated by fixed costs.
+        static final int MIN_MEASURED_LENGTH = 32 * 1024;
+
+        // The weight of a new measurement.
+        private static final double SMOOTHING = 0.25;
+
+        private final Throughput[] throughputs;
+
+        ThroughputModel() {
+            // Compression levels -1 to 9, without and with predictor.
+            this.throughputs = new Throughput[11 * 2];
+            for (int i = 0; i < throughputs.length; i++) {
+                throughputs[i] = new Throughput();
+            }
+        }
+
+        Throughput get(int compressionLevel, boolean usePredictorEncoding) {
+            return throughputs[(compressionLevel + 1) * 2 + (usePredictorEncoding ? 1 : 0)];
+        }
+    }
+
+    static final class Throughput {
+        // Updated without synchronization. A lost update only delays the average a little.
+        private volatile double nanosPerByte;
+
+        /**
+         * @return the average compression time per byte, or 0 if nothing has been measured yet
+         */
+        double getNanosPerByte() {
+            return nanosPerByte;
+        }
+
+        void record(int length, long nanos) {
+            if (length < ThroughputModel.MIN_MEASURED_LENGTH || nanos <= 0) {
+                return;
+            }
+            final double measured = (double) nanos / length;
+            final double average = nanosPerByte;
+            nanosPerByte = average == 0 ? measured : average + (measured - average) * ThroughputModel.SMOOTHING;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.pngencoder;
+
+import java.time.Duration;
+
+/**
+ * Statistics collected during one encode.
+ * <p>
+ * Register a listener with {@link PngEncoder#withStatisticsListener(java.util.function.Consumer)} to receive it.
+ */
+public class PngEncoderStatistics {
+    private int segmentCount;
+    private int parallelism;
+    private int[] segmentCompressionLevels = new int[0];
+    private long totalQueueingDelayNanos;
+    private long maxQueueingDelayNanos;
+    private PngEncoder optimizationWinner;
+    private int optimizationCandidateCount;
+
+    PngEncoderStatistics() {
+    }
+
+    /**
+     * The number of segments the image data was compressed in. Single threaded encodes compress in segments too, one
+     * after the other, when they use another compressor, a deadline, deterministic segmentation or the AUTO deflate
+     * strategy.
+     *
+     * @return the number of segments, or 0 if the image data was compressed as a single Deflater stream.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    void setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * @return the number of threads the segments were planned for, or 0 if the image was compressed in a single
+     * thread. See {@link PngEncoder#withParallelism(int)}.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the compression level of every segment in order, or an empty array if the encode had no deadline.
+     * See {@link PngEncoder#withDeadline(Duration)}.
+     */
+    public int[] getSegmentCompressionLevels() {
+        return segmentCompressionLevels.clone();
+    }
+
+    void setSegmentCompressionLevels(int[] segmentCompressionLevels) {
+        this.segmentCompressionLevels = segmentCompressionLevels;
+    }
+
+    /**
+     * The time the segments of this encode spent waiting for admission by the fair share scheduler, summed up over
+     * all segments. Always zero when fair share scheduling is disabled.
+     *
+     * @return the total queueing delay
+     */
+    public Duration getTotalQueueingDelay() {
+        return Duration.ofNanos(totalQueueingDelayNanos);
+    }
+
+    /**
+     * @return the longest time a single segment waited for admission by the fair share scheduler.
+     */
+    public Duration getMaxQueueingDelay() {
+        return Duration.ofNanos(maxQueueingDelayNanos);
+    }
+
+    void setQueueingDelayNanos(long totalQueueingDelayNanos, long maxQueueingDelayNanos) {
+        this.totalQueueingDelayNanos = totalQueueingDelayNanos;
+        this.maxQueueingDelayNanos = maxQueueingDelayNanos;
+    }
+
+    /**
+     * @return the configuration of the candidate that produced the smallest output, or null if the encode was not
+     * optimized. See {@link PngEncoder#withOptimizationEffort(int)}.
+     */
+    public PngEncoder getOptimizationWinner() {
+        return optimizationWinner;
+    }
+
+    /**
+     * @return the number of candidates tried, or 0 if the encode was not optimized.
+     */
+    public int getOptimizationCandidateCount() {
+        return optimizationCandidateCount;
+    }
+
+    void setOptimization(PngEncoder optimizationWinner, int optimizationCandidateCount) {
+        this.optimizationWinner = optimizationWinner;
+        this.optimizationCandidateCount = optimizationCandidateCount;
+    }
+}
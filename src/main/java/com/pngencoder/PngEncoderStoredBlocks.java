@@ -0,0 +1,69 @@
+package com.pngencoder;
+
+/**
+ * Writes deflate "stored" blocks, which carry the bytes uncompressed. This is all compression level 0 does, so there
+ * is no need to go through a {@link java.util.zip.Deflater} for it.
+ * <p>
+ * Every block starts with a header byte holding BFINAL and BTYPE 00, followed by LEN and NLEN in little endian. The
+ * header bits are padded to a full byte, so stored blocks always end byte aligned and can be concatenated just like
+ * segments ending with a sync flush.
+ * <p>
+ * https://www.rfc-editor.org/rfc/rfc1951#section-3.2.4
+ */
+final class PngEncoderStoredBlocks {
+    // LEN is 16 bits.
+    static final int BLOCK_MAX_LENGTH = 65535;
+
+    static final int BLOCK_HEADER_LENGTH = 5;
+
+    private PngEncoderStoredBlocks() {
+    }
+
+    /**
+     * @param length the number of bytes to store
+     * @return the number of bytes written by {@link #write(byte[], int, int, byte[], int, boolean)}
+     */
+    static int getMaxLength(int length) {
+        final int blockCount = Math.max(1, (length + BLOCK_MAX_LENGTH - 1) / BLOCK_MAX_LENGTH);
+        return length + blockCount * BLOCK_HEADER_LENGTH;
+    }
+
+    /**
+     * Writes the bytes as stored blocks. An empty last segment still gets an empty final block, while an empty segment
+     * that is not the last one produces nothing.
+     *
+     * @return the number of bytes written to target
+     */
+    static int write(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset, boolean lastSegment) {
+        int targetPosition = targetOffset;
+        if (length == 0) {
+            if (lastSegment) {
+                targetPosition = writeHeader(target, targetPosition, 0, true);
+            }
+            return targetPosition - targetOffset;
+        }
+        int position = sourceOffset;
+        final int end = sourceOffset + length;
+        while (position < end) {
+            final int blockLength = Math.min(BLOCK_MAX_LENGTH, end - position);
+            final boolean lastBlock = lastSegment && position + blockLength == end;
+            targetPosition = writeHeader(target, targetPosition, blockLength, lastBlock);
+            System.arraycopy(source, position, target, targetPosition, blockLength);
+            targetPosition += blockLength;
+            position += blockLength;
+        }
+        return targetPosition - targetOffset;
+    }
+
+    /**
+     * @return the position after the header
+     */
+    static int writeHeader(byte[] target, int targetOffset, int blockLength, boolean lastBlock) {
+        target[targetOffset] = (byte) (lastBlock ? 1 : 0);
+        target[targetOffset + 1] = (byte) blockLength;
+        target[targetOffset + 2] = (byte) (blockLength >> 8);
+        target[targetOffset + 3] = (byte) ~blockLength;
+        target[targetOffset + 4] = (byte) (~blockLength >> 8);
+        return targetOffset + BLOCK_HEADER_LENGTH;
+    }
+}
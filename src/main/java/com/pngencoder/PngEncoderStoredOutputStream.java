@@ -0,0 +1,98 @@
+package com.pngencoder;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.Adler32;
+
+/**
+ * A zlib stream of stored blocks, the single-threaded counterpart of level 0 segments in
+ * {@link PngEncoderDeflaterOutputStream}. Collects up to one full block, then writes its header and bytes.
+ */
+class PngEncoderStoredOutputStream extends FilterOutputStream {
+    private final byte[] block;
+    private final byte[] header;
+    private final Adler32 adler32;
+    private int blockLength;
+    private boolean finished;
+
+    /**
+     * @param block buffer of {@link PngEncoderStoredBlocks#BLOCK_MAX_LENGTH} bytes to collect a block in
+     */
+    PngEncoderStoredOutputStream(OutputStream out, byte[] block) throws IOException {
+        super(Objects.requireNonNull(out, "out"));
+        if (block.length != PngEncoderStoredBlocks.BLOCK_MAX_LENGTH) {
+            throw new IllegalArgumentException("The block buffer must have the maximum block length.");
+        }
+        this.block = block;
+        this.header = new byte[PngEncoderStoredBlocks.BLOCK_HEADER_LENGTH];
+        this.adler32 = new Adler32();
+        this.blockLength = 0;
+        this.finished = false;
+        PngEncoderDeflaterOutputStream.writeDeflateHeader(out, 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+        adler32.update(b);
+        if (blockLength == block.length) {
+            writeBlock(false);
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        adler32.update(b, off, len);
+        while (len > 0) {
+            if (blockLength == block.length) {
+                writeBlock(false);
+            }
+            final int count = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void writeBlock(boolean lastBlock) throws IOException {
+        PngEncoderStoredBlocks.writeHeader(header, 0, blockLength, lastBlock);
+        out.write(header);
+        out.write(block, 0, blockLength);
+        blockLength = 0;
+    }
+
+    /**
+     * Writes the final block and the Adler-32 checksum, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        writeBlock(true);
+        final long value = adler32.getValue();
+        out.write((int) (value >> 24) & 0xFF);
+        out.write((int) (value >> 16) & 0xFF);
+        out.write((int) (value >> 8) & 0xFF);
+        out.write((int) value & 0xFF);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
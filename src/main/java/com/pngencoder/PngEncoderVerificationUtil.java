@@ -1,5 +1,8 @@
 package com.pngencoder;
 
+import java.time.Duration;
+import java.util.Objects;
+
 class PngEncoderVerificationUtil {
     private PngEncoderVerificationUtil() {
     }
@@ -12,6 +15,71 @@ class PngEncoderVerificationUtil {
         return compressionLevel;
     }
 
+    static int verifyIterationCount(int iterationCount) {
+        if (iterationCount < 1) {
+            String message = String.format("The iterationCount must be at least 1, but was %d.", iterationCount);
+            throw new IllegalArgumentException(message);
+        }
+        return iterationCount;
+    }
+
+    static int verifyOptimizationEffort(int optimizationEffort) {
+        if ((optimizationEffort < 0) || (optimizationEffort > PngEncoder.MAX_OPTIMIZATION_EFFORT)) {
+            String message = String.format("The optimizationEffort must be between 0 and %d inclusive, but was %d.", PngEncoder.MAX_OPTIMIZATION_EFFORT, optimizationEffort);
+            throw new IllegalArgumentException(message);
+        }
+        return optimizationEffort;
+    }
+
+    static int verifyParallelism(int parallelism) {
+        if (parallelism < 0) {
+            String message = String.format("The parallelism must be 0 or greater, but was %d.", parallelism);
+            throw new IllegalArgumentException(message);
+        }
+        return parallelism;
+    }
+
+    static Duration verifyDeadline(Duration deadline) {
+        if (deadline != null && (deadline.isNegative() || deadline.isZero())) {
+            String message = String.format("The deadline must be positive, but was %s.", deadline);
+            throw new IllegalArgumentException(message);
+        }
+        return deadline;
+    }
+
+    static int verifyFairShareSchedulingWeight(int weight) {
+        if (weight < 0) {
+            String message = String.format("The fairShareSchedulingWeight must be 0 or greater, but was %d.", weight);
+            throw new IllegalArgumentException(message);
+        }
+        return weight;
+    }
+
+    static int verifyMaxInFlightSegments(int maxInFlightSegments) {
+        if (maxInFlightSegments < 1) {
+            String message = String.format("The maxInFlightSegments must be 1 or greater, but was %d.", maxInFlightSegments);
+            throw new IllegalArgumentException(message);
+        }
+        return maxInFlightSegments;
+    }
+
+    static long verifyBufferPoolMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            String message = String.format("The bufferPoolMaxBytes must be 0 or greater, but was %d.", maxBytes);
+            throw new IllegalArgumentException(message);
+        }
+        return maxBytes;
+    }
+
+    static Duration verifyBufferPoolIdleTimeout(Duration idleTimeout) {
+        Objects.requireNonNull(idleTimeout, "idleTimeout");
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            String message = String.format("The bufferPoolIdleTimeout must be positive, but was %s.", idleTimeout);
+            throw new IllegalArgumentException(message);
+        }
+        return idleTimeout;
+    }
+
     static String verifyChunkType(String chunkType) {
         if (chunkType.length() != 4) {
             String message = String.format("The chunkType must be four letters, but was \"%s\". See http://www.libpng.org/pub/png/book/chapter08.html#png.ch08.div.1", chunkType);
@@ -0,0 +1,202 @@
+package com.pngencoder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The predictor kernel of Java 17 and later, which filters as many bytes at once as the CPU has 8 bit lanes.
+ * <p>
+ * The filters are computed on the bytes, which wrap around like the (byte) casts of the scalar kernel. Only the sums
+ * are widened, by reinterpreting the vectors as shorts and ints of the same size, as converting them to another shape
+ * is not intrinsified on Java 17 and allocates for every row. All the filters of a byte only depend on the unfiltered
+ * rows, so the bytes are independent of each other. The first pixel and the bytes that do not fill a vector are
+ * filtered by the scalar kernel. Loaded by name from {@link PngEncoderPredictorKernel}, which falls back to the scalar
+ * kernel if this class or the vector module is not available.
+ * <p>
+ * Vectors are only allocated on the heap when they are passed to or returned from a method the JIT does not inline,
+ * which it stops doing once a compiled method has grown large. So every filter has a small loop of its own that calls
+ * nothing but the Vector API, and only arrays and numbers are passed between the methods of this class.
+ */
+final class PngEncoderPredictorVectorKernel extends PngEncoderPredictorKernel {
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    // The sums, two bytes per lane.
+    private static final VectorSpecies<Short> SHORT_SPECIES = BYTE_SPECIES.withLanes(short.class);
+    private static final int LANE_COUNT = BYTE_SPECIES.length();
+
+    // A lane of a sum grows by at most 2 * 255 per vector, so the sums are moved to the longs before they can overflow
+    // 16 unsigned bits.
+    private static final int VECTORS_PER_FLUSH = 128;
+
+    PngEncoderPredictorVectorKernel() {
+        if (LANE_COUNT < 16) {
+            // Too narrow to make up for the overhead.
+            throw new UnsupportedOperationException("The preferred vectors have " + LANE_COUNT + " lanes of 8 bits.");
+        }
+    }
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    void filter(byte[] currRow, byte[] prevRow, int bpp, byte[] rowSub, byte[] rowUp, byte[] rowAverage, byte[] rowPaeth, long[] sums) {
+        sums[SUM_NONE] = filter(0, currRow, prevRow, bpp, null, 0);
+        sums[SUM_SUB] = 1 + filter(1, currRow, prevRow, bpp, rowSub, 0);
+        sums[SUM_UP] = 2 + filter(2, currRow, prevRow, bpp, rowUp, 0);
+        sums[SUM_AVERAGE] = 3 + filter(3, currRow, prevRow, bpp, rowAverage, 0);
+        sums[SUM_PAETH] = 4 + filter(4, currRow, prevRow, bpp, rowPaeth, 0);
+    }
+
+    @Override
+    long filter(int filterType, byte[] currRow, byte[] prevRow, int bpp, byte[] row, int rowOffset) {
+        final int length = currRow.length;
+        // The first pixel has no pixel to the left.
+        final int vectorStart = Math.min(bpp + 1, length);
+        final int vectorEnd = vectorStart + (length - vectorStart) / LANE_COUNT * LANE_COUNT;
+        long sum = filter(filterType, currRow, prevRow, bpp, 1, vectorStart, row, rowOffset);
+        switch (filterType) {
+            case 0:
+                sum += sumNone(currRow, vectorStart, vectorEnd);
+                break;
+            case 1:
+                sum += filterSub(currRow, bpp, vectorStart, vectorEnd, row, rowOffset);
+                break;
+            case 2:
+                sum += filterUp(currRow, prevRow, vectorStart, vectorEnd, row, rowOffset);
+                break;
+            case 3:
+                sum += filterAverage(currRow, prevRow, bpp, vectorStart, vectorEnd, row, rowOffset);
+                break;
+            case 4:
+                sum += filterPaeth(currRow, prevRow, bpp, vectorStart, vectorEnd, row, rowOffset);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("The filter type must be between 0 and 4, but was %d.", filterType));
+        }
+        return sum + filter(filterType, currRow, prevRow, bpp, vectorEnd, length, row, rowOffset);
+    }
+
+    // The loops below filter the whole vectors from start to end. The unsigned bytes are added to the lanes of the sum
+    // two at a time, and the lanes are added up in pairs of ints, as their total may not fit into 16 bits.
+    //
+    // c | b
+    // -----
+    // a | x
+    //
+    // x => current pixel
+
+    private static long sumNone(byte[] currRow, int start, int end) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            final int chunkEnd = Math.min(end, i + VECTORS_PER_FLUSH * LANE_COUNT);
+            ShortVector lanes = ShortVector.zero(SHORT_SPECIES);
+            for (; i < chunkEnd; i += LANE_COUNT) {
+                final ShortVector pairs = ByteVector.fromArray(BYTE_SPECIES, currRow, i).reinterpretAsShorts();
+                lanes = lanes.add(pairs.and((short) 0xFF)).add(pairs.lanewise(VectorOperators.LSHR, 8));
+            }
+            final IntVector lanePairs = lanes.reinterpretAsInts();
+            sum += lanePairs.and(0xFFFF).add(lanePairs.lanewise(VectorOperators.LSHR, 16)).reduceLanes(VectorOperators.ADD);
+        }
+        return sum;
+    }
+
+    private static long filterSub(byte[] currRow, int bpp, int start, int end, byte[] row, int rowOffset) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            final int chunkEnd = Math.min(end, i + VECTORS_PER_FLUSH * LANE_COUNT);
+            ShortVector lanes = ShortVector.zero(SHORT_SPECIES);
+            for (; i < chunkEnd; i += LANE_COUNT) {
+                final ByteVector x = ByteVector.fromArray(BYTE_SPECIES, currRow, i);
+                final ByteVector a = ByteVector.fromArray(BYTE_SPECIES, currRow, i - bpp);
+                final ByteVector filtered = x.sub(a);
+                filtered.intoArray(row, rowOffset + i);
+                final ShortVector pairs = filtered.abs().reinterpretAsShorts();
+                lanes = lanes.add(pairs.and((short) 0xFF)).add(pairs.lanewise(VectorOperators.LSHR, 8));
+            }
+            final IntVector lanePairs = lanes.reinterpretAsInts();
+            sum += lanePairs.and(0xFFFF).add(lanePairs.lanewise(VectorOperators.LSHR, 16)).reduceLanes(VectorOperators.ADD);
+        }
+        return sum;
+    }
+
+    private static long filterUp(byte[] currRow, byte[] prevRow, int start, int end, byte[] row, int rowOffset) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            final int chunkEnd = Math.min(end, i + VECTORS_PER_FLUSH * LANE_COUNT);
+            ShortVector lanes = ShortVector.zero(SHORT_SPECIES);
+            for (; i < chunkEnd; i += LANE_COUNT) {
+                final ByteVector x = ByteVector.fromArray(BYTE_SPECIES, currRow, i);
+                final ByteVector b = ByteVector.fromArray(BYTE_SPECIES, prevRow, i);
+                final ByteVector filtered = x.sub(b);
+                filtered.intoArray(row, rowOffset + i);
+                final ShortVector pairs = filtered.abs().reinterpretAsShorts();
+                lanes = lanes.add(pairs.and((short) 0xFF)).add(pairs.lanewise(VectorOperators.LSHR, 8));
+            }
+            final IntVector lanePairs = lanes.reinterpretAsInts();
+            sum += lanePairs.and(0xFFFF).add(lanePairs.lanewise(VectorOperators.LSHR, 16)).reduceLanes(VectorOperators.ADD);
+        }
+        return sum;
+    }
+
+    private static long filterAverage(byte[] currRow, byte[] prevRow, int bpp, int start, int end, byte[] row, int rowOffset) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            final int chunkEnd = Math.min(end, i + VECTORS_PER_FLUSH * LANE_COUNT);
+            ShortVector lanes = ShortVector.zero(SHORT_SPECIES);
+            for (; i < chunkEnd; i += LANE_COUNT) {
+                final ByteVector x = ByteVector.fromArray(BYTE_SPECIES, currRow, i);
+                final ByteVector b = ByteVector.fromArray(BYTE_SPECIES, prevRow, i);
+                final ByteVector a = ByteVector.fromArray(BYTE_SPECIES, currRow, i - bpp);
+                // (a + b) / 2 without the carry out of 8 bits.
+                final ByteVector average = a.and(b).add(a.lanewise(VectorOperators.XOR, b).lanewise(VectorOperators.LSHR, 1));
+                final ByteVector filtered = x.sub(average);
+                filtered.intoArray(row, rowOffset + i);
+                final ShortVector pairs = filtered.abs().reinterpretAsShorts();
+                lanes = lanes.add(pairs.and((short) 0xFF)).add(pairs.lanewise(VectorOperators.LSHR, 8));
+            }
+            final IntVector lanePairs = lanes.reinterpretAsInts();
+            sum += lanePairs.and(0xFFFF).add(lanePairs.lanewise(VectorOperators.LSHR, 16)).reduceLanes(VectorOperators.ADD);
+        }
+        return sum;
+    }
+
+    private static long filterPaeth(byte[] currRow, byte[] prevRow, int bpp, int start, int end, byte[] row, int rowOffset) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            final int chunkEnd = Math.min(end, i + VECTORS_PER_FLUSH * LANE_COUNT);
+            ShortVector lanes = ShortVector.zero(SHORT_SPECIES);
+            for (; i < chunkEnd; i += LANE_COUNT) {
+                final ByteVector x = ByteVector.fromArray(BYTE_SPECIES, currRow, i);
+                final ByteVector b = ByteVector.fromArray(BYTE_SPECIES, prevRow, i);
+                final ByteVector a = ByteVector.fromArray(BYTE_SPECIES, currRow, i - bpp);
+                final ByteVector c = ByteVector.fromArray(BYTE_SPECIES, prevRow, i - bpp);
+
+                // p = a + b - c, so p - a = b - c, p - b = a - c and p - c = (b - c) + (a - c).
+                final VectorMask<Byte> bBelowC = b.compare(VectorOperators.UNSIGNED_LT, c);
+                final VectorMask<Byte> aBelowC = a.compare(VectorOperators.UNSIGNED_LT, c);
+                final ByteVector pa = b.sub(c).blend(c.sub(b), bBelowC);
+                final ByteVector pb = a.sub(c).blend(c.sub(a), aBelowC);
+                // With different signs pc is |pa - pb|. With the same sign it is pa + pb, which may not fit into a
+                // byte, but is at least pa and pb, so 255 compares the same.
+                final ByteVector pc = pa.sub(pb).blend(pb.sub(pa), pa.compare(VectorOperators.UNSIGNED_LT, pb))
+                        .blend((byte) -1, bBelowC.eq(aBelowC));
+                final VectorMask<Byte> useA = pa.compare(VectorOperators.UNSIGNED_LE, pb).and(pa.compare(VectorOperators.UNSIGNED_LE, pc));
+                final VectorMask<Byte> useB = pb.compare(VectorOperators.UNSIGNED_LE, pc);
+                final ByteVector paeth = c.blend(b, useB).blend(a, useA);
+
+                final ByteVector filtered = x.sub(paeth);
+                filtered.intoArray(row, rowOffset + i);
+                final ShortVector pairs = filtered.abs().reinterpretAsShorts();
+                lanes = lanes.add(pairs.and((short) 0xFF)).add(pairs.lanewise(VectorOperators.LSHR, 8));
+            }
+            final IntVector lanePairs = lanes.reinterpretAsInts();
+            sum += lanePairs.and(0xFFFF).add(lanePairs.lanewise(VectorOperators.LSHR, 16)).reduceLanes(VectorOperators.ADD);
+        }
+        return sum;
+    }
+}
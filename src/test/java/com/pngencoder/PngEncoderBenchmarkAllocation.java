@@ -0,0 +1,97 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.util.NullOutputStream;
+
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Measures the bytes allocated per encode with {@link PngEncoder#withThreadLocalScratchEnabled(boolean)}, the same as
+ * running the benchmarks with {@code -prof gc}, and fails if gc.alloc.rate.norm exceeds the budget.
+ */
+public class PngEncoderBenchmarkAllocation {
+    // The image is 1024x1024 ARGB, so 4 MB of raw data. What remains are a few small objects per encode.
+    private static final double ALLOCATION_BUDGET_BYTES_PER_ENCODE = 8 * 1024;
+
+    private static final Options OPTIONS = new OptionsBuilder()
+            .include(PngEncoderBenchmarkAllocation.class.getSimpleName() + ".*")
+            .addProfiler(GCProfiler.class)
+            .shouldFailOnError(true)
+            .mode(Mode.AverageTime)
+            .timeUnit(TimeUnit.MILLISECONDS)
+            .threads(1)
+            .forks(1)
+            .warmupIterations(2)
+            .measurementIterations(1)
+            .warmupTime(TimeValue.seconds(2))
+            .measurementTime(TimeValue.seconds(5))
+            .build();
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkAllocation() throws Exception {
+        Collection<RunResult> runResults = new Runner(OPTIONS).run();
+        for (RunResult runResult : runResults) {
+            Result<?> allocationRateNorm = runResult.getSecondaryResults().get("gc.alloc.rate.norm");
+            String benchmark = runResult.getParams().getBenchmark();
+            assertThat(benchmark, allocationRateNorm, notNullValue());
+            assertThat(benchmark, allocationRateNorm.getScore(), lessThan(ALLOCATION_BUDGET_BYTES_PER_ENCODE));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkState {
+        final OutputStream outputStream = new NullOutputStream();
+        final PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024))
+                .withCompressionLevel(1)
+                .withThreadLocalScratchEnabled(true);
+    }
+
+    @Benchmark
+    public int singleThreaded(BenchmarkState state) {
+        return state.pngEncoder
+                .withMultiThreadedCompressionEnabled(false)
+                .toStream(state.outputStream);
+    }
+
+    @Benchmark
+    public int singleThreadedPredictorEncoding(BenchmarkState state) {
+        return state.pngEncoder
+                .withMultiThreadedCompressionEnabled(false)
+                .withPredictorEncoding(true)
+                .toStream(state.outputStream);
+    }
+
+    @Benchmark
+    public int multiThreaded(BenchmarkState state) {
+        return state.pngEncoder
+                .toStream(state.outputStream);
+    }
+
+    @Benchmark
+    public int multiThreadedPredictorEncoding(BenchmarkState state) {
+        return state.pngEncoder
+                .withPredictorEncoding(true)
+                .toStream(state.outputStream);
+    }
+}
@@ -49,6 +49,29 @@ public class PngEncoderBenchmarkCompressionSpeedVsSize {
             String message = String.format("compressionLevel (withPredictor): %d fileSize: %d", compressionLevel, fileSize);
             System.out.println(message);
         }
+
+        for (PngEncoderDeflateStrategy deflateStrategy : PngEncoderDeflateStrategy.values()) {
+            for (int compressionLevel = 1; compressionLevel <= 9; compressionLevel += 4) {
+                final int fileSize = PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(bufferedImage, compressionLevel, deflateStrategy, false);
+                final int fileSizePredictor = PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(bufferedImage, compressionLevel, deflateStrategy, true);
+                String message = String.format("deflateStrategy: %s compressionLevel: %d fileSize: %d fileSize (withPredictor): %d",
+                        deflateStrategy, compressionLevel, fileSize, fileSizePredictor);
+                System.out.println(message);
+            }
+        }
+
+        for (PngEncoderFilterStrategy filterStrategy : PngEncoderFilterStrategy.values()) {
+            for (int compressionLevel = 1; compressionLevel <= 9; compressionLevel += 4) {
+                final int fileSize = PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(bufferedImage, compressionLevel, filterStrategy);
+                String message = String.format("filterStrategy: %s compressionLevel: %d fileSize: %d", filterStrategy, compressionLevel, fileSize);
+                System.out.println(message);
+            }
+        }
+
+        System.out.println("compressor fast fileSize: " + PngEncoderTestUtil.encodeWithPngEncoderCompressor(bufferedImage, PngEncoderCompressor.fast(), false));
+        System.out.println("compressor fast (withPredictor) fileSize: " + PngEncoderTestUtil.encodeWithPngEncoderCompressor(bufferedImage, PngEncoderCompressor.fast(), true));
+        System.out.println("compressor optimal fileSize: " + PngEncoderTestUtil.encodeWithPngEncoderCompressor(bufferedImage, PngEncoderCompressor.optimal(), false));
+        System.out.println("compressor optimal (withPredictor) fileSize: " + PngEncoderTestUtil.encodeWithPngEncoderCompressor(bufferedImage, PngEncoderCompressor.optimal(), true));
     }
 
     @State(Scope.Benchmark)
@@ -156,6 +179,76 @@ public class PngEncoderBenchmarkCompressionSpeedVsSize {
         PngEncoderTestUtil.encodeWithPngEncoderPredictorEncoding(state.bufferedImage, 9);
     }
 
+    @Benchmark
+    public void compressorFast(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderCompressor(state.bufferedImage, PngEncoderCompressor.fast(), false);
+    }
+
+    @Benchmark
+    public void compressorFastPredictor(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderCompressor(state.bufferedImage, PngEncoderCompressor.fast(), true);
+    }
+
+    @Benchmark
+    public void deflateStrategyFiltered(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.FILTERED, false);
+    }
+
+    @Benchmark
+    public void deflateStrategyHuffmanOnly(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.HUFFMAN_ONLY, false);
+    }
+
+    @Benchmark
+    public void deflateStrategyAuto(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.AUTO, false);
+    }
+
+    @Benchmark
+    public void deflateStrategyFilteredPredictor(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.FILTERED, true);
+    }
+
+    @Benchmark
+    public void deflateStrategyHuffmanOnlyPredictor(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.HUFFMAN_ONLY, true);
+    }
+
+    @Benchmark
+    public void deflateStrategyAutoPredictor(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderDeflateStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderDeflateStrategy.AUTO, true);
+    }
+
+    @Benchmark
+    public void filterStrategyMinSum(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.MIN_SUM);
+    }
+
+    @Benchmark
+    public void filterStrategySampled(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.SAMPLED);
+    }
+
+    @Benchmark
+    public void filterStrategyUp(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.UP);
+    }
+
+    @Benchmark
+    public void filterStrategyPaeth(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.PAETH);
+    }
+
+    @Benchmark
+    public void filterStrategyEntropy(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.ENTROPY);
+    }
+
+    @Benchmark
+    public void filterStrategyTrialDeflate(BenchmarkState state) {
+        PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.TRIAL_DEFLATE);
+    }
+
     private static BufferedImage createTestImage() {
         return PngEncoderTestUtil.readTestImageResource("png-encoder-logo.png");
     }
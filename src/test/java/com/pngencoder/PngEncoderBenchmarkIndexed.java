@@ -0,0 +1,101 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexed encoding of dithered images with few, some and almost 256 colors, where neighbouring pixels rarely have the
+ * same color. Compared with encoding the same images as RGBA.
+ */
+public class PngEncoderBenchmarkIndexed {
+
+    private static Options options(int threads) {
+        return new OptionsBuilder()
+                .include(PngEncoderBenchmarkIndexed.class.getSimpleName() + ".*")
+                .shouldFailOnError(true)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .threads(threads)
+                .forks(1)
+                .warmupIterations(1)
+                .measurementIterations(3)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementTime(TimeValue.seconds(5))
+                .build();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkOneThread() throws Exception {
+        new Runner(options(1)).run();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkEightThreads() throws Exception {
+        new Runner(options(8)).run();
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateDithered1024x1024 {
+        @Param({"16", "128", "250"})
+        int colors;
+
+        BufferedImage bufferedImage;
+
+        @Setup
+        public void setup() {
+            bufferedImage = createDitheredImage(1024, colors);
+        }
+    }
+
+    @Benchmark
+    public PngEncoderIndexed.IndexedEncoderResult scanColors(BenchmarkStateDithered1024x1024 state) throws IOException {
+        return PngEncoderIndexed.encodeImage(state.bufferedImage, PngEncoderScanlineUtil.getEncodingMetaInfo(state.bufferedImage));
+    }
+
+    @Benchmark
+    public byte[] indexed(BenchmarkStateDithered1024x1024 state) {
+        return new PngEncoder()
+                .withBufferedImage(state.bufferedImage)
+                .withTryIndexedEncoding(true)
+                .toBytes();
+    }
+
+    @Benchmark
+    public byte[] rgba(BenchmarkStateDithered1024x1024 state) {
+        return new PngEncoder()
+                .withBufferedImage(state.bufferedImage)
+                .toBytes();
+    }
+
+    private static BufferedImage createDitheredImage(int side, int colors) {
+        final Random random = new Random(colors);
+        final int[] palette = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            palette[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        final BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                bufferedImage.setRGB(x, y, palette[random.nextInt(colors)]);
+            }
+        }
+        return bufferedImage;
+    }
+}
@@ -0,0 +1,110 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and the vector predictor kernel, on their own and as part of an encode. The vector kernel is
+ * only used on Java 17 and later, otherwise both measure the scalar kernel.
+ */
+public class PngEncoderBenchmarkPredictorKernel {
+
+    private static Options options(int threads) {
+        final ChainedOptionsBuilder builder = new OptionsBuilder()
+                .include(PngEncoderBenchmarkPredictorKernel.class.getSimpleName() + ".*")
+                .shouldFailOnError(true)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .threads(threads)
+                .forks(1)
+                .warmupIterations(2)
+                .measurementIterations(3)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementTime(TimeValue.seconds(5));
+        if (!System.getProperty("java.specification.version").startsWith("1.")) {
+            builder.jvmArgsAppend("--add-modules", "jdk.incubator.vector");
+        }
+        return builder.build();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkOneThread() throws Exception {
+        new Runner(options(1)).run();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkEightThreads() throws Exception {
+        new Runner(options(8)).run();
+    }
+
+    @State(Scope.Thread)
+    public static class BenchmarkStateRows {
+        @Param({"3", "4", "8"})
+        int bpp;
+
+        final int length = 1 + 4096 * 4;
+        final byte[] currRow = new byte[length];
+        final byte[] prevRow = new byte[length];
+        final byte[] rowSub = new byte[length];
+        final byte[] rowUp = new byte[length];
+        final byte[] rowAverage = new byte[length];
+        final byte[] rowPaeth = new byte[length];
+        final long[] sums = new long[PngEncoderPredictorKernel.SUM_COUNT];
+
+        @Setup
+        public void setup() {
+            final Random random = new Random(bpp);
+            random.nextBytes(currRow);
+            random.nextBytes(prevRow);
+            currRow[0] = 0;
+            prevRow[0] = 0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateLogo2121x350 {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.readTestImageResource("png-encoder-logo.png");
+        final PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withPredictorEncoding(true)
+                .withCompressionLevel(0);
+    }
+
+    @Benchmark
+    public void rowScalar(BenchmarkStateRows state, Blackhole blackhole) {
+        filter(PngEncoderPredictorKernel.scalar(), state, blackhole);
+    }
+
+    @Benchmark
+    public void rowFastest(BenchmarkStateRows state, Blackhole blackhole) {
+        filter(PngEncoderPredictorKernel.getInstance(), state, blackhole);
+    }
+
+    @Benchmark
+    public byte[] logo2121x350PredictorUncompressed(BenchmarkStateLogo2121x350 state) {
+        return state.pngEncoder.toBytes();
+    }
+
+    private static void filter(PngEncoderPredictorKernel kernel, BenchmarkStateRows state, Blackhole blackhole) {
+        kernel.filter(state.currRow, state.prevRow, state.bpp, state.rowSub, state.rowUp, state.rowAverage, state.rowPaeth, state.sums);
+        blackhole.consume(state.sums);
+    }
+}
@@ -0,0 +1,160 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filter strategies on 16 bit gray images: a depth map of planes and a sphere, and a scan of a smooth body on a dark
+ * background. Both have some sensor noise in the low byte.
+ */
+public class PngEncoderBenchmarkSixteenBit {
+    private static final int SIDE = 1024;
+    private static final int NOISE = 8;
+
+    private static Options options(int threads) {
+        return new OptionsBuilder()
+                .include(PngEncoderBenchmarkSixteenBit.class.getSimpleName() + ".*")
+                .shouldFailOnError(true)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .threads(threads)
+                .forks(1)
+                .warmupIterations(1)
+                .measurementIterations(3)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementTime(TimeValue.seconds(5))
+                .build();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkOneThread() throws Exception {
+        new Runner(options(1)).run();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkEightThreads() throws Exception {
+        new Runner(options(8)).run();
+    }
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmarkSize() {
+        for (int noise : new int[]{0, NOISE, 64, 400}) {
+            final BufferedImage depthMap = createDepthMap(SIDE, noise);
+            final BufferedImage scan = createScan(SIDE, noise);
+            for (PngEncoderFilterStrategy filterStrategy : PngEncoderFilterStrategy.values()) {
+                final int depthMapSize = PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(depthMap, PngEncoder.DEFAULT_COMPRESSION_LEVEL, filterStrategy);
+                final int scanSize = PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(scan, PngEncoder.DEFAULT_COMPRESSION_LEVEL, filterStrategy);
+                String message = String.format("noise: %d filterStrategy: %s depth map fileSize: %d scan fileSize: %d", noise, filterStrategy, depthMapSize, scanSize);
+                System.out.println(message);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateDepthMap {
+        final BufferedImage bufferedImage = createDepthMap(SIDE, NOISE);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateScan {
+        final BufferedImage bufferedImage = createScan(SIDE, NOISE);
+    }
+
+    @Benchmark
+    public int depthMapUp(BenchmarkStateDepthMap state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.UP);
+    }
+
+    @Benchmark
+    public int depthMapSampled(BenchmarkStateDepthMap state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.SAMPLED);
+    }
+
+    @Benchmark
+    public int depthMapMinSum(BenchmarkStateDepthMap state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.MIN_SUM);
+    }
+
+    @Benchmark
+    public int depthMapEntropy(BenchmarkStateDepthMap state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.ENTROPY);
+    }
+
+    @Benchmark
+    public int scanUp(BenchmarkStateScan state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.UP);
+    }
+
+    @Benchmark
+    public int scanSampled(BenchmarkStateScan state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.SAMPLED);
+    }
+
+    @Benchmark
+    public int scanMinSum(BenchmarkStateScan state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.MIN_SUM);
+    }
+
+    @Benchmark
+    public int scanEntropy(BenchmarkStateScan state) {
+        return PngEncoderTestUtil.encodeWithPngEncoderFilterStrategy(state.bufferedImage, PngEncoder.DEFAULT_COMPRESSION_LEVEL, PngEncoderFilterStrategy.ENTROPY);
+    }
+
+    private static BufferedImage createDepthMap(int side, int noise) {
+        final BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_USHORT_GRAY);
+        final WritableRaster raster = bufferedImage.getRaster();
+        final Random random = new Random(1);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                // A sloped floor, a sphere in front of it and a tilted wall.
+                double depth = 20000 + 9.5 * x + 3.25 * y;
+                final double dx = x - side * 0.6;
+                final double dy = y - side * 0.4;
+                if (dx * dx + dy * dy < side * side / 16.0) {
+                    depth = 8000 + Math.sqrt(dx * dx + dy * dy) * 40;
+                }
+                if (x > side / 5 && x < side / 3 && y > side / 2) {
+                    depth = 30000 - 6 * y;
+                }
+                raster.setSample(x, y, 0, clamp(depth + random.nextGaussian() * noise));
+            }
+        }
+        return bufferedImage;
+    }
+
+    private static BufferedImage createScan(int side, int noise) {
+        final BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_USHORT_GRAY);
+        final WritableRaster raster = bufferedImage.getRaster();
+        final Random random = new Random(2);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                final double dx = (x - side / 2.0) / side;
+                final double dy = (y - side / 2.0) / side;
+                final boolean inside = dx * dx + dy * dy < 0.2;
+                final double value = inside ? 24000 + 12000 * Math.cos(dx * 9) * Math.sin(dy * 7) + 4000 * Math.sin(x * 0.05) : 1000;
+                raster.setSample(x, y, 0, clamp(value + random.nextGaussian() * noise));
+            }
+        }
+        return bufferedImage;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(65535, value));
+    }
+}
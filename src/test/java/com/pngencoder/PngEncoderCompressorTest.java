@@ -0,0 +1,169 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderCompressorTest {
+    private static final PngEncoderCompressor[] COMPRESSORS = {
+            PngEncoderCompressor.deflater(),
+            PngEncoderDeflaterCompressor.getInstance(PngEncoderDeflateStrategy.FILTERED),
+            PngEncoderDeflaterCompressor.getInstance(PngEncoderDeflateStrategy.HUFFMAN_ONLY),
+            PngEncoderDeflaterCompressor.getInstance(PngEncoderDeflateStrategy.AUTO),
+            PngEncoderCompressor.fast(),
+            PngEncoderCompressor.optimal(3),
+    };
+
+    @Test
+    public void compressInflatesToTheBytes() throws IOException {
+        for (PngEncoderCompressor compressor : COMPRESSORS) {
+            for (byte[] expected : createTestInputs()) {
+                for (int compressionLevel : new int[]{0, 1, 9}) {
+                    byte[] output = new byte[getOutputLength(expected.length)];
+                    int length = compressor.compress(expected, 0, expected.length, null, 0, output, 0, compressionLevel, true);
+                    assertThat(length, is(lessThanOrEqualTo(output.length)));
+
+                    assertThat(inflateRaw(output, length), is(expected));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressSegmentsWithDictionaryCanBeConcatenated() throws IOException {
+        for (PngEncoderCompressor compressor : COMPRESSORS) {
+            byte[] expected = createFilteredLikeBytes(300_000);
+            int[] segmentLengths = {100_000, 50, 0, 99_950, 100_000};
+            byte[] output = new byte[getOutputLength(expected.length) * segmentLengths.length];
+            int length = 0;
+            int offset = 0;
+            for (int i = 0; i < segmentLengths.length; i++) {
+                byte[] dictionary = offset > 0 ? copyOf(expected, offset) : null;
+                length += compressor.compress(expected, offset, segmentLengths[i], dictionary, offset, output, length, 1, i == segmentLengths.length - 1);
+                offset += segmentLengths[i];
+            }
+
+            assertThat(inflateRaw(output, length), is(expected));
+        }
+    }
+
+    @Test
+    public void compressFastIsBetweenStoredAndDeflater() {
+        byte[] input = createFilteredLikeBytes(500_000);
+        byte[] output = new byte[getOutputLength(input.length)];
+
+        int stored = PngEncoderCompressor.deflater().compress(input, 0, input.length, null, 0, output, 0, 0, true);
+        int fast = PngEncoderCompressor.fast().compress(input, 0, input.length, null, 0, output, 0, 1, true);
+        int deflater = PngEncoderCompressor.deflater().compress(input, 0, input.length, null, 0, output, 0, 9, true);
+
+        assertThat(fast, is(lessThan(stored)));
+        assertThat(deflater, is(lessThan(fast)));
+    }
+
+    @Test
+    public void compressOptimalIsSmallerThanDeflater() {
+        byte[] input = createFilteredLikeBytes(200_000);
+        byte[] output = new byte[getOutputLength(input.length)];
+
+        int deflater = PngEncoderCompressor.deflater().compress(input, 0, input.length, null, 0, output, 0, 9, true);
+        int optimal = PngEncoderCompressor.optimal().compress(input, 0, input.length, null, 0, output, 0, 9, true);
+
+        assertThat(optimal, is(lessThan(deflater)));
+    }
+
+    @Test
+    public void optimalWithoutIterationsThrows() {
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderCompressor.optimal(0));
+    }
+
+    @Test
+    public void selectStrategyForRepetitiveBytesIsDefault() {
+        byte[] input = new byte[100_000];
+        assertThat(PngEncoderDeflaterCompressor.selectStrategy(input, 0, input.length), is(PngEncoderDeflateStrategy.DEFAULT));
+    }
+
+    @Test
+    public void selectStrategyForSmallResidualsIsFiltered() {
+        Random random = new Random(12345);
+        byte[] input = new byte[100_000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) (random.nextInt(17) - 8);
+        }
+        assertThat(PngEncoderDeflaterCompressor.selectStrategy(input, 0, input.length), is(PngEncoderDeflateStrategy.FILTERED));
+    }
+
+    @Test
+    public void selectStrategyForNoiseIsHuffmanOnly() {
+        Random random = new Random(12345);
+        byte[] input = new byte[100_000];
+        random.nextBytes(input);
+        assertThat(PngEncoderDeflaterCompressor.selectStrategy(input, 0, input.length), is(PngEncoderDeflateStrategy.HUFFMAN_ONLY));
+    }
+
+    private static int getOutputLength(int inputLength) {
+        return Math.max(PngEncoderCompressor.getMaxCompressedLength(inputLength), PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(inputLength));
+    }
+
+    private static byte[][] createTestInputs() {
+        Random random = new Random(12345);
+        byte[] randomBytes = new byte[100_000];
+        random.nextBytes(randomBytes);
+        return new byte[][]{
+                new byte[0],
+                {42},
+                new byte[70_000],
+                randomBytes,
+                createFilteredLikeBytes(200_000),
+        };
+    }
+
+    /**
+     * Runs, short repetitions and noise, roughly like predictor encoded rows.
+     */
+    private static byte[] createFilteredLikeBytes(int length) {
+        Random random = new Random(12345);
+        byte[] bytes = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int kind = random.nextInt(3);
+            int count = Math.min(length - i, 1 + random.nextInt(300));
+            for (int j = 0; j < count; j++, i++) {
+                if (kind == 0) {
+                    bytes[i] = 0;
+                } else if (kind == 1 && i >= 1000) {
+                    bytes[i] = bytes[i - 1000];
+                } else {
+                    bytes[i] = (byte) random.nextInt(8);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static byte[] inflateRaw(byte[] deflated, int length) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        Inflater inflater = new Inflater(true);
+        try (InflaterOutputStream inflaterOutputStream = new InflaterOutputStream(byteArrayOutputStream, inflater)) {
+            inflaterOutputStream.write(deflated, 0, length);
+        } finally {
+            inflater.end();
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
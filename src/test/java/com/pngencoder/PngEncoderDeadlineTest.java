@@ -0,0 +1,67 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderDeadlineTest {
+    private static final int SEGMENT_LENGTH = 1_000_000;
+
+    private static PngEncoderDeadline createDeadline(Duration deadline, int compressionLevel, PngEncoderSegmentPlanner.ThroughputModel throughputModel) {
+        return new PngEncoderDeadline(System.nanoTime(), deadline, compressionLevel, 10L * SEGMENT_LENGTH, 1, throughputModel, false);
+    }
+
+    private static PngEncoderSegmentPlanner.ThroughputModel createThroughputModel(int level, int nanosPerByte) {
+        final PngEncoderSegmentPlanner.ThroughputModel throughputModel = new PngEncoderSegmentPlanner.ThroughputModel();
+        throughputModel.get(level, false).record(SEGMENT_LENGTH, (long) SEGMENT_LENGTH * nanosPerByte);
+        return throughputModel;
+    }
+
+    @Test
+    public void keepsLevelWithoutMeasurements() {
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofNanos(1), 9, new PngEncoderSegmentPlanner.ThroughputModel());
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(9));
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(9));
+    }
+
+    @Test
+    public void keepsLevelWhenInTime() {
+        // 10 MB at 100 ns per byte take a second.
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofSeconds(100), 9, createThroughputModel(9, 100));
+        for (int i = 0; i < 10; i++) {
+            assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(9));
+        }
+        assertThat(deadline.getSegmentCompressionLevels(), is(new int[]{9, 9, 9, 9, 9, 9, 9, 9, 9, 9}));
+    }
+
+    @Test
+    public void downshiftsToHighestLevelInTime() {
+        // Level 5 is estimated to take 0.44 seconds and level 6 0.6 seconds.
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofMillis(500), 9, createThroughputModel(9, 100));
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(5));
+    }
+
+    @Test
+    public void downshiftsToLevelOneWhenNothingIsInTime() {
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofNanos(1), 9, createThroughputModel(9, 100));
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(1));
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(1));
+    }
+
+    @Test
+    public void defaultLevelIsSix() {
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofSeconds(100), -1, createThroughputModel(9, 100));
+        assertThat(deadline.nextSegment(SEGMENT_LENGTH), is(6));
+    }
+
+    @Test
+    public void unmeasuredLevelIsEstimatedFromMeasuredLevel() {
+        final PngEncoderDeadline deadline = createDeadline(Duration.ofSeconds(1), 9, createThroughputModel(9, 100));
+        assertThat(deadline.getNanosPerByte(9), is(closeTo(100, 0.001)));
+        assertThat(deadline.getNanosPerByte(1), is(closeTo(20, 0.001)));
+    }
+}
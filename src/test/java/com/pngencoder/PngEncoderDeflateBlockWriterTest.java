@@ -0,0 +1,40 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class PngEncoderDeflateBlockWriterTest {
+    @Test
+    public void buildCodeLengthsLimitsTheLengthAndKeepsTheCodeComplete() {
+        // Fibonacci counts make the deepest possible Huffman code.
+        int[] counts = new int[30];
+        counts[0] = 1;
+        counts[1] = 1;
+        for (int i = 2; i < counts.length; i++) {
+            counts[i] = counts[i - 1] + counts[i - 2];
+        }
+        int[] lengths = new int[counts.length];
+        PngEncoderDeflateBlockWriter.buildCodeLengths(counts, counts.length, 15, lengths);
+
+        long used = 0;
+        for (int length : lengths) {
+            assertThat(length, is(lessThanOrEqualTo(15)));
+            used += 1L << (15 - length);
+        }
+        assertThat(used, is(1L << 15));
+    }
+
+    @Test
+    public void buildCodeLengthsOfASingleSymbolGivesTwoCodes() {
+        int[] counts = new int[30];
+        counts[7] = 100;
+        int[] lengths = new int[counts.length];
+        PngEncoderDeflateBlockWriter.buildCodeLengths(counts, counts.length, 15, lengths);
+
+        assertThat(lengths[7], is(1));
+        assertThat(lengths[0], is(1));
+    }
+}
@@ -0,0 +1,121 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderDeflaterBufferCacheTest {
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    @Test
+    public void sizeClassLengthOfSmallLengthIsMinLength() {
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(1), is(PngEncoderDeflaterBufferCache.SIZE_CLASS_MIN_LENGTH));
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(1024), is(1024));
+    }
+
+    @Test
+    public void sizeClassLengthIsRoundedUpToEighthOfPowerOfTwo() {
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(1337), is(1408));
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(2048), is(2048));
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(2049), is(2304));
+        assertThat(PngEncoderDeflaterBufferCache.getSizeClassLength(147456), is(147456));
+    }
+
+    @Test
+    public void sizeClassLengthFitsAndWastesAtMostAnEighth() {
+        for (int length = 1025; length < 1 << 20; length += 97) {
+            int sizeClassLength = PngEncoderDeflaterBufferCache.getSizeClassLength(length);
+            assertThat(sizeClassLength, is(greaterThanOrEqualTo(length)));
+            assertThat(sizeClassLength - length, is(lessThanOrEqualTo(length / 8)));
+            assertThat(PngEncoderDeflaterBufferCache.getSizeClassIndex(sizeClassLength), is(PngEncoderDeflaterBufferCache.getSizeClassIndex(length)));
+        }
+    }
+
+    @Test
+    public void borrowFromEmptyCacheIsMiss() {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, IDLE_TIMEOUT_NANOS);
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(1337, cache);
+        cache.borrow(pool, 1337);
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(0L));
+    }
+
+    @Test
+    public void bufferGivenBackIsReusedBySameSizeClass() {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, IDLE_TIMEOUT_NANOS);
+        PngEncoderDeflaterBufferPool pool1 = new PngEncoderDeflaterBufferPool(1337, cache);
+        PngEncoderDeflaterBufferPool pool2 = new PngEncoderDeflaterBufferPool(1400, cache);
+
+        PngEncoderDeflaterBuffer buffer = cache.borrow(pool1, 1337);
+        buffer.length = 42;
+        cache.giveBack(buffer);
+        assertThat(cache.getCachedBytes(), is(1408L));
+
+        PngEncoderDeflaterBuffer reused = cache.borrow(pool2, 1400);
+        assertThat(reused, is(sameInstance(buffer)));
+        assertThat(reused.pool, is(sameInstance(pool2)));
+        assertThat(reused.length, is(0));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getCachedBytes(), is(0L));
+    }
+
+    @Test
+    public void bufferOfOtherSizeClassIsNotReused() {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, IDLE_TIMEOUT_NANOS);
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(1337, cache);
+        cache.giveBack(cache.borrow(pool, 1337));
+        PngEncoderDeflaterBuffer buffer = cache.borrow(pool, 4096);
+        assertThat(buffer.bytes.length, is(4096));
+        assertThat(cache.getMissCount(), is(2L));
+    }
+
+    @Test
+    public void bufferBeyondMaxBytesIsDiscarded() {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(2048, IDLE_TIMEOUT_NANOS);
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(1024, cache);
+        PngEncoderDeflaterBuffer buffer1 = cache.borrow(pool, 1024);
+        PngEncoderDeflaterBuffer buffer2 = cache.borrow(pool, 1024);
+        PngEncoderDeflaterBuffer buffer3 = cache.borrow(pool, 1024);
+        cache.giveBack(buffer1);
+        cache.giveBack(buffer2);
+        cache.giveBack(buffer3);
+        assertThat(cache.getCachedBytes(), is(2048L));
+        assertThat(cache.getDiscardCount(), is(1L));
+    }
+
+    @Test
+    public void idleBuffersAreEvicted() throws InterruptedException {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, TimeUnit.MILLISECONDS.toNanos(1));
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(1024, cache);
+        PngEncoderDeflaterBuffer buffer1 = cache.borrow(pool, 1024);
+        PngEncoderDeflaterBuffer buffer2 = cache.borrow(pool, 2048);
+        cache.giveBack(buffer1);
+        Thread.sleep(10);
+        cache.giveBack(buffer2);
+        assertThat(cache.getEvictionCount(), is(1L));
+        assertThat(cache.getCachedBytes(), is(2048L));
+    }
+
+    @Test
+    public void clearEvictsAll() {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, IDLE_TIMEOUT_NANOS);
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(1024, cache);
+        cache.giveBack(cache.borrow(pool, 1024));
+        cache.giveBack(cache.borrow(pool, 1024));
+        cache.clear();
+        assertThat(cache.getCachedBytes(), is(0L));
+        assertThat(cache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void negativeMaxBytesIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> PngEncoder.setBufferPoolMaxBytes(-1));
+    }
+}
@@ -44,7 +44,21 @@ public class PngEncoderDeflaterBufferPoolTest {
         final PngEncoderDeflaterBufferPool bufferPool = new PngEncoderDeflaterBufferPool(1337);
         PngEncoderDeflaterBuffer borrowed = bufferPool.borrow();
         final int actual = borrowed.bytes.length;
-        final int expected = 1337;
+        final int expected = PngEncoderDeflaterBufferCache.getSizeClassLength(1337);
         assertThat(actual, is(expected));
     }
+
+    @Test
+    public void releaseHandsBuffersToCache() {
+        final PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(1 << 20, 1_000_000_000L);
+        final PngEncoderDeflaterBufferPool bufferPool = new PngEncoderDeflaterBufferPool(1337, cache);
+        bufferPool.borrow().giveBack();
+        bufferPool.release();
+        assertThat(bufferPool.size(), is(0));
+        assertThat(cache.getCachedBytes(), is((long) PngEncoderDeflaterBufferCache.getSizeClassLength(1337)));
+
+        final PngEncoderDeflaterBufferPool otherBufferPool = new PngEncoderDeflaterBufferPool(1337, cache);
+        otherBufferPool.borrow();
+        assertThat(cache.getHitCount(), is(1L));
+    }
 }
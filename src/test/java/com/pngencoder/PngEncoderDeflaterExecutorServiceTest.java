@@ -3,9 +3,11 @@ package com.pngencoder;
 import org.junit.jupiter.api.Test;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class PngEncoderDeflaterExecutorServiceTest {
     @Test
@@ -14,4 +16,24 @@ public class PngEncoderDeflaterExecutorServiceTest {
         ExecutorService actual = PngEncoderDeflaterExecutorService.getInstance();
         assertThat(actual, is(expected));
     }
+
+    @Test
+    public void getDefaultReturnsInstanceWhenNoDefaultIsSet() {
+        ExecutorService expected = PngEncoderDeflaterExecutorService.getInstance();
+        ExecutorService actual = PngEncoderDeflaterExecutorService.getDefault();
+        assertThat(actual, is(sameInstance(expected)));
+    }
+
+    @Test
+    public void getDefaultReturnsSetDefaultUntilReset() {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            PngEncoderDeflaterExecutorService.setDefault(executorService);
+            assertThat(PngEncoderDeflaterExecutorService.getDefault(), is(sameInstance(executorService)));
+        } finally {
+            PngEncoderDeflaterExecutorService.setDefault(null);
+            executorService.shutdown();
+        }
+        assertThat(PngEncoderDeflaterExecutorService.getDefault(), is(sameInstance(PngEncoderDeflaterExecutorService.getInstance())));
+    }
 }
@@ -6,7 +6,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,10 +19,12 @@ import java.util.zip.InflaterOutputStream;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PngEncoderDeflaterOutputStreamTest {
     private static final int SEGMENT_MAX_LENGTH_ORIGINAL = 64 * 1024;
+    private static final int ROW_BYTE_SIZE = 1000;
 
     private static final BiConsumer<byte[], OutputStream> SINGLE_THREADED_DEFLATER = (bytes, outputStream) -> {
         try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream)) {
@@ -38,6 +42,14 @@ public class PngEncoderDeflaterOutputStreamTest {
         }
     };
 
+    private static final BiConsumer<byte[], OutputStream> MULTI_THREADED_DEFLATER_DICTIONARY_CHAINING = (bytes, outputStream) -> {
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, true)) {
+            deflaterOutputStream.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    };
+
     @Test
     public void deflateSingleThreadedJustFiveBytes() throws Exception {
         byte[] expected = { 1, 2, 3, 4, 5 };
@@ -80,6 +92,120 @@ public class PngEncoderDeflaterOutputStreamTest {
         assertThatBytesIsSameAfterDeflateAndInflateFast(expected, MULTI_THREADED_DEFLATER);
     }
 
+    @Test
+    public void deflateMultiThreadedDictionaryChainingJustFiveBytes() throws Exception {
+        byte[] expected = { 1, 2, 3, 4, 5 };
+        assertThatBytesIsSameAfterDeflateAndInflate(expected, MULTI_THREADED_DEFLATER_DICTIONARY_CHAINING);
+    }
+
+    @Test
+    public void deflateMultiThreadedDictionaryChainingTwoSegmentsToTestSegmentBoundary() throws Exception {
+        byte[] expected = createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 2);
+        assertThatBytesIsSameAfterDeflateAndInflate(expected, MULTI_THREADED_DEFLATER_DICTIONARY_CHAINING);
+    }
+
+    @Test
+    public void deflateMultiThreadedDictionaryChaining300SegmentsToTestThreadSafety() throws Exception {
+        byte[] expected = createRepetitiveBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 300);
+        assertThatBytesIsSameAfterDeflateAndInflateFast(expected, MULTI_THREADED_DEFLATER_DICTIONARY_CHAINING);
+    }
+
+    @Test
+    public void deflateMultiThreadedDictionaryChainingIsSmallerForRepetitiveBytes() {
+        byte[] bytes = createRepetitiveBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 20);
+
+        ByteArrayOutputStream withoutChaining = new ByteArrayOutputStream();
+        MULTI_THREADED_DEFLATER.accept(bytes, withoutChaining);
+        ByteArrayOutputStream withChaining = new ByteArrayOutputStream();
+        MULTI_THREADED_DEFLATER_DICTIONARY_CHAINING.accept(bytes, withChaining);
+
+        assertThat(withChaining.size(), is(lessThan(withoutChaining.size())));
+    }
+
+    @Test
+    public void writeSegmentProducedRowsInflateToTheRows() throws Exception {
+        byte[] expected = createRandomBytes(ROW_BYTE_SIZE * 333);
+        assertThatBytesIsSameAfterDeflateAndInflate(expected, (bytes, outputStream) -> writeProducedSegments(bytes, outputStream, false));
+    }
+
+    @Test
+    public void writeSegmentProducedRowsDictionaryChainingInflateToTheRows() throws Exception {
+        byte[] expected = createRepetitiveBytes(ROW_BYTE_SIZE * 333);
+        assertThatBytesIsSameAfterDeflateAndInflate(expected, (bytes, outputStream) -> writeProducedSegments(bytes, outputStream, true));
+    }
+
+    @Test
+    public void writeSegmentProducedRowsDictionaryChainingIsSmallerForRepetitiveBytes() {
+        byte[] bytes = createRepetitiveBytes(ROW_BYTE_SIZE * 1300);
+
+        ByteArrayOutputStream withoutChaining = new ByteArrayOutputStream();
+        writeProducedSegments(bytes, withoutChaining, false);
+        ByteArrayOutputStream withChaining = new ByteArrayOutputStream();
+        writeProducedSegments(bytes, withChaining, true);
+
+        assertThat(withChaining.size(), is(lessThan(withoutChaining.size())));
+    }
+
+    @Test
+    public void writeSegmentThrowsIllegalStateExceptionAfterPartialWrite() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL)) {
+            deflaterOutputStream.write(1);
+            assertThrows(IllegalStateException.class,
+                    () -> deflaterOutputStream.writeSegment(new ArrayProducer(new byte[ROW_BYTE_SIZE]), 0, 1, true));
+        }
+    }
+
+    @Test
+    public void leasedRowsInflateToTheRows() throws Exception {
+        byte[] expected = createRandomBytes(ROW_BYTE_SIZE * 333);
+        assertThatBytesIsSameAfterDeflateAndInflate(expected, PngEncoderDeflaterOutputStreamTest::writeLeasedRows);
+    }
+
+    @Test
+    public void leasedRowsKeepSegmentsRowAligned() throws IOException {
+        byte[] bytes = createRandomBytes(ROW_BYTE_SIZE * 333);
+        int rowsPerSegment = SEGMENT_MAX_LENGTH_ORIGINAL / ROW_BYTE_SIZE;
+        int segmentCount = writeLeasedRows(bytes, new ByteArrayOutputStream());
+        assertThat(segmentCount, is((333 + rowsPerSegment - 1) / rowsPerSegment));
+    }
+
+    @Test
+    public void writeAndLeaseThrowIllegalStateExceptionWhileLeased() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL)) {
+            deflaterOutputStream.lease(ROW_BYTE_SIZE);
+            assertThrows(IllegalStateException.class, () -> deflaterOutputStream.write(1));
+            assertThrows(IllegalStateException.class, () -> deflaterOutputStream.lease(ROW_BYTE_SIZE));
+            assertThrows(IllegalArgumentException.class, () -> deflaterOutputStream.commit(ROW_BYTE_SIZE + 1));
+            deflaterOutputStream.commit(ROW_BYTE_SIZE);
+            assertThrows(IllegalStateException.class, () -> deflaterOutputStream.commit(0));
+        }
+    }
+
+    @Test
+    public void leaseThrowsIllegalArgumentExceptionBeyondSegment() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL)) {
+            assertThrows(IllegalArgumentException.class, () -> deflaterOutputStream.lease(SEGMENT_MAX_LENGTH_ORIGINAL + 1));
+        }
+    }
+
+    @Test
+    public void writeThrowsIOExceptionAfterLastSegment() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL)) {
+            deflaterOutputStream.writeSegment(new ArrayProducer(new byte[ROW_BYTE_SIZE]), 0, 1, true);
+            assertThrows(IOException.class, () -> deflaterOutputStream.write(1));
+        }
+    }
+
+    @Test
+    public void getSegmentMaxLengthOriginalRowAlignedIsMultipleOfRowByteSize() {
+        assertThat(PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginalRowAligned(100_000, 3001), is(99_033));
+        assertThat(PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginalRowAligned(100_000, 200_001), is(200_001));
+    }
+
     @Test
     public void constructorThrowsIOExceptionOnWritingDeflateHeaderWithRiggedOutputStream() throws IOException {
         RiggedOutputStream riggedOutputStream = new RiggedOutputStream(1);
@@ -126,6 +252,68 @@ public class PngEncoderDeflaterOutputStreamTest {
         pool.assertThatGivenIsBorrowed();
     }
 
+    @Test
+    public void assertiveBufferPoolManyBytesDictionaryChaining() throws IOException {
+        PngEncoderDeflaterBufferPoolAssertive pool = new PngEncoderDeflaterBufferPoolAssertive(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(SEGMENT_MAX_LENGTH_ORIGINAL));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, pool, true);
+        byte[] bytesToWrite = createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 5);
+        deflaterOutputStream.write(bytesToWrite);
+        deflaterOutputStream.finish();
+        pool.assertThatGivenIsBorrowed();
+    }
+
+    @Test
+    public void assertiveBufferPoolProducedSegments() throws IOException {
+        assertThatProducedSegmentsGiveBackBorrowed(false);
+    }
+
+    @Test
+    public void assertiveBufferPoolProducedSegmentsDictionaryChaining() throws IOException {
+        assertThatProducedSegmentsGiveBackBorrowed(true);
+    }
+
+    @Test
+    public void producedSegmentsDictionaryChainingReuseCachedBuffers() throws IOException {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(Long.MAX_VALUE, Long.MAX_VALUE);
+        byte[] bytes = createRandomBytes(ROW_BYTE_SIZE * 500);
+        for (int i = 0; i < 3; i++) {
+            long missCountBefore = cache.getMissCount();
+            PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(SEGMENT_MAX_LENGTH_ORIGINAL), cache);
+            PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(new ByteArrayOutputStream(), PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, pool, true);
+            deflaterOutputStream.writeSegments(new ArrayProducer(bytes), bytes.length / ROW_BYTE_SIZE);
+            deflaterOutputStream.finish();
+            if (i > 0) {
+                assertThat(cache.getMissCount(), is(missCountBefore));
+            }
+        }
+    }
+
+    @Test
+    public void abortDropsQueuedSegmentsAndReleasesPool() throws IOException {
+        PngEncoderDeflaterBufferCache cache = new PngEncoderDeflaterBufferCache(Long.MAX_VALUE, Long.MAX_VALUE);
+        PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(SEGMENT_MAX_LENGTH_ORIGINAL), cache);
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        // Admitted segments are only started by the test.
+        List<Runnable> admitted = new ArrayList<>();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, pool, false,
+                admitted::add, scheduler.register(1), new PngEncoderScratch(), PngEncoderCompressor.deflater(), 8, null, null);
+        deflaterOutputStream.write(createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 3 + 10));
+        assertThat(deflaterOutputStream.getSegmentCount(), is(3));
+        assertThat(admitted.size(), is(1));
+
+        deflaterOutputStream.abort();
+        assertThat(cache.getCachedBytes(), is(greaterThan(0L)));
+        admitted.get(0).run();
+        assertThat(admitted.size(), is(1));
+        assertThat(scheduler.getInFlightSegments(), is(0));
+
+        // Nothing but the deflate header, not even after finish.
+        deflaterOutputStream.finish();
+        assertThat(outputStream.size(), is(2));
+    }
+
     @Test
     public void segmentMaxLengthDictionaryIsExactly32k() {
         assertThat(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_DICTIONARY, is(32 * 1024));
@@ -144,6 +332,19 @@ public class PngEncoderDeflaterOutputStreamTest {
         assertThat(segmentMaxLengthDeflated, is(greaterThan(segmentMaxLengthOriginal)));
     }
 
+    @Test
+    public void segmentMaxLengthOriginalMinDictionaryChainingGreaterThanSegmentMaxLengthDictionary() {
+        assertThat(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN_DICTIONARY_CHAINING, is(greaterThan(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_DICTIONARY)));
+    }
+
+    @Test
+    public void getSegmentMaxLengthOriginalRespectsMinDictionaryChaining() {
+        final int actual = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(1, true);
+        final int expected = PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN_DICTIONARY_CHAINING;
+
+        assertThat(actual, is(expected));
+    }
+
     @Test
     public void getSegmentMaxLengthOriginalRespectsMin() {
         final int actual = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(1);
@@ -160,6 +361,48 @@ public class PngEncoderDeflaterOutputStreamTest {
         assertThat(actual, is(expected));
     }
 
+    private static void writeProducedSegments(byte[] bytes, OutputStream outputStream, boolean dictionaryChainingEnabled) {
+        ArrayProducer producer = new ArrayProducer(bytes);
+        int rowCount = bytes.length / ROW_BYTE_SIZE;
+        int rowsPerSegment = SEGMENT_MAX_LENGTH_ORIGINAL / ROW_BYTE_SIZE;
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, dictionaryChainingEnabled)) {
+            for (int y = 0; y < rowCount; y += rowsPerSegment) {
+                int count = Math.min(rowsPerSegment, rowCount - y);
+                deflaterOutputStream.writeSegment(producer, y, count, y + count == rowCount);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void assertThatProducedSegmentsGiveBackBorrowed(boolean dictionaryChainingEnabled) throws IOException {
+        PngEncoderDeflaterBufferPoolAssertive pool = new PngEncoderDeflaterBufferPoolAssertive(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(SEGMENT_MAX_LENGTH_ORIGINAL));
+        byte[] bytes = createRandomBytes(ROW_BYTE_SIZE * 500);
+        PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(new ByteArrayOutputStream(), PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL, pool, dictionaryChainingEnabled);
+        deflaterOutputStream.writeSegments(new ArrayProducer(bytes), bytes.length / ROW_BYTE_SIZE);
+        deflaterOutputStream.finish();
+        pool.assertThatGivenIsBorrowed();
+    }
+
+    /**
+     * @return the number of segments
+     */
+    private static int writeLeasedRows(byte[] bytes, OutputStream outputStream) {
+        // Segments that do not end on a row, which leasing whole rows must not fill up.
+        int segmentMaxLengthOriginal = SEGMENT_MAX_LENGTH_ORIGINAL + ROW_BYTE_SIZE / 2;
+        try (PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, segmentMaxLengthOriginal)) {
+            for (int offset = 0; offset < bytes.length; offset += ROW_BYTE_SIZE) {
+                PngEncoderDeflaterBuffer buffer = deflaterOutputStream.lease(ROW_BYTE_SIZE);
+                System.arraycopy(bytes, offset, buffer.bytes, buffer.length, ROW_BYTE_SIZE);
+                deflaterOutputStream.commit(ROW_BYTE_SIZE);
+            }
+            deflaterOutputStream.finish();
+            return deflaterOutputStream.getSegmentCount();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private static byte[] createRandomBytes(int length) {
         Random random = new Random(12345);
         byte[] randomBytes = new byte[length];
@@ -167,6 +410,17 @@ public class PngEncoderDeflaterOutputStreamTest {
         return randomBytes;
     }
 
+    private static byte[] createRepetitiveBytes(int length) {
+        Random random = new Random(12345);
+        byte[] pattern = new byte[4096];
+        random.nextBytes(pattern);
+        byte[] repetitiveBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            repetitiveBytes[i] = pattern[i % pattern.length];
+        }
+        return repetitiveBytes;
+    }
+
     private static void assertThatBytesIsSameAfterDeflateAndInflate(byte[] expected, BiConsumer<byte[], OutputStream> deflater) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         deflater.accept(expected, outputStream);
@@ -254,4 +508,22 @@ public class PngEncoderDeflaterOutputStreamTest {
             throw new RuntimeException("This exception was generated for the purpose of testing.");
         }
     }
+
+    private static class ArrayProducer extends PngEncoderDeflaterSegmentProducer {
+        private final byte[] bytes;
+
+        ArrayProducer(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int getRowByteSize() {
+            return ROW_BYTE_SIZE;
+        }
+
+        @Override
+        void produce(byte[] target, int yStart, int rowCount, PngEncoderScratch scratch) {
+            System.arraycopy(bytes, yStart * ROW_BYTE_SIZE, target, 0, rowCount * ROW_BYTE_SIZE);
+        }
+    }
 }
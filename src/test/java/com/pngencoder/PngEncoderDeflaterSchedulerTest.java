@@ -0,0 +1,205 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderDeflaterSchedulerTest {
+    private ExecutorService executorService;
+    private List<String> executionOrder;
+
+    @BeforeEach
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(4);
+        executionOrder = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void inFlightSegmentsAreCapped() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(2);
+        PngEncoderDeflaterScheduler.Client client = scheduler.register(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<PngEncoderDeflaterSegmentTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            tasks.add(execute(client, blockingTask("task" + i, latch)));
+        }
+
+        assertThat(scheduler.getInFlightSegments(), is(2));
+        assertThat(client.getDispatchedTaskCount(), is(2));
+
+        latch.countDown();
+        joinAll(tasks);
+        assertThat(scheduler.getInFlightSegments(), is(0));
+        assertThat(client.getDispatchedTaskCount(), is(6));
+    }
+
+    @Test
+    public void clientsAreServedRoundRobin() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        PngEncoderDeflaterScheduler.Client a = scheduler.register(1);
+        PngEncoderDeflaterScheduler.Client b = scheduler.register(1);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        List<PngEncoderDeflaterSegmentTask> tasks = new ArrayList<>();
+        tasks.add(execute(a, blockingTask("a0", latch)));
+        tasks.add(execute(a, recordingTask("a1")));
+        tasks.add(execute(a, recordingTask("a2")));
+        tasks.add(execute(b, recordingTask("b0")));
+        latch.countDown();
+        joinAll(tasks);
+
+        assertThat(executionOrder, is(Arrays.asList("a0", "a1", "b0", "a2")));
+    }
+
+    @Test
+    public void clientsAreServedAccordingToWeight() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        PngEncoderDeflaterScheduler.Client a = scheduler.register(2);
+        PngEncoderDeflaterScheduler.Client b = scheduler.register(1);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        List<PngEncoderDeflaterSegmentTask> tasks = new ArrayList<>();
+        tasks.add(execute(a, blockingTask("a0", latch)));
+        for (int i = 1; i < 5; i++) {
+            tasks.add(execute(a, recordingTask("a" + i)));
+        }
+        for (int i = 0; i < 3; i++) {
+            tasks.add(execute(b, recordingTask("b" + i)));
+        }
+        latch.countDown();
+        joinAll(tasks);
+
+        assertThat(executionOrder, is(Arrays.asList("a0", "a1", "a2", "b0", "a3", "a4", "b1", "b2")));
+    }
+
+    @Test
+    public void queueingDelayIsRecorded() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        PngEncoderDeflaterScheduler.Client blocker = scheduler.register(1);
+        PngEncoderDeflaterScheduler.Client waiting = scheduler.register(1);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        PngEncoderDeflaterSegmentTask blocked = execute(blocker, blockingTask("blocker", latch));
+        PngEncoderDeflaterSegmentTask queued = execute(waiting, recordingTask("waiting"));
+        sleep(20);
+        latch.countDown();
+        blocked.join();
+        queued.join();
+
+        assertThat(waiting.getMaxQueueingDelayNanos(), is(greaterThan(0L)));
+        assertThat(waiting.getTotalQueueingDelayNanos(), is(waiting.getMaxQueueingDelayNanos()));
+    }
+
+    @Test
+    public void failingTaskCompletesExceptionallyAndReleasesSlot() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        PngEncoderDeflaterScheduler.Client client = scheduler.register(1);
+        PngEncoderDeflaterSegmentTask failing = execute(client, () -> {
+            throw new IllegalStateException("This exception was generated for the purpose of testing.");
+        });
+        PngEncoderDeflaterSegmentTask next = execute(client, recordingTask("next"));
+
+        IOException e = assertThrows(IOException.class, failing::join);
+        assertThat(e.getCause(), is(instanceOf(IllegalStateException.class)));
+        next.join();
+        assertThat(executionOrder, is(Collections.singletonList("next")));
+        assertThat(scheduler.getInFlightSegments(), is(0));
+    }
+
+    @Test
+    public void cancelDropsPendingTasks() throws IOException {
+        PngEncoderDeflaterScheduler scheduler = new PngEncoderDeflaterScheduler(1);
+        PngEncoderDeflaterScheduler.Client a = scheduler.register(1);
+        PngEncoderDeflaterScheduler.Client b = scheduler.register(1);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        PngEncoderDeflaterSegmentTask running = execute(a, blockingTask("a0", latch));
+        PngEncoderDeflaterSegmentTask cancelled = execute(a, recordingTask("a1"));
+        PngEncoderDeflaterSegmentTask other = execute(b, recordingTask("b0"));
+        a.cancel();
+        latch.countDown();
+        running.join();
+        other.join();
+
+        IOException e = assertThrows(IOException.class, cancelled::join);
+        assertThat(e.getCause(), is(instanceOf(CancellationException.class)));
+        assertThat(executionOrder, is(Arrays.asList("a0", "b0")));
+        assertThat(a.getDispatchedTaskCount(), is(1));
+        assertThat(scheduler.getInFlightSegments(), is(0));
+    }
+
+    @Test
+    public void negativeWeightIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withFairShareSchedulingWeight(-1));
+    }
+
+    private PngEncoderDeflaterSegmentTask execute(PngEncoderDeflaterScheduler.Client client, Runnable action) {
+        PngEncoderDeflaterSegmentTask task = new ActionSegmentTask(action);
+        client.execute(task, executorService);
+        return task;
+    }
+
+    private Runnable recordingTask(String name) {
+        return () -> executionOrder.add(name);
+    }
+
+    private Runnable blockingTask(String name, CountDownLatch latch) {
+        return () -> {
+            executionOrder.add(name);
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private static void joinAll(List<PngEncoderDeflaterSegmentTask> tasks) throws IOException {
+        for (PngEncoderDeflaterSegmentTask task : tasks) {
+            task.join();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ActionSegmentTask extends PngEncoderDeflaterSegmentTask {
+        private final Runnable action;
+
+        ActionSegmentTask(Runnable action) {
+            this.action = action;
+        }
+
+        @Override
+        public PngEncoderDeflaterSegmentResult get() {
+            action.run();
+            return null;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.util.zip.Deflater;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.sameInstance;
 
@@ -24,4 +25,14 @@ public class PngEncoderDeflaterThreadLocalDeflaterTest {
             assertThat(deflater, is(notNullValue(Deflater.class)));
         }
     }
+
+    @Test
+    public void differentStrategyReturnsDifferentInstance() {
+        final Deflater defaultStrategy = PngEncoderDeflaterThreadLocalDeflater.getInstance(1, Deflater.DEFAULT_STRATEGY);
+        final Deflater filtered = PngEncoderDeflaterThreadLocalDeflater.getInstance(1, Deflater.FILTERED);
+        final Deflater huffmanOnly = PngEncoderDeflaterThreadLocalDeflater.getInstance(1, Deflater.HUFFMAN_ONLY);
+        assertThat(filtered, is(not(sameInstance(defaultStrategy))));
+        assertThat(huffmanOnly, is(not(sameInstance(filtered))));
+        assertThat(PngEncoderDeflaterThreadLocalDeflater.getInstance(1), is(sameInstance(defaultStrategy)));
+    }
 }
@@ -0,0 +1,159 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderFilterSelectorTest {
+    private static final int BPP = 4;
+    private static final int ROW_LENGTH = 1 + 4 * 300;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4})
+    public void fixedFilterMatchesAllFilters(int filterType) {
+        final byte[] currRow = randomRow(1);
+        final byte[] prevRow = randomRow(2);
+        final byte[][] expected = new byte[5][ROW_LENGTH];
+        PngEncoderPredictorKernel.scalar().filter(currRow, prevRow, BPP, expected[1], expected[2], expected[3], expected[4], new long[PngEncoderPredictorKernel.SUM_COUNT]);
+        expected[filterType][0] = (byte) filterType;
+
+        final byte[] actual = createSelector(PngEncoderFilterStrategy.values()[filterType]).select(currRow, prevRow);
+        assertThat(actual, is(expected[filterType]));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PngEncoderFilterStrategy.class, names = {"SUB", "PAETH", "SAMPLED", "MIN_SUM"})
+    public void selectIntoTargetMatchesSelect(PngEncoderFilterStrategy strategy) {
+        final PngEncoderFilterSelector selector = createSelector(strategy);
+        final PngEncoderFilterSelector intoTarget = createSelector(strategy);
+        final int rowCount = 2 * PngEncoderFilterSelector.Sampled.BAND_ROWS + 3;
+        final byte[] target = new byte[7 + rowCount * ROW_LENGTH];
+        final byte[] expected = new byte[target.length];
+        byte[] prevRow = new byte[ROW_LENGTH];
+        for (int y = 0; y < rowCount; y++) {
+            // Alternates between rows for Up, Sub and random rows, so that the sampled filter drifts.
+            final byte[] currRow = y % 3 == 0 ? Arrays.copyOf(prevRow, ROW_LENGTH) : y % 3 == 1 ? repeatedPixelRow() : randomRow(y);
+            final int offset = 7 + y * ROW_LENGTH;
+            System.arraycopy(selector.select(currRow, prevRow), 0, expected, offset, ROW_LENGTH);
+            intoTarget.select(currRow, prevRow, target, offset);
+            prevRow = currRow;
+        }
+        assertThat(target, is(expected));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PngEncoderFilterStrategy.class, names = {"SAMPLED", "MIN_SUM", "ENTROPY", "TRIAL_DEFLATE"})
+    public void adaptiveChoosesUpForRepeatedRow(PngEncoderFilterStrategy strategy) {
+        final byte[] row = randomRow(3);
+        assertThat(createSelector(strategy).select(row, Arrays.copyOf(row, row.length))[0], is((byte) 2));
+    }
+
+    @ParameterizedTest
+    // The repeated pixel compresses as well without a filter, so trial compression may choose either.
+    @EnumSource(value = PngEncoderFilterStrategy.class, names = {"SAMPLED", "MIN_SUM", "ENTROPY"})
+    public void adaptiveChoosesSubForRepeatedPixel(PngEncoderFilterStrategy strategy) {
+        assertThat(createSelector(strategy).select(repeatedPixelRow(), randomRow(4))[0], is((byte) 1));
+    }
+
+    @Test
+    public void entropyPrefersFewValuesOverSmallValues() {
+        // The row above is 0, so Up and None are the same. Sub alternates between two large values, which Huffman
+        // codes with a bit each, while None has many different small values.
+        final byte[] row = new byte[ROW_LENGTH];
+        final Random random = new Random(5);
+        int value = 0;
+        for (int i = 1; i < ROW_LENGTH; i++) {
+            if (i > BPP) {
+                value = (row[i - BPP] & 0xFF) + ((i / BPP) % 2 == 0 ? 90 : -90);
+            } else {
+                value = 100 + random.nextInt(10);
+            }
+            row[i] = (byte) value;
+        }
+        assertThat(createSelector(PngEncoderFilterStrategy.ENTROPY).select(row, new byte[ROW_LENGTH])[0], is((byte) 1));
+    }
+
+    @Test
+    public void sampledKeepsFilterWithinBand() {
+        final PngEncoderFilterSelector selector = createSelector(PngEncoderFilterStrategy.SAMPLED);
+        final byte[] row = randomRow(6);
+        assertThat(selector.select(row, Arrays.copyOf(row, row.length))[0], is((byte) 2));
+
+        // Sub would be better, but Up is still close to what it was, so the filter is not evaluated again.
+        final byte[] repeatedPixel = repeatedPixelRow();
+        final byte[] almostRepeatedPixel = Arrays.copyOf(repeatedPixel, ROW_LENGTH);
+        almostRepeatedPixel[ROW_LENGTH / 2] += 12;
+        for (int i = 0; i < PngEncoderFilterSelector.Sampled.BAND_ROWS; i++) {
+            assertThat(selector.select(repeatedPixel, almostRepeatedPixel)[0], is((byte) 2));
+        }
+        // A new band evaluates again.
+        assertThat(selector.select(repeatedPixel, almostRepeatedPixel)[0], is((byte) 1));
+        assertThat(createSelector(PngEncoderFilterStrategy.MIN_SUM).select(repeatedPixel, almostRepeatedPixel)[0], is((byte) 1));
+    }
+
+    @Test
+    public void sampledEvaluatesAgainOnDrift() {
+        final PngEncoderFilterSelector selector = createSelector(PngEncoderFilterStrategy.SAMPLED);
+        final byte[] row = randomRow(8);
+        assertThat(selector.select(row, Arrays.copyOf(row, row.length))[0], is((byte) 2));
+        assertThat(selector.select(repeatedPixelRow(), row)[0], is((byte) 1));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PngEncoderFilterStrategy.class, names = {"SAMPLED", "MIN_SUM"})
+    public void sixteenBitWeightsHighByte(PngEncoderFilterStrategy strategy) {
+        // Two 16 bit samples per pixel. The high byte goes up by one per pixel and the low byte is 0, while the row
+        // above has the same high bytes and low bytes of 100 and 0 by turns, for which Paeth is no better than Up. Sub
+        // has the smallest bytes, but is off by 256 per sample.
+        final byte[] currRow = new byte[ROW_LENGTH];
+        final byte[] prevRow = new byte[ROW_LENGTH];
+        for (int i = 1; i < ROW_LENGTH; i += 2) {
+            currRow[i] = (byte) (i / BPP);
+            prevRow[i] = currRow[i];
+            prevRow[i + 1] = (byte) ((i / BPP) % 2 == 0 ? 100 : 0);
+        }
+        assertThat(createSelector(strategy, 8).select(currRow, prevRow)[0], is((byte) 1));
+        assertThat(createSelector(strategy, 16).select(currRow, prevRow)[0], is((byte) 2));
+    }
+
+    @Test
+    public void sumOfSamples() {
+        final byte[] row = {2, 0x01, (byte) 0xFF, (byte) 0xFF, 0x01};
+        assertThat(PngEncoderFilterSelector.sumOfSamples(row, 0), is(0x1FFL + 0xFF01L));
+        assertThat(PngEncoderFilterSelector.sumOfSamples(row, 2), is(256L + 1 + 256 + 1));
+    }
+
+    private static PngEncoderFilterSelector createSelector(PngEncoderFilterStrategy strategy) {
+        return createSelector(strategy, 8);
+    }
+
+    private static PngEncoderFilterSelector createSelector(PngEncoderFilterStrategy strategy, int bitsPerChannel) {
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = new PngEncoderScanlineUtil.EncodingMetaInfo();
+        metaInfo.bitsPerChannel = bitsPerChannel;
+        metaInfo.bytesPerPixel = BPP;
+        metaInfo.rowByteSize = ROW_LENGTH;
+        return PngEncoderFilterSelector.create(strategy, 6, metaInfo, new PngEncoderScratch());
+    }
+
+    private static byte[] repeatedPixelRow() {
+        final byte[] row = new byte[ROW_LENGTH];
+        for (int i = 1; i < ROW_LENGTH; i++) {
+            row[i] = (byte) (i % BPP + 1);
+        }
+        return row;
+    }
+
+    private static byte[] randomRow(long seed) {
+        final byte[] row = new byte[ROW_LENGTH];
+        new Random(seed).nextBytes(row);
+        row[0] = 0;
+        return row;
+    }
+}
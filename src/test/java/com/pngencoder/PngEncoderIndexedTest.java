@@ -0,0 +1,153 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PngEncoderIndexedTest {
+    private static final int SIDE = 64;
+
+    @Test
+    public void encodeImageIndexesColorsInOrderOfAppearance() throws IOException {
+        final int[] palette = createPalette(256);
+        final BufferedImage bufferedImage = createImage(palette, 256);
+
+        final PngEncoderIndexed.IndexedEncoderResult result = encodeImage(bufferedImage);
+        assertThat(result, is(notNullValue()));
+        for (int i = 0; i < palette.length; i++) {
+            final int rgb = ((result.colorTable[i * 3] & 0xFF) << 16) | ((result.colorTable[i * 3 + 1] & 0xFF) << 8) | (result.colorTable[i * 3 + 2] & 0xFF);
+            assertThat(rgb, is(palette[i] & 0xFFFFFF));
+        }
+
+        final byte[] rows = streamRows(result.rows, 0, SIDE, SIDE);
+        for (int y = 0; y < SIDE; y++) {
+            for (int x = 0; x < SIDE; x++) {
+                final int index = rows[y * (SIDE + 1) + 1 + x] & 0xFF;
+                assertThat(palette[index], is(bufferedImage.getRGB(x, y)));
+            }
+        }
+    }
+
+    @Test
+    public void encodeImageReturnsNullForMoreThan256Colors() throws IOException {
+        assertThat(encodeImage(createImage(createPalette(257), 257)), is(nullValue()));
+    }
+
+    @Test
+    public void scanColorsInBandsKeepsOrderOfAppearance() throws IOException {
+        final int[] palette = createPalette(200);
+        final BufferedImage bufferedImage = createBandedImage(palette, 1024);
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            final PngEncoderIndexed.ColorTable table = PngEncoderIndexed.scanColors(bufferedImage, false, executorService, 4);
+            assertThat(table, is(notNullValue()));
+            assertThat(table.usedColors, is(palette.length));
+            for (int i = 0; i < palette.length; i++) {
+                assertThat(table.colorTable[i], is(palette[i]));
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void rowsCanBeStreamedInAnyRange() throws IOException {
+        final int[] palette = createPalette(200);
+        final BufferedImage bufferedImage = createBandedImage(palette, 1024);
+        final PngEncoderIndexed.IndexedEncoderResult result = encodeImage(bufferedImage);
+        assertThat(result, is(notNullValue()));
+
+        final byte[] rows = streamRows(result.rows, 500, 300, 1024);
+        for (int y = 0; y < 300; y++) {
+            assertThat(rows[y * 1025], is((byte) 0));
+            assertThat(rows[y * 1025 + 1 + y], is((byte) ((500 + y) * palette.length / 1024)));
+        }
+    }
+
+    @Test
+    public void scanColorsInBandsReturnsNullForMoreThan256ColorsTogether() throws IOException {
+        // Every band has less than 256 colors, but not all of them together.
+        final BufferedImage bufferedImage = createBandedImage(createPalette(300), 1024);
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            assertThat(PngEncoderIndexed.scanColors(bufferedImage, false, executorService, 4), is(nullValue()));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void scanColorsSampledRowsRejectManyColorsWithoutScanningEveryRow() throws IOException {
+        final BufferedImage bufferedImage = createBandedImage(createPalette(300), 1024);
+        final AtomicInteger tasks = new AtomicInteger();
+        final Executor countingExecutor = task -> {
+            tasks.incrementAndGet();
+            task.run();
+        };
+        // The first sampled row already has 300 colors.
+        for (int x = 0; x < 300; x++) {
+            bufferedImage.setRGB(x, 0, 0xFF000000 | (x << 8));
+        }
+        assertThat(PngEncoderIndexed.scanColors(bufferedImage, false, countingExecutor, 4), is(nullValue()));
+        assertThat(tasks.get(), is(0));
+    }
+
+    private static PngEncoderIndexed.IndexedEncoderResult encodeImage(BufferedImage bufferedImage) throws IOException {
+        return PngEncoderIndexed.encodeImage(bufferedImage, PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage));
+    }
+
+    private static byte[] streamRows(PngEncoderRows rows, int yStart, int height, int width) throws IOException {
+        final PngEncoderScanlineUtil.ByteBufferPNGLineConsumer consumer = new PngEncoderScanlineUtil.ByteBufferPNGLineConsumer(height * (width + 1));
+        rows.stream(yStart, height, consumer, new PngEncoderScratch());
+        return consumer.bytes;
+    }
+
+    /**
+     * @return distinct opaque colors that differ only in the low bits, to have colliding hashes
+     */
+    private static int[] createPalette(int colors) {
+        final int[] palette = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            palette[i] = 0xFF000000 | (i << 4) | (i >> 4);
+        }
+        return palette;
+    }
+
+    /**
+     * @return an image with the colors of the palette in order, spread over its rows
+     */
+    private static BufferedImage createBandedImage(int[] palette, int side) {
+        final BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < side; y++) {
+            final int color = palette[y * palette.length / side];
+            for (int x = 0; x < side; x++) {
+                bufferedImage.setRGB(x, y, color);
+            }
+        }
+        return bufferedImage;
+    }
+
+    /**
+     * @return an image with the first colors of the palette in order, then random colors of the palette
+     */
+    private static BufferedImage createImage(int[] palette, int colors) {
+        final BufferedImage bufferedImage = new BufferedImage(SIDE, SIDE, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(colors);
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            final int color = i < colors ? palette[i] : palette[random.nextInt(colors)];
+            bufferedImage.setRGB(i % SIDE, i / SIDE, color);
+        }
+        return bufferedImage;
+    }
+}
@@ -0,0 +1,52 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderPackedRowsTest {
+    @Test
+    public void packPutsTheLeftmostPixelIntoTheHighBits() {
+        final byte[] row = {0, 1, 0, 1, 1, 0, 0, 0, 1, 1, 1};
+        final byte[] packedRow = new byte[PngEncoderPackedRows.getRowByteSize(10, 1)];
+        PngEncoderPackedRows.pack(row, packedRow, 10, 1);
+        assertThat(packedRow, is(new byte[]{0, (byte) 0b10110001, (byte) 0b11000000}));
+
+        final byte[] packedRow2 = new byte[PngEncoderPackedRows.getRowByteSize(5, 2)];
+        PngEncoderPackedRows.pack(new byte[]{0, 3, 2, 1, 0, 3}, packedRow2, 5, 2);
+        assertThat(packedRow2, is(new byte[]{0, (byte) 0b11100100, (byte) 0b11000000}));
+
+        final byte[] packedRow4 = new byte[PngEncoderPackedRows.getRowByteSize(3, 4)];
+        PngEncoderPackedRows.pack(new byte[]{0, 15, 1, 10}, packedRow4, 3, 4);
+        assertThat(packedRow4, is(new byte[]{0, (byte) 0xF1, (byte) 0xA0}));
+    }
+
+    @Test
+    public void packMapsTheValues() {
+        final byte[] values = new byte[256];
+        values[85] = 1;
+        values[170] = 2;
+        values[255] = 3;
+        final byte[] packedRow = new byte[PngEncoderPackedRows.getRowByteSize(4, 2)];
+        PngEncoderPackedRows.pack(new byte[]{0, (byte) 255, (byte) 170, 85, 0}, packedRow, 4, 2, values);
+        assertThat(packedRow, is(new byte[]{0, (byte) 0b11100100}));
+    }
+
+    @Test
+    public void getBitDepth() {
+        assertThat(PngEncoderPackedRows.getBitDepth(1), is(1));
+        assertThat(PngEncoderPackedRows.getBitDepth(2), is(1));
+        assertThat(PngEncoderPackedRows.getBitDepth(3), is(2));
+        assertThat(PngEncoderPackedRows.getBitDepth(4), is(2));
+        assertThat(PngEncoderPackedRows.getBitDepth(5), is(4));
+        assertThat(PngEncoderPackedRows.getBitDepth(16), is(4));
+        assertThat(PngEncoderPackedRows.getBitDepth(17), is(8));
+    }
+
+    @Test
+    public void constructorThrowsIllegalArgumentExceptionForByteDepth() {
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoderPackedRows(null, 1, 8, null));
+    }
+}
@@ -0,0 +1,117 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderPredictorKernelTest {
+    private static final int[] ROW_LENGTHS = {1, 2, 3, 5, 8, 9, 17, 33, 64, 65, 100, 257, 1000, 4097, 40001};
+
+    @Test
+    public void kernelIsVectorizedOnJava17() {
+        final String version = System.getProperty("java.specification.version");
+        final boolean java17 = !version.startsWith("1.") && Integer.parseInt(version) >= 17;
+        // The build adds the vector module to the tests on Java 17 and later.
+        assertThat(PngEncoderPredictorKernel.getInstance().isVectorized(), is(java17));
+        assertThat(PngEncoderPredictorKernel.scalar().isVectorized(), is(false));
+    }
+
+    @Test
+    public void paethPredictorMatchesSpecification() {
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                for (int c = 0; c < 256; c++) {
+                    // As written in the PNG specification.
+                    final int p = a + b - c;
+                    final int pa = Math.abs(p - a);
+                    final int pb = Math.abs(p - b);
+                    final int pc = Math.abs(p - c);
+                    final int expected = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    if (PngEncoderPredictorKernel.paethPredictor(a, b, c) != expected) {
+                        assertThat("a " + a + ", b " + b + ", c " + c, PngEncoderPredictorKernel.paethPredictor(a, b, c), is(expected));
+                    }
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 6, 8})
+    public void kernelMatchesScalarOnRandomRows(int bpp) {
+        final Random random = new Random(bpp);
+        for (int length : ROW_LENGTHS) {
+            final byte[] currRow = new byte[length];
+            final byte[] prevRow = new byte[length];
+            random.nextBytes(currRow);
+            random.nextBytes(prevRow);
+            currRow[0] = 0;
+            prevRow[0] = 0;
+            assertSameAsScalar(currRow, prevRow, bpp);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 4})
+    public void kernelMatchesScalarOnExtremeRows(int bpp) {
+        // All 0 and 255 give the largest differences and sums.
+        final Random random = new Random(bpp);
+        for (int length : ROW_LENGTHS) {
+            final byte[] currRow = new byte[length];
+            final byte[] prevRow = new byte[length];
+            for (int i = 1; i < length; i++) {
+                currRow[i] = random.nextBoolean() ? (byte) 0xFF : 0;
+                prevRow[i] = random.nextBoolean() ? (byte) 0xFF : 0;
+            }
+            assertSameAsScalar(currRow, prevRow, bpp);
+
+            final byte[] full = new byte[length];
+            for (int i = 1; i < length; i++) {
+                full[i] = (byte) 0xFF;
+            }
+            assertSameAsScalar(full, new byte[length], bpp);
+            assertSameAsScalar(new byte[length], full, bpp);
+        }
+    }
+
+    private static void assertSameAsScalar(byte[] currRow, byte[] prevRow, int bpp) {
+        final int length = currRow.length;
+        final byte[][] expected = filter(PngEncoderPredictorKernel.scalar(), currRow, prevRow, bpp);
+        final byte[][] actual = filter(PngEncoderPredictorKernel.getInstance(), currRow, prevRow, bpp);
+        for (int i = 0; i < expected.length; i++) {
+            assertThat("length " + length + ", filter " + i, actual[i], is(expected[i]));
+        }
+
+        final long[] sums = new long[PngEncoderPredictorKernel.SUM_COUNT];
+        PngEncoderPredictorKernel.scalar().filter(currRow, prevRow, bpp, new byte[length], new byte[length], new byte[length], new byte[length], sums);
+        for (int filterType = 0; filterType < PngEncoderPredictorKernel.SUM_COUNT; filterType++) {
+            final byte[] row = new byte[length];
+            final long sum = PngEncoderPredictorKernel.getInstance().filter(filterType, currRow, prevRow, bpp, row);
+            assertThat("length " + length + ", single filter " + filterType, sum, is(sums[filterType] - filterType));
+            if (filterType > 0) {
+                assertThat("length " + length + ", single filter " + filterType, row, is(expected[filterType - 1]));
+            }
+        }
+    }
+
+    /**
+     * @return the four filtered rows, followed by the sums as bytes
+     */
+    private static byte[][] filter(PngEncoderPredictorKernel kernel, byte[] currRow, byte[] prevRow, int bpp) {
+        final int length = currRow.length;
+        final byte[][] rows = new byte[5][length];
+        final long[] sums = new long[PngEncoderPredictorKernel.SUM_COUNT];
+        kernel.filter(currRow, prevRow, bpp, rows[0], rows[1], rows[2], rows[3], sums);
+        rows[4] = new byte[sums.length * Long.BYTES];
+        for (int i = 0; i < sums.length; i++) {
+            for (int j = 0; j < Long.BYTES; j++) {
+                rows[4][i * Long.BYTES + j] = (byte) (sums[i] >>> (j * 8));
+            }
+        }
+        return rows;
+    }
+}
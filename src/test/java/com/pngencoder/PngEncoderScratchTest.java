@@ -0,0 +1,58 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PngEncoderScratchTest {
+    @Test
+    public void rowIsReusedForSameLength() {
+        PngEncoderScratch scratch = new PngEncoderScratch();
+        byte[] row = scratch.getRow(PngEncoderScratch.ROW_CURRENT, 1337);
+        assertThat(scratch.getRow(PngEncoderScratch.ROW_CURRENT, 1337), is(sameInstance(row)));
+    }
+
+    @Test
+    public void rowIsReplacedForOtherLength() {
+        PngEncoderScratch scratch = new PngEncoderScratch();
+        scratch.getRow(PngEncoderScratch.ROW_CURRENT, 1337);
+        assertThat(scratch.getRow(PngEncoderScratch.ROW_CURRENT, 42).length, is(42));
+    }
+
+    @Test
+    public void rowsAreDistinct() {
+        PngEncoderScratch scratch = new PngEncoderScratch();
+        byte[] current = scratch.getRow(PngEncoderScratch.ROW_CURRENT, 1337);
+        byte[] previous = scratch.getRow(PngEncoderScratch.ROW_PREVIOUS, 1337);
+        assertThat(previous, is(not(sameInstance(current))));
+    }
+
+    @Test
+    public void threadLocalScratchIsReusedAfterRelease() {
+        PngEncoderScratch scratch = PngEncoderScratch.acquire(true);
+        scratch.release();
+        PngEncoderScratch reacquired = PngEncoderScratch.acquire(true);
+        reacquired.release();
+        assertThat(reacquired, is(sameInstance(scratch)));
+    }
+
+    @Test
+    public void threadLocalScratchIsNotSharedWhileInUse() {
+        PngEncoderScratch scratch = PngEncoderScratch.acquire(true);
+        PngEncoderScratch nested = PngEncoderScratch.acquire(true);
+        nested.release();
+        scratch.release();
+        assertThat(nested, is(not(sameInstance(scratch))));
+    }
+
+    @Test
+    public void segmentTaskIsReusedAfterGiveBack() {
+        PngEncoderScratch scratch = new PngEncoderScratch();
+        PngEncoderDeflaterSegmentTask task = scratch.borrowSegmentTask();
+        scratch.giveBackSegmentTask(task);
+        assertThat(scratch.borrowSegmentTask(), is(sameInstance(task)));
+    }
+}
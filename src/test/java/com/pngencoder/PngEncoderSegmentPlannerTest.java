@@ -0,0 +1,135 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderSegmentPlannerTest {
+    private static final int TOTAL_LENGTH = 64 * 1024 * 1024;
+
+    @Test
+    public void unknownThroughputWithAllThreadsMatchesStaticFormula() {
+        final int threadCount = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS;
+        final int actual = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(TOTAL_LENGTH, threadCount, 0, false);
+        final int expected = Math.max(TOTAL_LENGTH / PngEncoderDeflaterOutputStream.COUNT_MAX_TOTAL_SEGMENTS, PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void segmentCountFollowsParallelism() {
+        final int actual = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(TOTAL_LENGTH, 2, 0, false);
+        assertThat(actual, is(TOTAL_LENGTH / (2 * PngEncoderSegmentPlanner.SEGMENTS_PER_THREAD)));
+    }
+
+    @Test
+    public void minimumLengthWithoutThroughput() {
+        assertThat(PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(1, 64, 0, false), is(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN));
+        assertThat(PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(1, 64, 0, true), is(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN_DICTIONARY_CHAINING));
+    }
+
+    @Test
+    public void fastCompressionGetsLongerSegments() {
+        // 2 ns per byte, so a segment of a millisecond is 500 KB.
+        final int actual = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(TOTAL_LENGTH, 64, 2, false);
+        assertThat(actual, is(500_000));
+    }
+
+    @Test
+    public void slowCompressionKeepsMinimumLength() {
+        final int actual = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(TOTAL_LENGTH, 64, 100, false);
+        assertThat(actual, is(PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN));
+    }
+
+    @Test
+    public void veryFastCompressionIsCapped() {
+        final int actual = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(Integer.MAX_VALUE, 1, 0.001, false);
+        assertThat(actual, is(Integer.MAX_VALUE / PngEncoderSegmentPlanner.SEGMENTS_PER_THREAD));
+        final int actualSmall = PngEncoderSegmentPlanner.getSegmentMaxLengthOriginal(TOTAL_LENGTH, 64, 0.001, false);
+        assertThat(actualSmall, is(PngEncoderSegmentPlanner.SEGMENT_MAX_LENGTH_ORIGINAL_MAX));
+    }
+
+    @Test
+    public void availableParallelismCountsBusyThreads() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            assertThat(PngEncoderSegmentPlanner.getAvailableParallelism(executorService), is(4));
+            for (int i = 0; i < 2; i++) {
+                executorService.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            started.await();
+            assertThat(PngEncoderSegmentPlanner.getAvailableParallelism(executorService), is(2));
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void availableParallelismIsAtLeastOne() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 3; i++) {
+                executorService.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            started.await();
+            assertThat(PngEncoderSegmentPlanner.getAvailableParallelism(executorService), is(1));
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void availableParallelismOfUnknownExecutorIsAllProcessors() {
+        assertThat(PngEncoderSegmentPlanner.getAvailableParallelism(Runnable::run), is(PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS));
+    }
+
+    @Test
+    public void throughputIsAveraged() {
+        final PngEncoderSegmentPlanner.Throughput throughput = new PngEncoderSegmentPlanner.ThroughputModel().get(9, true);
+        assertThat(throughput.getNanosPerByte(), is(0.0));
+
+        throughput.record(PngEncoderSegmentPlanner.ThroughputModel.MIN_MEASURED_LENGTH - 1, 1_000_000);
+        assertThat(throughput.getNanosPerByte(), is(0.0));
+
+        throughput.record(100_000, 1_000_000);
+        assertThat(throughput.getNanosPerByte(), is(closeTo(10, 0.001)));
+        throughput.record(100_000, 5_000_000);
+        assertThat(throughput.getNanosPerByte(), is(closeTo(20, 0.001)));
+    }
+
+    @Test
+    public void throughputIsKeptPerLevelAndPredictor() {
+        final PngEncoderSegmentPlanner.ThroughputModel model = new PngEncoderSegmentPlanner.ThroughputModel();
+        model.get(1, false).record(100_000, 100_000);
+        assertThat(model.get(1, false).getNanosPerByte(), is(greaterThan(0.0)));
+        assertThat(model.get(1, true).getNanosPerByte(), is(0.0));
+        assertThat(model.get(9, false).getNanosPerByte(), is(0.0));
+        assertThat(model.get(-1, false).getNanosPerByte(), is(0.0));
+    }
+}
@@ -0,0 +1,88 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class PngEncoderStoredBlocksTest {
+    private static final int[] LENGTHS = {0, 1, 1000, PngEncoderStoredBlocks.BLOCK_MAX_LENGTH, PngEncoderStoredBlocks.BLOCK_MAX_LENGTH + 1, 300_000};
+
+    @Test
+    public void writeInflatesToTheBytes() throws IOException {
+        for (int length : LENGTHS) {
+            byte[] expected = createRandomBytes(length);
+            byte[] stored = new byte[PngEncoderStoredBlocks.getMaxLength(length)];
+            int storedLength = PngEncoderStoredBlocks.write(expected, 0, length, stored, 0, true);
+            assertThat(storedLength, is(lessThanOrEqualTo(stored.length)));
+
+            assertThat(inflateRaw(stored, storedLength), is(expected));
+        }
+    }
+
+    @Test
+    public void writeSegmentsCanBeConcatenated() throws IOException {
+        byte[] expected = createRandomBytes(200_000);
+        int[] segmentLengths = {70_000, 0, 30_000, 100_000};
+        byte[] stored = new byte[PngEncoderStoredBlocks.getMaxLength(expected.length) * segmentLengths.length];
+        int storedLength = 0;
+        int offset = 0;
+        for (int i = 0; i < segmentLengths.length; i++) {
+            storedLength += PngEncoderStoredBlocks.write(expected, offset, segmentLengths[i], stored, storedLength, i == segmentLengths.length - 1);
+            offset += segmentLengths[i];
+        }
+
+        assertThat(inflateRaw(stored, storedLength), is(expected));
+    }
+
+    @Test
+    public void writeEmptySegmentThatIsNotLastWritesNothing() {
+        assertThat(PngEncoderStoredBlocks.write(new byte[0], 0, 0, new byte[5], 0, false), is(0));
+    }
+
+    @Test
+    public void storedOutputStreamInflatesToTheBytes() throws IOException {
+        for (int length : LENGTHS) {
+            byte[] expected = createRandomBytes(length);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try (PngEncoderStoredOutputStream storedOutputStream = new PngEncoderStoredOutputStream(outputStream, new byte[PngEncoderStoredBlocks.BLOCK_MAX_LENGTH])) {
+                // Both single bytes and arrays
+                if (length > 0) {
+                    storedOutputStream.write(expected[0]);
+                    storedOutputStream.write(expected, 1, length - 1);
+                }
+            }
+
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            try (InflaterOutputStream inflaterOutputStream = new InflaterOutputStream(inflated)) {
+                inflaterOutputStream.write(outputStream.toByteArray());
+            }
+            assertThat(inflated.toByteArray(), is(expected));
+        }
+    }
+
+    private static byte[] inflateRaw(byte[] deflated, int length) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        Inflater inflater = new Inflater(true);
+        try (InflaterOutputStream inflaterOutputStream = new InflaterOutputStream(byteArrayOutputStream, inflater)) {
+            inflaterOutputStream.write(deflated, 0, length);
+        } finally {
+            inflater.end();
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] createRandomBytes(int length) {
+        Random random = new Random(12345);
+        byte[] randomBytes = new byte[length];
+        random.nextBytes(randomBytes);
+        return randomBytes;
+    }
+}
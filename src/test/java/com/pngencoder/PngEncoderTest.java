@@ -2,15 +2,24 @@ package com.pngencoder;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.w3c.dom.Element;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -20,7 +29,10 @@ import javax.imageio.stream.ImageInputStream;
 
 import static com.pngencoder.SubimageEncodingTest.validateImage;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -30,6 +42,8 @@ public class PngEncoderTest {
     private static final int GREEN = 0XFF00FF00;
     private static final int RED = 0xFFFF0000;
     private static final int BLUE = 0xFF0000FF;
+    // The signature, the length and type of the IHDR chunk, the width and the height come before.
+    private static final int IHDR_BIT_DEPTH_OFFSET = 24;
 
     private static final BufferedImage ONE_PIXEL = PngEncoderBufferedImageConverter.createFromIntArgb(
             new int[1], 1, 1);
@@ -194,6 +208,449 @@ public class PngEncoderTest {
         assertThat(actual, is(expected));
     }
 
+    @Test
+    public void testPredictorEncodingMultiThreaded() throws IOException {
+        // Odd sizes, so the segments end up with a varying number of rows.
+        final int width = 1021;
+        final int height = 997;
+        final int[] image = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image[y * width + x] = 0xFF000000 | ((x * 7 + y) & 0xFF) << 16 | ((x ^ y) & 0xFF) << 8 | ((x * y) & 0xFF);
+            }
+        }
+        final BufferedImage bufferedImage = PngEncoderBufferedImageConverter.createFromIntArgb(image, width, height);
+
+        for (boolean dictionaryChainingEnabled : new boolean[]{false, true}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1)
+                    .withPredictorEncoding(true)
+                    .withDictionaryChainingEnabled(dictionaryChainingEnabled)
+                    .toBytes();
+
+            int[] actual = readWithImageIOgetRGB(bytes);
+            assertThat(actual, is(image));
+        }
+    }
+
+    @Test
+    public void testMultiThreadedEncodingEqualsSingleThreadedForImageTypes() throws IOException {
+        PngEncoderBufferedImageType[] types = {
+                PngEncoderBufferedImageType.TYPE_INT_RGB,
+                PngEncoderBufferedImageType.TYPE_INT_ARGB_PRE,
+                PngEncoderBufferedImageType.TYPE_3BYTE_BGR,
+                PngEncoderBufferedImageType.TYPE_4BYTE_ABGR,
+                PngEncoderBufferedImageType.TYPE_USHORT_GRAY,
+        };
+        for (PngEncoderBufferedImageType type : types) {
+            final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(type, 701);
+            PngEncoder pngEncoder = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1);
+
+            int[] expected = toIntArgb(readWithImageIO(pngEncoder.withMultiThreadedCompressionEnabled(false).toBytes()));
+            int[] actual = toIntArgb(readWithImageIO(pngEncoder.withMultiThreadedCompressionEnabled(true).toBytes()));
+            assertThat(type.name(), actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testMultiThreadedEncodingOfFallbackImageTypes() throws IOException {
+        // Converted with getRGB, in several segments.
+        PngEncoderBufferedImageType[] types = {
+                PngEncoderBufferedImageType.TYPE_USHORT_565_RGB,
+                PngEncoderBufferedImageType.TYPE_USHORT_555_RGB,
+                PngEncoderBufferedImageType.TYPE_BYTE_BINARY,
+                PngEncoderBufferedImageType.TYPE_BYTE_INDEXED,
+        };
+        for (PngEncoderBufferedImageType type : types) {
+            final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(type, 2000);
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1)
+                    .withMultiThreadedCompressionEnabled(true)
+                    .toBytes();
+            assertThat(type.name(), toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        }
+    }
+
+    @Test
+    public void testCompressionLevel0StoredBlocks() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+
+        for (boolean multiThreadedCompressionEnabled : new boolean[]{false, true}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(0)
+                    .withMultiThreadedCompressionEnabled(multiThreadedCompressionEnabled)
+                    .toBytes();
+
+            int[] actual = toIntArgb(readWithImageIO(bytes));
+            int[] expected = toIntArgb(bufferedImage);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testFastCompressor() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+
+        for (boolean multiThreadedCompressionEnabled : new boolean[]{false, true}) {
+            for (boolean usePredictorEncoding : new boolean[]{false, true}) {
+                byte[] bytes = new PngEncoder()
+                        .withBufferedImage(bufferedImage)
+                        .withCompressor(PngEncoderCompressor.fast())
+                        .withMultiThreadedCompressionEnabled(multiThreadedCompressionEnabled)
+                        .withPredictorEncoding(usePredictorEncoding)
+                        .toBytes();
+
+                int[] actual = toIntArgb(readWithImageIO(bytes));
+                int[] expected = toIntArgb(bufferedImage);
+                assertThat(actual, is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testFastCompressorWithImage() throws IOException {
+        final BufferedImage bufferedImage = ImageIO
+                .read(Objects.requireNonNull(PngEncoderTest.class.getResourceAsStream("/png-encoder-logo.png")));
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressor(PngEncoderCompressor.fast())
+                .withPredictorEncoding(true)
+                .toBytes();
+
+        int[] actual = toIntArgb(readWithImageIO(bytes));
+        int[] expected = toIntArgb(bufferedImage);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void testDeflateStrategies() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+
+        for (PngEncoderDeflateStrategy deflateStrategy : PngEncoderDeflateStrategy.values()) {
+            for (boolean multiThreadedCompressionEnabled : new boolean[]{false, true}) {
+                byte[] bytes = new PngEncoder()
+                        .withBufferedImage(bufferedImage)
+                        .withCompressionLevel(1)
+                        .withDeflateStrategy(deflateStrategy)
+                        .withMultiThreadedCompressionEnabled(multiThreadedCompressionEnabled)
+                        .withPredictorEncoding(true)
+                        .toBytes();
+
+                int[] actual = toIntArgb(readWithImageIO(bytes));
+                int[] expected = toIntArgb(bufferedImage);
+                assertThat(deflateStrategy.name(), actual, is(expected));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(PngEncoderFilterStrategy.class)
+    public void testFilterStrategies(PngEncoderFilterStrategy filterStrategy) throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.readTestImageResource("png-encoder-logo.png");
+
+        for (boolean multiThreadedCompressionEnabled : new boolean[]{false, true}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1)
+                    .withFilterStrategy(filterStrategy)
+                    .withMultiThreadedCompressionEnabled(multiThreadedCompressionEnabled)
+                    .toBytes();
+
+            int[] actual = toIntArgb(readWithImageIO(bytes));
+            int[] expected = toIntArgb(bufferedImage);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testFilterStrategyNoneIsWithoutPredictorEncoding() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.readTestImageResource("png-encoder-logo.png");
+        final PngEncoder pngEncoder = new PngEncoder().withBufferedImage(bufferedImage).withParallelism(4);
+
+        final PngEncoder none = pngEncoder.withFilterStrategy(PngEncoderFilterStrategy.NONE);
+        assertThat(none.isPredictorEncodingEnabled(), is(true));
+        assertThat(none.toBytes(), is(pngEncoder.withPredictorEncoding(false).toBytes()));
+        assertThat(pngEncoder.withFilterStrategy(PngEncoderFilterStrategy.MIN_SUM).toBytes(), is(pngEncoder.withPredictorEncoding(true).toBytes()));
+    }
+
+    @Test
+    public void testWithFilterStrategyNullThrows() {
+        assertThrows(NullPointerException.class, () -> new PngEncoder().withFilterStrategy(null));
+    }
+
+    @ParameterizedTest
+    @EnumSource(PngEncoderFilterStrategy.class)
+    public void testIndexedFilterStrategies(PngEncoderFilterStrategy indexedFilterStrategy) throws IOException {
+        // Large enough for several segments, with the colors of a heat map.
+        final BufferedImage bufferedImage = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 512; y++) {
+            for (int x = 0; x < 512; x++) {
+                final int level = ((x ^ y) + y / 4) & 0xFF;
+                bufferedImage.setRGB(x, y, level == 0 ? 0 : 0xFF000000 | (level << 16) | ((255 - level) << 8));
+            }
+        }
+
+        for (int parallelism : new int[]{1, 4}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1)
+                    .withTryIndexedEncoding(true)
+                    .withIndexedFilterStrategy(indexedFilterStrategy)
+                    .withParallelism(parallelism)
+                    .toBytes();
+
+            BufferedImage backReadImage = readWithImageIO(bytes);
+            assertThat(backReadImage.getType(), is(BufferedImage.TYPE_BYTE_INDEXED));
+            assertThat(toIntArgb(backReadImage), is(toIntArgb(bufferedImage)));
+        }
+    }
+
+    @Test
+    public void testWithIndexedFilterStrategyNullThrows() {
+        assertThrows(NullPointerException.class, () -> new PngEncoder().withIndexedFilterStrategy(null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4, 8})
+    public void testGrayLevelsArePackedIntoTheirBitDepth(int bitDepth) throws IOException {
+        // Large enough for several segments of packed rows. All levels only occur after the first rows.
+        final int levels = bitDepth == 8 ? 256 : 1 << bitDepth;
+        final int step = bitDepth == 8 ? 1 : 255 / (levels - 1);
+        final BufferedImage bufferedImage = new BufferedImage(2049, 1200, BufferedImage.TYPE_BYTE_GRAY);
+        final int[] expected = new int[2049 * 1200];
+        for (int y = 0; y < 1200; y++) {
+            for (int x = 0; x < 2049; x++) {
+                final int level = y < 300 ? 0 : (x * 7 + y * 3) % levels * step;
+                bufferedImage.getRaster().setSample(x, y, 0, level);
+                expected[y * 2049 + x] = level;
+            }
+        }
+
+        for (int parallelism : new int[]{1, 4}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withParallelism(parallelism)
+                    .toBytes();
+
+            assertThat(bytes[IHDR_BIT_DEPTH_OFFSET], is((byte) bitDepth));
+            // The samples are read as they are, not scaled up to 8 bits.
+            final int[] actual = readWithImageIO(bytes).getRaster().getSamples(0, 0, 2049, 1200, 0, (int[]) null);
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] *= step;
+            }
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 3, 16, 17})
+    public void testFewColorsArePackedIntoTheirBitDepth(int colors) throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(2049, 1200, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 1200; y++) {
+            for (int x = 0; x < 2049; x++) {
+                final int color = (x * 7 + y * 3) % colors;
+                bufferedImage.setRGB(x, y, color == 0 ? 0 : 0xFF000000 | color * 0x0F0D0B);
+            }
+        }
+
+        for (int parallelism : new int[]{1, 4}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withTryIndexedEncoding(true)
+                    .withParallelism(parallelism)
+                    .toBytes();
+
+            assertThat(bytes[IHDR_BIT_DEPTH_OFFSET], is((byte) PngEncoderPackedRows.getBitDepth(colors)));
+            assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        }
+    }
+
+    @Test
+    public void testFallbackStreamsSegmentsOfRows() throws IOException {
+        // Starts in the middle of a byte, so it is converted by getRGB, in several segments.
+        final BufferedImage bufferedImage = new BufferedImage(1003, 600, BufferedImage.TYPE_BYTE_BINARY).getSubimage(3, 0, 1000, 600);
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 1000; x++) {
+                bufferedImage.getRaster().setSample(x, y, 0, (x / 3 + y / 5) % 2);
+            }
+        }
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withParallelism(4)
+                .toBytes();
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4})
+    public void testPackedImagesAreCopiedAsTheyAre(int bitDepth) throws IOException {
+        final int colors = 1 << bitDepth;
+        final byte[] reds = new byte[colors];
+        final byte[] greens = new byte[colors];
+        final byte[] blues = new byte[colors];
+        for (int i = 0; i < colors; i++) {
+            reds[i] = (byte) (i * 255 / (colors - 1));
+            greens[i] = (byte) (255 - i * 10);
+            blues[i] = (byte) (i * 3);
+        }
+        final BufferedImage bufferedImage = new BufferedImage(37, 11, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(bitDepth, colors, reds, greens, blues));
+        for (int y = 0; y < 11; y++) {
+            for (int x = 0; x < 37; x++) {
+                bufferedImage.getRaster().setSample(x, y, 0, (x * 7 + y * 3) % colors);
+            }
+        }
+
+        // The subimage starting in the middle of a byte is read pixel by pixel instead.
+        for (BufferedImage image : new BufferedImage[]{bufferedImage, bufferedImage.getSubimage(8, 2, 20, 5), bufferedImage.getSubimage(3, 2, 20, 5)}) {
+            byte[] bytes = new PngEncoder().withBufferedImage(image).toBytes();
+            assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(image)));
+        }
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).toBytes();
+        assertThat(bytes[IHDR_BIT_DEPTH_OFFSET], is((byte) bitDepth));
+        assertThat(bytes[IHDR_BIT_DEPTH_OFFSET + 1], is(PngEncoderLogic.IHDR_COLOR_TYPE_INDEXED));
+    }
+
+    @Test
+    public void testOptimizationEffort() throws IOException {
+        final BufferedImage bufferedImage = ImageIO
+                .read(Objects.requireNonNull(PngEncoderTest.class.getResourceAsStream("/png-encoder-logo.png")));
+        final int defaultSize = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .toBytes().length;
+
+        for (int optimizationEffort = 1; optimizationEffort <= PngEncoder.MAX_OPTIMIZATION_EFFORT; optimizationEffort++) {
+            final AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withOptimizationEffort(optimizationEffort)
+                    .withStatisticsListener(statistics::set)
+                    .toBytes();
+
+            // Indexed candidates normalize fully transparent pixels, so compare like the indexed encoding tests do.
+            PngEncoderTestUtil.assertThatImageIsEqual(readWithImageIO(bytes), bufferedImage);
+            assertThat(bytes.length, is(lessThanOrEqualTo(defaultSize)));
+            assertThat(statistics.get().getOptimizationCandidateCount(), is(PngEncoderOptimizer.getCandidates(
+                    new PngEncoder().withBufferedImage(bufferedImage).withOptimizationEffort(optimizationEffort)).size()));
+
+            final PngEncoder winner = statistics.get().getOptimizationWinner();
+            assertThat(winner.getOptimizationEffort(), is(0));
+            assertThat(winner.withMultiThreadedCompressionEnabled(false).toBytes().length, is(bytes.length));
+        }
+    }
+
+    @Test
+    public void testOptimizationEffortCandidateCount() throws IOException {
+        // More than 256 colors, so the indexed candidates would be copies of the others.
+        final PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(1)).size(), is(6));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(2)).size(), is(21));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(3)).size(), is(63));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withTryIndexedEncoding(true).withOptimizationEffort(1)).size(), is(6));
+
+        assertThat(getCandidateFilterStrategies(pngEncoder.withOptimizationEffort(1)), is(EnumSet.of(
+                PngEncoderFilterStrategy.NONE, PngEncoderFilterStrategy.SAMPLED, PngEncoderFilterStrategy.MIN_SUM)));
+        assertThat(getCandidateFilterStrategies(pngEncoder.withOptimizationEffort(2)), is(EnumSet.of(
+                PngEncoderFilterStrategy.NONE, PngEncoderFilterStrategy.SAMPLED, PngEncoderFilterStrategy.MIN_SUM,
+                PngEncoderFilterStrategy.ENTROPY, PngEncoderFilterStrategy.UP, PngEncoderFilterStrategy.PAETH,
+                PngEncoderFilterStrategy.TRIAL_DEFLATE)));
+        for (PngEncoder candidate : PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(PngEncoder.MAX_OPTIMIZATION_EFFORT))) {
+            assertThat(candidate.isPredictorEncodingEnabled(), is(true));
+            if (candidate.getDeflateStrategy() == PngEncoderDeflateStrategy.HUFFMAN_ONLY) {
+                assertThat(candidate.getCompressionLevel(), is(9));
+            }
+        }
+    }
+
+    private static Set<PngEncoderFilterStrategy> getCandidateFilterStrategies(PngEncoder pngEncoder) throws IOException {
+        final Set<PngEncoderFilterStrategy> filterStrategies = EnumSet.noneOf(PngEncoderFilterStrategy.class);
+        for (PngEncoder candidate : PngEncoderOptimizer.getCandidates(pngEncoder)) {
+            filterStrategies.add(candidate.getFilterStrategy());
+        }
+        return filterStrategies;
+    }
+
+    @Test
+    public void testOptimizationEffortCandidateCountIndexable() throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                bufferedImage.setRGB(x, y, (x + y) % 2 == 0 ? RED : BLUE);
+            }
+        }
+        // The indexed candidates are filtered by the indexed filter strategy, so they are not tried with the others.
+        final PngEncoder pngEncoder = new PngEncoder().withBufferedImage(bufferedImage);
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(1)).size(), is(6));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withTryIndexedEncoding(true).withOptimizationEffort(1)).size(), is(2));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(2)).size(), is(24));
+        assertThat(PngEncoderOptimizer.getCandidates(pngEncoder.withOptimizationEffort(3)).size(), is(72));
+
+        // Always indexed, whether indexed encoding is tried or not.
+        final PngEncoder binary = new PngEncoder().withBufferedImage(new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_BINARY));
+        assertThat(PngEncoderOptimizer.getCandidates(binary.withOptimizationEffort(2)).size(), is(3));
+        assertThat(PngEncoderOptimizer.getCandidates(binary.withOptimizationEffort(3)).size(), is(9));
+        for (PngEncoder candidate : PngEncoderOptimizer.getCandidates(binary.withOptimizationEffort(2))) {
+            assertThat(candidate.getFilterStrategy(), is(binary.getFilterStrategy()));
+        }
+    }
+
+    @Test
+    public void testOptimizationEffortNotOptimizedHasNoWinner() {
+        final AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+        new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64))
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+        assertThat(statistics.get().getOptimizationWinner(), is(nullValue()));
+        assertThat(statistics.get().getOptimizationCandidateCount(), is(0));
+    }
+
+    @Test
+    public void testWithOptimizationEffortOutOfRangeThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withOptimizationEffort(-1));
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withOptimizationEffort(PngEncoder.MAX_OPTIMIZATION_EFFORT + 1));
+    }
+
+    @Test
+    public void testWithDeflateStrategyNullThrows() {
+        assertThrows(NullPointerException.class, () -> new PngEncoder().withDeflateStrategy(null));
+    }
+
+    @Test
+    public void testOptimalCompressor() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 256);
+
+        for (boolean multiThreadedCompressionEnabled : new boolean[]{false, true}) {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressor(PngEncoderCompressor.optimal(2))
+                    .withMultiThreadedCompressionEnabled(multiThreadedCompressionEnabled)
+                    .withPredictorEncoding(true)
+                    .toBytes();
+
+            int[] actual = toIntArgb(readWithImageIO(bytes));
+            int[] expected = toIntArgb(bufferedImage);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testWithCompressorNullThrows() {
+        assertThrows(NullPointerException.class, () -> new PngEncoder().withCompressor(null));
+    }
+
     @Test
     public void testPredictorEncodingWithImage() throws IOException {
         final BufferedImage bufferedImage = ImageIO
@@ -290,6 +747,253 @@ public class PngEncoderTest {
         assertThat("Predictor must be smaller", bytesPred9.length < bytesBaseline9.length);
     }
 
+    @Test
+    public void testDictionaryChainingEncoding() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(1)
+                .withDictionaryChainingEnabled(true)
+                .toBytes();
+
+        BufferedImage backReadImage = readWithImageIO(bytes);
+        int[] actual = toIntArgb(backReadImage);
+        int[] expected = toIntArgb(bufferedImage);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void testEncodeWithExecutorService() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        try {
+            byte[] bytes = new PngEncoder()
+                    .withBufferedImage(bufferedImage)
+                    .withCompressionLevel(1)
+                    .withExecutorService(executorService)
+                    .toBytes();
+
+            BufferedImage backReadImage = readWithImageIO(bytes);
+            int[] actual = toIntArgb(backReadImage);
+            int[] expected = toIntArgb(bufferedImage);
+            assertThat(actual, is(expected));
+            assertThat(executorService.getCompletedTaskCount(), is(greaterThan(0L)));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncodeWithFairShareSchedulingAndStatistics() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(1)
+                .withFairShareSchedulingWeight(2)
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+
+        BufferedImage backReadImage = readWithImageIO(bytes);
+        int[] actual = toIntArgb(backReadImage);
+        int[] expected = toIntArgb(bufferedImage);
+        assertThat(actual, is(expected));
+        assertThat(statistics.get().getSegmentCount(), is(greaterThan(1)));
+    }
+
+    @Test
+    public void testEncodeWithParallelism() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withParallelism(2)
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        assertThat(statistics.get().getParallelism(), is(2));
+        assertThat(statistics.get().getSegmentCount(), is(greaterThan(1)));
+        // Rounding the segments down to whole rows may add one.
+        assertThat(statistics.get().getSegmentCount(), is(lessThanOrEqualTo(2 * PngEncoderSegmentPlanner.SEGMENTS_PER_THREAD + 1)));
+    }
+
+    @Test
+    public void testEncodeWithParallelismOneIsSingleThreaded() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withParallelism(1)
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        assertThat(statistics.get().getParallelism(), is(0));
+        assertThat(statistics.get().getSegmentCount(), is(0));
+    }
+
+    @Test
+    public void testEncodeSingleThreadedInSegmentsReportsSegmentCount() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withMultiThreadedCompressionEnabled(false)
+                .withDeadline(Duration.ofDays(1))
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        assertThat(statistics.get().getParallelism(), is(0));
+        assertThat(statistics.get().getSegmentCount(), is(greaterThan(0)));
+        assertThat(statistics.get().getSegmentCompressionLevels().length, is(statistics.get().getSegmentCount()));
+    }
+
+    @Test
+    public void testNegativeParallelismThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withParallelism(-1));
+    }
+
+    @Test
+    public void testEncodeWithDeadlineInTime() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withDeadline(Duration.ofDays(1))
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        final int[] levels = statistics.get().getSegmentCompressionLevels();
+        assertThat(levels.length, is(statistics.get().getSegmentCount()));
+        for (int level : levels) {
+            assertThat(level, is(PngEncoder.DEFAULT_COMPRESSION_LEVEL));
+        }
+    }
+
+    @Test
+    public void testEncodeWithDeadlineDownshifts() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+        final PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withStatisticsListener(statistics::set);
+
+        // Measures how fast the segments are.
+        pngEncoder.withDeadline(Duration.ofDays(1)).toBytes();
+        byte[] bytes = pngEncoder.withDeadline(Duration.ofNanos(1)).toBytes();
+
+        assertThat(toIntArgb(readWithImageIO(bytes)), is(toIntArgb(bufferedImage)));
+        final int[] levels = statistics.get().getSegmentCompressionLevels();
+        assertThat(levels.length, is(greaterThan(0)));
+        assertThat(levels[levels.length - 1], is(1));
+    }
+
+    @Test
+    public void testEncodeWithoutDeadlineHasNoSegmentCompressionLevels() {
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+        new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512))
+                .withStatisticsListener(statistics::set)
+                .toBytes();
+        assertThat(statistics.get().getSegmentCompressionLevels().length, is(0));
+    }
+
+    @Test
+    public void testNonPositiveDeadlineThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withDeadline(Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> new PngEncoder().withDeadline(Duration.ofMillis(-1)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testDeterministicSegmentationIsIndependentOfThreads(boolean usePredictorEncoding) {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        AtomicReference<PngEncoderStatistics> statistics = new AtomicReference<>();
+        final PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(1)
+                .withPredictorEncoding(usePredictorEncoding)
+                .withDeterministicSegmentationEnabled(true)
+                .withStatisticsListener(statistics::set);
+
+        final byte[] expected = pngEncoder.withMultiThreadedCompressionEnabled(false).toBytes();
+        final int segmentCount = statistics.get().getSegmentCount();
+        assertThat(segmentCount, is(greaterThan(1)));
+
+        // Simulates machines with different numbers of processors.
+        for (int threadCount : new int[]{1, 2, 8, 32}) {
+            ThreadPoolExecutor executorService = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            try {
+                byte[] actual = pngEncoder.withExecutorService(executorService).toBytes();
+                assertThat("threadCount " + threadCount, actual, is(expected));
+                assertThat(statistics.get().getSegmentCount(), is(segmentCount));
+
+                byte[] actualWithParallelism = pngEncoder.withExecutorService(executorService).withParallelism(threadCount).toBytes();
+                assertThat("parallelism " + threadCount, actualWithParallelism, is(expected));
+            } finally {
+                executorService.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testEncodeReusesPooledBuffers() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil
+                .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512);
+        PngEncoder pngEncoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(1);
+        byte[] expected = pngEncoder.toBytes();
+        long hitCountBefore = PngEncoder.getBufferPoolStatistics().getHitCount();
+
+        byte[] actual = pngEncoder.toBytes();
+
+        assertThat(actual, is(expected));
+        assertThat(PngEncoder.getBufferPoolStatistics().getHitCount(), is(greaterThan(hitCountBefore)));
+    }
+
+    @Test
+    public void testEncodeWithThreadLocalScratchIsUnchanged() {
+        // Segments planned from idle threads and measured throughput could differ between the encodes.
+        final PngEncoder pngEncoder = new PngEncoder().withCompressionLevel(1).withParallelism(4);
+        for (int side : new int[]{512, 100, 512}) {
+            final BufferedImage bufferedImage = PngEncoderTestUtil
+                    .createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, side);
+            for (boolean multiThreaded : new boolean[]{true, false}) {
+                for (boolean predictorEncoding : new boolean[]{true, false}) {
+                    PngEncoder configured = pngEncoder
+                            .withBufferedImage(bufferedImage)
+                            .withMultiThreadedCompressionEnabled(multiThreaded)
+                            .withPredictorEncoding(predictorEncoding);
+                    byte[] expected = configured.toBytes();
+                    byte[] actual = configured.withThreadLocalScratchEnabled(true).toBytes();
+                    byte[] actualAgain = configured.withThreadLocalScratchEnabled(true).toBytes();
+                    String reason = String.format("side %d multiThreaded %b predictorEncoding %b", side, multiThreaded, predictorEncoding);
+                    assertThat(reason, actual, is(expected));
+                    assertThat(reason, actualAgain, is(expected));
+                }
+            }
+        }
+    }
+
     @Test
     public void testEncodeWithSrgbAndReadMetadata() throws IOException {
         int width = 3;
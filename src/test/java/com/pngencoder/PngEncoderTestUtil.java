@@ -66,6 +66,31 @@ class PngEncoderTestUtil {
                 .toStream(NULL_OUTPUT_STREAM);
     }
 
+    static int encodeWithPngEncoderCompressor(BufferedImage bufferedImage, PngEncoderCompressor compressor, boolean usePredictorEncoding) {
+        return new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressor(compressor)
+                .withPredictorEncoding(usePredictorEncoding)
+                .toStream(NULL_OUTPUT_STREAM);
+    }
+
+    static int encodeWithPngEncoderDeflateStrategy(BufferedImage bufferedImage, int compressionLevel, PngEncoderDeflateStrategy deflateStrategy, boolean usePredictorEncoding) {
+        return new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(compressionLevel)
+                .withDeflateStrategy(deflateStrategy)
+                .withPredictorEncoding(usePredictorEncoding)
+                .toStream(NULL_OUTPUT_STREAM);
+    }
+
+    static int encodeWithPngEncoderFilterStrategy(BufferedImage bufferedImage, int compressionLevel, PngEncoderFilterStrategy filterStrategy) {
+        return new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withCompressionLevel(compressionLevel)
+                .withFilterStrategy(filterStrategy)
+                .toStream(NULL_OUTPUT_STREAM);
+    }
+
     static void encodeWithImageIO(BufferedImage bufferedImage) {
         try {
             ImageIO.write(bufferedImage, "png", NULL_OUTPUT_STREAM);